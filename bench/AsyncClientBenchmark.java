@@ -0,0 +1,140 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import src.AsyncChatClient;
+import src.ChatClient;
+import src.ChatMessage;
+import src.NioChatServer;
+import src.ServerConfig;
+import utils.HybridUtils;
+import utils.LatencyHistogram;
+import utils.RSAUtils;
+
+/*
+Many bot sessions in one JVM, all receiving a burst of encrypted broadcasts while another user sends plain
+notices every 10 ms. Compares the blocking receive loop, one platform thread per session that decrypts what it
+reads before reading on, with AsyncChatClient on the shared worker pool. Reports how long the burst takes to be
+decrypted everywhere, the delivery latency of the notices that arrive in the middle of it, and the peak number of
+threads:
+
+    java bench.AsyncClientBenchmark [blocking|async] [sessions] [messages]
+ */
+public class AsyncClientBenchmark {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "async";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--engine=nio", "--max-messages-per-second=0"});
+        startDaemon(() -> new NioChatServer(serverChannel, config).start());
+
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        Path downloads = Files.createTempDirectory("async-bench");
+        AtomicLong decrypted = new AtomicLong();
+        LatencyHistogram noticeMicros = new LatencyHistogram();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+
+        for (int i = 0; i < sessions; i++) {
+            ChatClient client = new ChatClient(keyPair);
+            client.start("127.0.0.1", port, "bot-" + i);
+            if (mode.equals("async")) {
+                AsyncChatClient async = new AsyncChatClient(client, downloads);
+                async.addListener(event -> {
+                    if (event.kind == AsyncChatClient.Event.Kind.MESSAGE) {
+                        count(event.message, decrypted, noticeMicros);
+                    }
+                });
+                async.start();
+            } else {
+                startDaemon(() -> {
+                    while (true) {
+                        ChatMessage message = client.receiveMessage();
+                        if (message.getType() == ChatMessage.MessageType.HYBRID_TEXT) {
+                            HybridUtils.decrypt(message.getEntries(), client.getUsername(), client.getPrivateKey());
+                        }
+                        count(message, decrypted, noticeMicros);
+                    }
+                });
+            }
+        }
+
+        ChatClient sender = new ChatClient(keyPair);
+        sender.start("127.0.0.1", port, "sender");
+        ChatClient pinger = new ChatClient(keyPair);
+        pinger.start("127.0.0.1", port, "pinger");
+        startDaemon(() -> {
+            while (true) {
+                sender.receiveMessage();
+            }
+        });
+        startDaemon(() -> {
+            while (true) {
+                pinger.receiveMessage();
+            }
+        });
+        Thread.sleep(2000);
+        Map<String, PublicKey> recipients = new HashMap<>();
+        for (int i = 0; i < sessions; i++) {
+            recipients.put("bot-" + i, keyPair.getPublic());
+        }
+
+        long start = System.nanoTime();
+        List<Map<String, byte[]>> envelopes = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            envelopes.add(HybridUtils.encrypt("burst message " + i, recipients));
+        }
+        for (Map<String, byte[]> envelope : envelopes) {
+            sender.sendMessage(new ChatMessage("sender", null, null, null, envelope, ChatMessage.MessageType.HYBRID_TEXT, System.nanoTime()));
+        }
+        long expected = (long) sessions * messages;
+        while (decrypted.get() < expected) {
+            pinger.sendMessage(new ChatMessage("pinger", null, null, "ping", null, ChatMessage.MessageType.TEXT, System.nanoTime()));
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-8s %8s %8s %10s %12s %12s %10s%n", "mode", "sessions", "messages", "burst s", "notice p50", "notice p99", "threads");
+        System.out.printf("%-8s %8d %8d %10.2f %9d us %9d us %10d%n", mode, sessions, messages, seconds,
+                noticeMicros.percentile(50), noticeMicros.percentile(99),
+                ManagementFactory.getThreadMXBean().getPeakThreadCount() - baseThreads);
+        System.exit(0);
+    }
+
+    private static void count(ChatMessage message, AtomicLong decrypted, LatencyHistogram noticeMicros) {
+        if (message.getType() == ChatMessage.MessageType.HYBRID_TEXT) {
+            decrypted.incrementAndGet();
+        } else if (message.getType() == ChatMessage.MessageType.TEXT && "pinger".equals(message.getSender())) {
+            noticeMicros.record((System.nanoTime() - message.getSequence()) / 1000);
+        }
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void startDaemon(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("[AsyncClient] " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,224 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.RSAUtils;
+
+/*
+Aggregate throughput of a cluster as nodes are added. For every cluster size up to maxNodes it starts the nodes
+as child JVMs linked over loopback, connects usersPerNode users to each node and puts them in rooms of roomSize
+whose members are spread round-robin over the nodes, as a load balancer would spread them, so every room message
+is relayed to the other nodes. One member per room keeps window messages in flight (its own copy coming back
+frees a slot) and the harness counts what all members receive:
+
+    java bench.ClusterBenchmark [maxNodes] [usersPerNode] [roomSize] [seconds]
+
+The nodes and the simulated users share this machine's cores; the nodes only scale while there are cores to
+spare for each of them, which the first line of the output reports.
+ */
+public class ClusterBenchmark {
+    private static final int WINDOW = 16;
+    private static final int MESSAGE_BYTES = 64;
+
+    public static void main(String[] args) throws Exception {
+        int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int usersPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int roomSize = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores available");
+        System.out.printf("%6s %7s %7s %12s %14s %16s%n", "nodes", "users", "rooms", "sent msg/s", "delivered/s", "delivered/s/node");
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            List<Process> processes = new ArrayList<>();
+            List<User> users = new ArrayList<>();
+            try {
+                int[] ports = startCluster(nodes, processes);
+                int userCount = nodes * usersPerNode;
+                for (int i = 0; i < userCount; i++) {
+                    users.add(new User("user-" + i, "room-" + (i / roomSize), ports[i % nodes], keyPair, i % roomSize == 0));
+                }
+                // Let the last joins and their notices settle before anything is counted
+                Thread.sleep(1000);
+                for (User user : users) {
+                    user.startSending();
+                }
+                Thread.sleep(2000);
+                long sentBefore = User.sent.sum();
+                long deliveredBefore = User.delivered.sum();
+                long start = System.nanoTime();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                double sent = (User.sent.sum() - sentBefore) / elapsed;
+                double delivered = (User.delivered.sum() - deliveredBefore) / elapsed;
+                System.out.printf("%6d %7d %7d %12.0f %14.0f %16.0f%n", nodes, userCount,
+                        (userCount + roomSize - 1) / roomSize, sent, delivered, delivered / nodes);
+            } finally {
+                for (User user : users) {
+                    user.close();
+                }
+                for (Process process : processes) {
+                    process.destroyForcibly().waitFor();
+                }
+            }
+        }
+    }
+
+    // Starts the nodes of a cluster on free ports, returns their client ports once all of them accept connections
+    private static int[] startCluster(int nodes, List<Process> processes) throws Exception {
+        int[] ports = freePorts(nodes);
+        int[] clusterPorts = freePorts(nodes);
+        StringJoiner cluster = new StringJoiner(",", "--cluster=", "");
+        for (int port : clusterPorts) {
+            cluster.add("127.0.0.1:" + port);
+        }
+        for (int node = 0; node < nodes; node++) {
+            List<String> command = List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "src.ChatServer", "--port=" + ports[node],
+                    "--engine=nio", "--max-messages-per-second=0", cluster.toString(), "--node-id=" + node);
+            processes.add(new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+        }
+        for (int node = 0; node < nodes; node++) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (true) {
+                try {
+                    new Socket("127.0.0.1", ports[node]).close();
+                    break;
+                } catch (IOException e) {
+                    if (!processes.get(node).isAlive() || System.currentTimeMillis() > deadline) {
+                        throw new IOException("Node " + node + " did not start on port " + ports[node], e);
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        }
+        // Links to nodes that were not up yet are retried every half second
+        Thread.sleep(1500);
+        return ports;
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        int[] ports = new int[count];
+        List<ServerSocket> probes = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket probe = new ServerSocket(0);
+                probes.add(probe);
+                ports[i] = probe.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket probe : probes) {
+                probe.close();
+            }
+        }
+        return ports;
+    }
+
+    // A user speaking the binary protocol directly, so the harness spends its CPU on the wire rather than on crypto
+    private static class User {
+        static final LongAdder sent = new LongAdder();
+        static final LongAdder delivered = new LongAdder();
+
+        final String name;
+        final String room;
+        final boolean sender;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Semaphore window = new Semaphore(WINDOW);
+        volatile boolean closed;
+
+        User(String name, String room, int port, KeyPair keyPair, boolean sender) throws Exception {
+            this.name = name;
+            this.room = room;
+            this.sender = sender;
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            WireCodec.readFrame(in); // Acknowledgement
+            out.write(WireCodec.BINARY.encode(name));
+            out.flush();
+            ChatMessage accepted = (ChatMessage) WireCodec.readFrame(in);
+            if (!accepted.getMessage().startsWith("[*] Username accepted")) {
+                throw new IOException(name + ": " + accepted.getMessage());
+            }
+            out.write(WireCodec.BINARY.encode(new ChatMessage(name, keyPair.getPublic())));
+            out.write(WireCodec.BINARY.encode(new ChatMessage(name, null, room, null, null, ChatMessage.MessageType.ROOM_JOIN, 0)));
+            out.flush();
+            Thread reader = new Thread(this::readLoop, "reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void startSending() {
+            if (!sender) {
+                return;
+            }
+            Thread thread = new Thread(this::sendLoop, "sender-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void sendLoop() {
+            String text = "x".repeat(MESSAGE_BYTES);
+            try {
+                while (!closed) {
+                    // A message lost to a full queue would hold its slot for ever, so a slot is taken back after a while
+                    window.tryAcquire(1, TimeUnit.SECONDS);
+                    out.write(WireCodec.BINARY.encode(new ChatMessage(name, null, room, text, null, ChatMessage.MessageType.TEXT, 0)));
+                    out.flush();
+                    sent.increment();
+                }
+            } catch (IOException | InterruptedException e) {
+                if (!closed) {
+                    System.err.println(name + " stopped sending: " + e.getMessage());
+                }
+            }
+        }
+
+        private void readLoop() {
+            try {
+                while (!closed) {
+                    ChatMessage message = (ChatMessage) WireCodec.readFrame(in);
+                    if (message.getType() == ChatMessage.MessageType.TEXT && room.equals(message.getRoom())
+                            && !"Server".equals(message.getSender())) {
+                        delivered.increment();
+                        if (name.equals(message.getSender())) {
+                            window.release();
+                        }
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (!closed) {
+                    System.err.println(name + " stopped reading: " + e.getMessage());
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
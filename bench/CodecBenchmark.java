@@ -0,0 +1,115 @@
+package bench;
+
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.FrameUtils;
+import utils.RSAUtils;
+import utils.SerializationUtils;
+
+/*
+Bytes per frame and encode/decode throughput of the wire formats:
+  legacy  - Java serialization of a ChatMessage whose payload is a Base64 String of a serialized map of Base64 values
+  java    - Java serialization of a ChatMessage carrying raw byte[] entries
+  binary  - BinaryCodec with raw byte[] entries
+
+    java bench.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+    private static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        Map<String, byte[]> keyMap = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            keyMap.put("user-" + i, keyPair.getPublic().getEncoded());
+        }
+
+        System.out.printf("%-22s %8s %8s %8s %12s %12s %12s%n", "message", "legacy", "java", "binary", "legacy op/s", "java op/s", "binary op/s");
+        run("text notice", new ChatMessage("Server", null, "[*] User alice has joined the chat.", ChatMessage.MessageType.TEXT), iterations);
+        run("envelope x10", envelope(10), iterations);
+        run("envelope x100", envelope(100), iterations / 10);
+        run("key map x100", new ChatMessage("Server", null, keyMap, ChatMessage.MessageType.PUBLIC_KEY_MAP), iterations / 10);
+    }
+
+    // Hybrid envelope shape: a 200-byte body plus one 256-byte wrapped key per recipient
+    private static ChatMessage envelope(int recipients) {
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(" body", randomBytes(200));
+        for (int i = 0; i < recipients; i++) {
+            entries.put("user-" + i, randomBytes(256));
+        }
+        return new ChatMessage("alice", null, entries, ChatMessage.MessageType.HYBRID_TEXT);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void run(String name, ChatMessage msg, int iterations) throws Exception {
+        ChatMessage legacy = toLegacy(msg);
+        int legacyBytes = FrameUtils.encode(legacy).length;
+        int javaBytes = WireCodec.JAVA.encode(msg).length;
+        int binaryBytes = WireCodec.BINARY.encode(msg).length;
+
+        double legacyOps = 0, javaOps = 0, binaryOps = 0;
+        // First pass warms up the JIT, the second one is reported
+        for (int pass = 0; pass < 2; pass++) {
+            legacyOps = measure(iterations, () -> {
+                byte[] frame = FrameUtils.encode(toLegacy(msg));
+                fromLegacy((ChatMessage) FrameUtils.decode(frame, FrameUtils.HEADER_SIZE, frame.length - FrameUtils.HEADER_SIZE));
+            });
+            javaOps = measure(iterations, () -> roundTrip(WireCodec.JAVA, msg));
+            binaryOps = measure(iterations, () -> roundTrip(WireCodec.BINARY, msg));
+        }
+        System.out.printf("%-22s %8d %8d %8d %12.0f %12.0f %12.0f%n", name, legacyBytes, javaBytes, binaryBytes, legacyOps, javaOps, binaryOps);
+    }
+
+    private static void roundTrip(WireCodec codec, ChatMessage msg) throws Exception {
+        byte[] frame = codec.encode(msg);
+        WireCodec.decode(frame, FrameUtils.HEADER_SIZE, frame.length - FrameUtils.HEADER_SIZE);
+    }
+
+    // The message as it was sent before the binary codec: entries Base64-encoded and serialized into the String payload
+    private static ChatMessage toLegacy(ChatMessage msg) throws Exception {
+        if (msg.getEntries() == null) {
+            return msg;
+        }
+        Map<String, String> strings = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : msg.getEntries().entrySet()) {
+            strings.put(entry.getKey(), Base64.getEncoder().encodeToString(entry.getValue()));
+        }
+        return new ChatMessage(msg.getSender(), msg.getRecipient(), SerializationUtils.serialize(strings), msg.getType());
+    }
+
+    private static Map<String, byte[]> fromLegacy(ChatMessage msg) throws Exception {
+        Map<String, byte[]> entries = new HashMap<>();
+        if (msg.getType() == ChatMessage.MessageType.TEXT) {
+            return entries;
+        }
+        for (Map.Entry<String, String> entry : SerializationUtils.deserialize(msg.getMessage()).entrySet()) {
+            entries.put(entry.getKey(), Base64.getDecoder().decode(entry.getValue()));
+        }
+        return entries;
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private static double measure(int iterations, Op op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        return iterations / ((System.nanoTime() - start) / 1e9);
+    }
+}
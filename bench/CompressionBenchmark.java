@@ -0,0 +1,113 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.CompressionUtils;
+import utils.HybridUtils;
+import utils.RSAUtils;
+
+/*
+Shows what compressing a text before encryption saves for a few kinds of chat payloads: the body size, the RSA
+chunks the legacy per-recipient scheme would need for it, the size of the HYBRID_TEXT frame a recipient receives,
+and the time to encrypt for the whole group and decrypt one copy, each without and with compression:
+
+    java bench.CompressionBenchmark [recipients] [iterations]
+ */
+public class CompressionBenchmark {
+    // A 2048-bit key with PKCS#1 v1.5 padding encrypts at most 245 bytes per chunk
+    private static final int RSA_CHUNK_BYTES = 245;
+
+    public static void main(String[] args) throws Exception {
+        int recipientCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        Map<String, PublicKey> recipients = new HashMap<>();
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.put("user-" + i, keyPair.getPublic());
+        }
+
+        System.out.printf("%-10s %7s %7s %9s %9s %9s %9s %9s %9s %9s %9s%n", "payload", "text B", "body B", "chunks",
+                "chunks z", "frame B", "frame B z", "enc us", "enc us z", "dec us", "dec us z");
+        for (Map.Entry<String, String> sample : samples().entrySet()) {
+            String text = sample.getValue();
+            byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = CompressionUtils.compress(plain);
+            int bodyBytes = compressed != null ? compressed.length : plain.length;
+
+            long[] off = measure(text, recipients, keyPair, false, iterations);
+            long[] on = measure(text, recipients, keyPair, true, iterations);
+            System.out.printf("%-10s %7d %7d %9d %9d %9d %9d %9d %9d %9d %9d%n", sample.getKey(), plain.length, bodyBytes,
+                    chunks(plain.length), chunks(bodyBytes), off[0], on[0], off[1], on[1], off[2], on[2]);
+        }
+    }
+
+    // Returns the frame size one recipient receives, and the encrypt and decrypt time in microseconds
+    private static long[] measure(String text, Map<String, PublicKey> recipients, KeyPair keyPair, boolean compress,
+                                  int iterations) throws Exception {
+        Map<String, byte[]> envelope = null;
+        long encryptNanos = 0;
+        long decryptNanos = 0;
+        // The first round warms up, the second is reported
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                envelope = HybridUtils.encrypt(text, recipients, compress);
+            }
+            encryptNanos = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (!text.equals(HybridUtils.decrypt(envelope, "user-0", keyPair.getPrivate()))) {
+                    throw new IllegalStateException("Round trip failed");
+                }
+            }
+            decryptNanos = (System.nanoTime() - start) / iterations;
+        }
+
+        // What the server sends user-0: its own wrapped key plus the envelope fields
+        Map<String, byte[]> own = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : envelope.entrySet()) {
+            if (entry.getKey().startsWith(" ") || entry.getKey().equals("user-0")) {
+                own.put(entry.getKey(), entry.getValue());
+            }
+        }
+        int frameBytes = WireCodec.BINARY.encode(new ChatMessage("bench", "user-0", own, ChatMessage.MessageType.HYBRID_TEXT)).length;
+        return new long[]{frameBytes, encryptNanos / 1000, decryptNanos / 1000};
+    }
+
+    private static int chunks(int bytes) {
+        return (bytes + RSA_CHUNK_BYTES - 1) / RSA_CHUNK_BYTES;
+    }
+
+    private static Map<String, String> samples() {
+        Map<String, String> samples = new LinkedHashMap<>();
+        samples.put("short", "ok see you later");
+        samples.put("line", "Does anyone know how to get the build working again? I think the test server is down.");
+        samples.put("paragraph", "Sounds good to me. I'll take a look at the release branch this afternoon and get back to you "
+                + "before the meeting tomorrow morning. If the deploy fails again I think we should probably just wait "
+                + "until Monday, there is no point in rushing it on a Friday evening. Let me know when you're ready to "
+                + "review the merge and I'll make sure the client and server builds are both green first.");
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            log.append("2026-10-17T09:").append(10 + i % 50).append(":0").append(i % 10)
+                    .append(".123Z INFO  [pool-1-thread-").append(i % 8).append("] ChatServer - Delivered message ")
+                    .append(1000 + i).append(" to user-").append(i * 7 % 100).append('\n');
+        }
+        log.append("Exception in thread \"main\" java.lang.NullPointerException\n\tat src.ChatServer.route(ChatServer.java:431)\n");
+        samples.put("log", log.toString());
+        // A pasted key or other Base64 data, deflate only wins back the unused bits of each character
+        byte[] random = new byte[1024];
+        new Random(1).nextBytes(random);
+        samples.put("base64", Base64.getEncoder().encodeToString(random));
+        return samples;
+    }
+}
@@ -0,0 +1,152 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import src.ChatMessage;
+import src.ChatServer;
+import src.NioChatServer;
+import src.ServerConfig;
+import utils.FrameUtils;
+import utils.RSAUtils;
+
+/*
+Opens many mostly idle connections against one server engine running in this JVM and reports the
+live thread count, heap and resident memory. Run it once per engine and compare the output:
+
+    java bench.ConnectionBenchmark threads 2000
+    java bench.ConnectionBenchmark virtual 2000
+    java bench.ConnectionBenchmark nio 2000
+    java bench.ConnectionBenchmark nio 2000 register
+
+By default each connection stops after its username is accepted, which is the state an idle client
+holds a server thread in. "register" also uploads a public key so every connection joins the chat and
+receives the join notices and key directory deltas of the ones after it.
+ */
+public class ConnectionBenchmark {
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "nio";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        boolean register = args.length > 2 && args[2].equals("register");
+        int ioThreads = Runtime.getRuntime().availableProcessors();
+
+        // The connections never finish their handshake, so the cap on pending handshakes is off
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--engine=" + engine, "--io-threads=" + ioThreads,
+                "--max-pending-handshakes=0"});
+        int port;
+        if (engine.equals("threads") || engine.equals("virtual")) {
+            ServerSocket serverSocket = new ServerSocket(0, 4096);
+            port = serverSocket.getLocalPort();
+            startDaemon(() -> new ChatServer(serverSocket, config).start());
+        } else {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+            port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            NioChatServer server = new NioChatServer(serverChannel, config);
+            startDaemon(server::start);
+        }
+        Thread.sleep(200);
+        Snapshot before = Snapshot.take();
+
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        Selector drain = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            FrameUtils.readFrame(in);
+            FrameUtils.writeFrame(out, "bench-" + i);
+            FrameUtils.readFrame(in);
+            if (register) {
+                FrameUtils.writeFrame(out, new ChatMessage("bench-" + i, keyPair.getPublic()));
+                FrameUtils.readFrame(in);
+                // From here on the server broadcasts to this client, discard it all on one thread
+                channel.configureBlocking(false);
+                channel.register(drain, SelectionKey.OP_READ);
+                drain.wakeup();
+            }
+            channels.add(channel);
+            if (i == 0 && register) {
+                startDaemon(() -> drain(drain));
+            }
+        }
+        long connectMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        Thread.sleep(1000);
+        Snapshot after = Snapshot.take();
+
+        System.out.println("engine=" + engine + " connections=" + channels.size() + " registered=" + register + " connectMillis=" + connectMillis);
+        System.out.println("threads: " + before.threads + " -> " + after.threads);
+        System.out.println("heapUsedKB: " + before.heapKb + " -> " + after.heapKb);
+        System.out.println("rssKB: " + before.rssKb + " -> " + after.rssKb);
+        System.out.println("rssKB/connection: " + (after.rssKb - before.rssKb) / Math.max(1, channels.size()));
+        System.exit(0);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void startDaemon(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("[Bench] " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void drain(Selector selector) throws IOException {
+        ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            selector.select();
+            for (SelectionKey key : selector.selectedKeys()) {
+                sink.clear();
+                if (((SocketChannel) key.channel()).read(sink) < 0) {
+                    key.cancel();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static class Snapshot {
+        int threads;
+        long heapKb;
+        long rssKb;
+
+        static Snapshot take() throws IOException {
+            System.gc();
+            Snapshot s = new Snapshot();
+            s.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            s.heapKb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024;
+            s.rssKb = readRssKb();
+            return s;
+        }
+
+        // Resident set size from /proc, -1 where that is not available
+        private static long readRssKb() throws IOException {
+            if (!Files.exists(Paths.get("/proc/self/status"))) {
+                return -1;
+            }
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+            return -1;
+        }
+    }
+}
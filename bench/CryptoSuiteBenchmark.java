@@ -0,0 +1,72 @@
+package bench;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.CryptoSuite;
+import utils.EcUtils;
+import utils.HybridUtils;
+
+/*
+Compares the two crypto suites on what they cost a client and the server: generating a client's keys, the size of
+a key directory entry and of the PUBLIC_KEY_MAP a joining user is sent, and encrypting one group message and
+decrypting it as one of its recipients (EC messages signed and verified, as ChatClient sends them):
+
+    java bench.CryptoSuiteBenchmark [recipients] [iterations]
+ */
+public class CryptoSuiteBenchmark {
+    public static void main(String[] args) throws Exception {
+        int recipientCount = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String message = "x".repeat(200);
+
+        System.out.printf("%-15s %10s %8s %12s %14s %14s%n", "suite", "keygen ms", "entry B", "key map B", "encrypt us", "decrypt us");
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            for (CryptoSuite suite : CryptoSuite.values()) {
+                int keygens = suite == CryptoSuite.RSA ? 10 : 200;
+                long start = System.nanoTime();
+                KeyPair[] keys = null;
+                for (int i = 0; i < keygens; i++) {
+                    keys = suite.generateKeyPairs();
+                }
+                double keygenMillis = (System.nanoTime() - start) / 1e6 / keygens;
+
+                // Recipients share one key pair, the cost per key operation does not depend on which key is used
+                PublicKey identity = keys.length > 1 ? keys[1].getPublic() : null;
+                byte[] entry = identity != null
+                        ? EcUtils.encodeBundle(EcUtils.rawKey(keys[0].getPublic()), EcUtils.rawKey(identity))
+                        : keys[0].getPublic().getEncoded();
+                Map<String, PublicKey> recipients = new HashMap<>();
+                Map<String, byte[]> directory = new HashMap<>();
+                for (int i = 0; i < recipientCount; i++) {
+                    recipients.put("user-" + i, keys[0].getPublic());
+                    directory.put("user-" + i, entry);
+                }
+                int keyMapBytes = WireCodec.BINARY.encode(new ChatMessage("Server", null, directory, ChatMessage.MessageType.PUBLIC_KEY_MAP)).length;
+
+                start = System.nanoTime();
+                Map<String, byte[]> envelope = null;
+                for (int i = 0; i < iterations; i++) {
+                    envelope = HybridUtils.encrypt(message, recipients, false, "bench", identity != null ? keys[1].getPrivate() : null);
+                }
+                long encryptMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (!message.equals(HybridUtils.decrypt(envelope, "user-0", keys[0].getPrivate(), "bench", suite, identity))) {
+                        throw new IllegalStateException("Round trip failed for " + suite.id);
+                    }
+                }
+                long decryptMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+                if (!warmup) {
+                    System.out.printf("%-15s %10.2f %8d %12d %14d %14d%n", suite.id, keygenMillis, entry.length, keyMapBytes, encryptMicros, decryptMicros);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.HybridUtils;
+import utils.RSAUtils;
+import utils.SerializationUtils;
+
+/*
+Compares the cost of sending one group message with per-recipient RSA chunking against the hybrid
+AES-GCM envelope:
+
+    java bench.EncryptionBenchmark [messageBytes] [recipients] [iterations]
+ */
+public class EncryptionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int messageBytes = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int recipientCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // Recipients share one key pair, the cost per RSA operation does not depend on which key is used
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        Map<String, PublicKey> recipients = new HashMap<>();
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.put("user-" + i, keyPair.getPublic());
+        }
+        String message = "x".repeat(messageBytes);
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            long start = System.nanoTime();
+            int rsaBytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                Map<String, String> encryptedMap = new HashMap<>();
+                for (Map.Entry<String, PublicKey> entry : recipients.entrySet()) {
+                    encryptedMap.put(entry.getKey(), RSAUtils.encrypt(message, entry.getValue()));
+                }
+                rsaBytes = SerializationUtils.serialize(encryptedMap).length();
+            }
+            long rsaNanos = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            int hybridBytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                Map<String, byte[]> envelope = HybridUtils.encrypt(message, recipients);
+                hybridBytes = WireCodec.BINARY.encode(new ChatMessage("bench", null, envelope, ChatMessage.MessageType.HYBRID_TEXT)).length;
+            }
+            long hybridNanos = (System.nanoTime() - start) / iterations;
+
+            if (!warmup) {
+                System.out.println("message=" + messageBytes + "B recipients=" + recipientCount);
+                System.out.println("rsa-per-recipient: " + rsaNanos / 1_000_000 + " ms/message, " + rsaBytes + " bytes");
+                System.out.println("hybrid-aes-gcm:    " + hybridNanos / 1_000_000 + " ms/message, " + hybridBytes + " bytes");
+            }
+        }
+
+        Map<String, byte[]> envelope = HybridUtils.encrypt(message, recipients);
+        if (!message.equals(HybridUtils.decrypt(envelope, "user-0", keyPair.getPrivate()))) {
+            throw new IllegalStateException("Hybrid round trip failed");
+        }
+    }
+}
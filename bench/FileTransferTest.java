@@ -0,0 +1,184 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import src.ChatClient;
+import src.ChatMessage;
+import src.ChatServer;
+import src.NioChatServer;
+import src.ServerConfig;
+
+/*
+Sends files of growing size from one client to another through a server, all in this JVM, and checks that
+each arrives intact and that retained heap halfway through a transfer does not grow with the file size.
+Run it with a heap far smaller than the largest file to show that nothing holds a whole file:
+
+    java -Xmx64m bench.FileTransferTest [engine] [sizesMB]
+    java -Xmx64m bench.FileTransferTest nio 1,64,1024
+ */
+public class FileTransferTest {
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "threads";
+        String[] sizes = (args.length > 1 ? args[1] : "1,64,512").split(",");
+
+        // The transfer rate is what is measured, so the byte rate limit is off
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--engine=" + engine, "--max-kb-per-second=0"});
+        int port;
+        if (engine.equals("nio")) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            startDaemon(() -> new NioChatServer(serverChannel, config).start());
+        } else {
+            ServerSocket serverSocket = new ServerSocket(0);
+            port = serverSocket.getLocalPort();
+            startDaemon(() -> new ChatServer(serverSocket, config).start());
+        }
+
+        Path work = Files.createTempDirectory("file-transfer");
+        Path downloads = work.resolve("downloads");
+        ChatClient sender = new ChatClient();
+        sender.start("127.0.0.1", port, "sender");
+        ChatClient receiver = new ChatClient();
+        receiver.start("127.0.0.1", port, "receiver");
+
+        AtomicReference<String> lastNotice = new AtomicReference<>();
+        startDaemon(() -> {
+            while (true) {
+                String notice = receiver.applyFileMessage(receiver.receiveMessage(), downloads);
+                if (notice != null) {
+                    lastNotice.set(notice);
+                }
+            }
+        });
+        startDaemon(() -> {
+            while (true) {
+                ChatMessage message = sender.receiveMessage();
+                if (message.getType() == ChatMessage.MessageType.KEY_ADDED || message.getType() == ChatMessage.MessageType.PUBLIC_KEY_MAP) {
+                    sender.applyKeyUpdate(message);
+                } else {
+                    sender.applyFileMessage(message, downloads);
+                }
+            }
+        });
+        while (sender.getPublicKey("receiver") == null) {
+            Thread.sleep(10);
+        }
+
+        boolean failed = false;
+        System.out.printf("%8s %10s %12s %16s %8s%n", "MB", "seconds", "MB/s", "mid heap KB", "intact");
+        for (String size : sizes) {
+            long bytes = Long.parseLong(size.trim()) * 1024 * 1024;
+            Path file = work.resolve("file-" + size.trim() + ".bin");
+            writeFile(file, bytes);
+            String expected = sha256(file);
+
+            AtomicReference<Long> midHeapKb = new AtomicReference<>(-1L);
+            Thread monitor = new Thread(() -> {
+                try {
+                    while (partBytes(downloads) < bytes / 2) {
+                        Thread.sleep(5);
+                    }
+                    midHeapKb.set(retainedHeapKb());
+                } catch (Exception ignored) {
+                    // The transfer finished before it was sampled
+                }
+            });
+            monitor.setDaemon(true);
+            monitor.start();
+
+            lastNotice.set(null);
+            long start = System.nanoTime();
+            sender.sendFile("receiver", file);
+            while (lastNotice.get() == null) {
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            monitor.join(10000);
+
+            Path received = downloads.resolve(file.getFileName());
+            boolean intact = Files.exists(received) && expected.equals(sha256(received));
+            failed |= !intact;
+            System.out.printf("%8s %10.2f %12.1f %16d %8s%n", size.trim(), seconds, bytes / 1048576.0 / seconds, midHeapKb.get(), intact);
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(received);
+        }
+        System.out.println(failed ? "FAIL: a file did not arrive intact" : "PASS: every file arrived intact");
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Pseudo-random content, so the transfer cannot benefit from anything compressing it on the way
+    private static void writeFile(Path file, long bytes) throws IOException {
+        Random random = new Random(bytes);
+        byte[] block = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < bytes; ) {
+                random.nextBytes(block);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, bytes - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static String sha256(Path file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Bytes received so far into the part file of the running download
+    private static long partBytes(Path downloads) throws IOException {
+        if (!Files.isDirectory(downloads)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(downloads)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".part")).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    // Heap in use after a full collection, the best approximation of what is still reachable
+    private static long retainedHeapKb() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void startDaemon(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("[FileTransfer] " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,523 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import src.ChatClient;
+import src.ChatMessage;
+import utils.FrameUtils;
+import utils.HybridUtils;
+import utils.LatencyHistogram;
+import utils.RSAUtils;
+
+/*
+Headless load test: simulated users built on ChatClient.start(ip, port, username) chat against a server
+started in a child JVM, and every interval the harness prints delivery latency percentiles, throughput and
+the server's resident memory and thread count. Options are given as --name=value:
+
+    --users=100           simulated users kept online
+    --rate=50             messages per second over all users
+    --size=64             message size in bytes
+    --mode=text           text: plain TEXT broadcasts, hybrid: HYBRID_TEXT envelopes routed per recipient
+    --duration=300        length of the run in seconds
+    --interval=10         seconds between reports
+    --churn=0             users per second that leave and are replaced by a new user
+    --slow-readers=0      share of users (0-1) that pause after every message they read
+    --slow-millis=50      length of that pause
+    --port=0              0 starts a local server, otherwise an already running server on --host is used
+    --host=127.0.0.1
+    --server-pid=         process to sample for RSS and threads when the server is not started here
+    --server.<name>=<v>   passed to the local server as --<name>=<v>, e.g. --server.engine=virtual
+    --server-jvm=         JVM options for the local server, space separated, e.g. -Djdk.tracePinnedThreads=short
+    --server-log=         file that receives the local server's output, discarded by default
+    --idle=0              extra connections that stop after their username is accepted and then stay idle,
+                          above 1000 also pass --server.max-pending-handshakes=0
+    --virtual-clients=false  run the simulated users' receive loops on virtual threads
+    --room-size=0         0 keeps everyone in the lobby, otherwise users join rooms of this many and chat there
+
+Alongside latency every report shows the server's write syscalls (from /proc/<pid>/io) and the TCP segments
+sent on this host (from /proc/net/snmp, both directions and ACKs included) per delivered message.
+
+Latency is measured from the time a message was scheduled to be sent, not from when the send actually
+happened, so a sender held up by a backed up server does not hide the delay. The send time travels in the
+message's sequence field and all users live in this JVM, so System.nanoTime() is comparable on both ends.
+
+    java -cp target/benchmarks.jar bench.LoadGenerator --users=500 --rate=200 --duration=300 --server.engine=nio
+ */
+public class LoadGenerator {
+    private int users = 100;
+    private double rate = 50;
+    private int size = 64;
+    private String mode = "text";
+    private int duration = 300;
+    private int interval = 10;
+    private double churn = 0;
+    private double slowReaders = 0;
+    private long slowMillis = 50;
+    private String host = "127.0.0.1";
+    private int port = 0;
+    private long serverPid = -1;
+    private final List<String> serverArgs = new ArrayList<>();
+    private final List<String> serverJvmArgs = new ArrayList<>();
+    private String serverLog;
+    private int idle = 0;
+    private boolean virtualClients;
+    private int roomSize;
+    private final List<Socket> idleSockets = new ArrayList<>();
+
+    private final List<User> online = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextUserId = new AtomicInteger();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private volatile LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder(); // Users dropped by the server rather than leaving
+    private final Random random = new Random(42);
+    private KeyPair keyPair;
+    private String textPayload;
+    private byte[] bodyPayload;
+    private byte[] wrappedKeyPayload;
+    private volatile boolean running = true;
+    private PrintStream report;
+
+    private static class User {
+        final String name;
+        final ChatClient client;
+        final boolean slow;
+        final String room; // null for the lobby
+        volatile boolean leaving;
+
+        User(String name, ChatClient client, boolean slow, String room) {
+            this.name = name;
+            this.client = client;
+            this.slow = slow;
+            this.room = room;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            if (name.startsWith("server.")) {
+                serverArgs.add("--" + name.substring("server.".length()) + "=" + value);
+                continue;
+            }
+            switch (name) {
+                case "users":
+                    users = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "size":
+                    size = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    mode = value;
+                    break;
+                case "duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "interval":
+                    interval = Integer.parseInt(value);
+                    break;
+                case "churn":
+                    churn = Double.parseDouble(value);
+                    break;
+                case "slow-readers":
+                    slowReaders = Double.parseDouble(value);
+                    break;
+                case "slow-millis":
+                    slowMillis = Long.parseLong(value);
+                    break;
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "server-pid":
+                    serverPid = Long.parseLong(value);
+                    break;
+                case "server-jvm":
+                    serverJvmArgs.addAll(List.of(value.trim().split("\\s+")));
+                    break;
+                case "server-log":
+                    serverLog = value;
+                    break;
+                case "idle":
+                    idle = Integer.parseInt(value);
+                    break;
+                case "virtual-clients":
+                    virtualClients = Boolean.parseBoolean(value);
+                    break;
+                case "room-size":
+                    roomSize = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        // ChatClient reports every handshake on System.out, keep the real stream for the report only
+        report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Process server = null;
+        if (port == 0) {
+            server = startServer();
+            serverPid = server.pid();
+        }
+
+        // Every user shares one key pair, generating thousands of RSA keys would dominate the setup
+        keyPair = RSAUtils.generateRSAKeyPair(2048);
+        textPayload = "x".repeat(size);
+        bodyPayload = new byte[size];
+        wrappedKeyPayload = new byte[256];
+        random.nextBytes(bodyPayload);
+        random.nextBytes(wrappedKeyPayload);
+
+        long idleStart = System.nanoTime();
+        for (int i = 0; i < idle; i++) {
+            idleSockets.add(openIdle("idle-" + i));
+        }
+        if (idle > 0) {
+            report.printf("[Load] %d idle connections opened in %d ms%n", idle, (System.nanoTime() - idleStart) / 1_000_000);
+        }
+
+        long joinStart = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            join();
+        }
+        report.printf("[Load] %d users joined in %d ms, server pid %s, args %s%n", online.size(),
+                (System.nanoTime() - joinStart) / 1_000_000, serverPid < 0 ? "-" : serverPid, serverArgs);
+        report.printf("[Load] mode=%s rate=%.0f/s size=%d B churn=%.1f/s slow-readers=%.0f%% (%d ms) duration=%d s%n",
+                mode, rate, size, churn, slowReaders * 100, slowMillis, duration);
+        report.printf("%6s %6s %9s %11s %9s %9s %9s %9s %8s %8s %7s %7s %6s%n", "time", "users", "sent/s", "deliver/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "rss MB", "threads", "wr/msg", "seg/msg", "drops");
+
+        long start = System.nanoTime();
+        long end = start + duration * 1_000_000_000L;
+        Thread sender = startThread("load-sender", () -> sendLoop(end));
+        Thread churner = churn > 0 ? startThread("load-churn", () -> churnLoop(end)) : null;
+
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long lastReport = start;
+        long startWrites = serverWrites();
+        long startSegments = tcpSegments();
+        long lastWrites = startWrites;
+        long lastSegments = startSegments;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(interval * 1000L, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            long now = System.nanoTime();
+            LatencyHistogram window = intervalLatency;
+            intervalLatency = new LatencyHistogram();
+            double seconds = (now - lastReport) / 1e9;
+            long sentNow = sent.sum();
+            long deliveredNow = delivered.sum();
+            long writesNow = serverWrites();
+            long segmentsNow = tcpSegments();
+            report.printf("%6d %6d %9.0f %11.0f %9.2f %9.2f %9.2f %9.2f %8s %8s %7s %7s %6d%n", (now - start) / 1_000_000_000L,
+                    online.size(), (sentNow - lastSent) / seconds, (deliveredNow - lastDelivered) / seconds,
+                    window.percentile(50) / 1000.0, window.percentile(99) / 1000.0, window.percentile(99.9) / 1000.0,
+                    window.max() / 1000.0, processStat("VmRSS:", 1024), processStat("Threads:", 1),
+                    perMessage(lastWrites, writesNow, deliveredNow - lastDelivered),
+                    perMessage(lastSegments, segmentsNow, deliveredNow - lastDelivered), disconnects.sum());
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+            lastReport = now;
+            lastWrites = writesNow;
+            lastSegments = segmentsNow;
+        }
+        running = false;
+        sender.join(5000);
+        if (churner != null) {
+            churner.join(5000);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report.printf("[Load] total: sent %d (%.0f/s), delivered %d (%.0f/s), send failures %d, dropped users %d%n",
+                sent.sum(), sent.sum() / seconds, delivered.sum(), delivered.sum() / seconds, sendFailures.sum(), disconnects.sum());
+        report.printf("[Load] latency ms: p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f, mean %.2f%n",
+                totalLatency.percentile(50) / 1000.0, totalLatency.percentile(99) / 1000.0,
+                totalLatency.percentile(99.9) / 1000.0, totalLatency.max() / 1000.0, totalLatency.mean() / 1000.0);
+        report.printf("[Load] per delivered message: %s server write syscalls, %s TCP segments%n",
+                perMessage(startWrites, serverWrites(), delivered.sum()), perMessage(startSegments, tcpSegments(), delivered.sum()));
+
+        if (server != null) {
+            server.destroy();
+        }
+        for (User user : online) {
+            user.leaving = true;
+            user.client.close();
+        }
+        for (Socket socket : idleSockets) {
+            socket.close();
+        }
+    }
+
+    // Starts ChatServer in a child JVM on a free port so its RSS and threads can be measured apart from the load
+    private Process startServer() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(serverJvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("src.ChatServer");
+        command.add("--port=" + port);
+        command.addAll(serverArgs);
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(serverLog != null ? ProcessBuilder.Redirect.to(new File(serverLog)) : ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket(host, port).close();
+                return process;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    process.destroy();
+                    throw new IOException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void join() throws Exception {
+        int id = nextUserId.getAndIncrement();
+        String name = "user-" + id;
+        ChatClient client = new ChatClient(keyPair);
+        client.start(host, port, name);
+        String room = roomSize > 0 ? "room-" + id / roomSize : null;
+        if (room != null) {
+            client.joinRoom(room);
+        }
+        boolean slow;
+        synchronized (random) {
+            slow = random.nextDouble() < slowReaders;
+        }
+        User user = new User(name, client, slow, room);
+        online.add(user);
+        if (virtualClients) {
+            Thread.ofVirtual().name("load-" + name).start(() -> readLoop(user));
+        } else {
+            startThread("load-" + name, () -> readLoop(user));
+        }
+    }
+
+    // A connection that gets as far as an accepted username and then only holds its socket open
+    private Socket openIdle(String name) throws Exception {
+        Socket socket = new Socket(host, port);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        FrameUtils.readFrame(in);
+        FrameUtils.writeFrame(out, name);
+        FrameUtils.readFrame(in);
+        return socket;
+    }
+
+    private void readLoop(User user) {
+        try {
+            while (true) {
+                ChatMessage message = user.client.receiveMessage();
+                ChatMessage.MessageType type = message.getType();
+                if ((type == ChatMessage.MessageType.TEXT || type == ChatMessage.MessageType.HYBRID_TEXT)
+                        && message.getSequence() > 0 && !"Server".equals(message.getSender())) {
+                    long micros = (System.nanoTime() - message.getSequence()) / 1000;
+                    totalLatency.record(micros);
+                    intervalLatency.record(micros);
+                    delivered.increment();
+                }
+                if (user.slow) {
+                    Thread.sleep(slowMillis);
+                }
+            }
+        } catch (Exception e) {
+            if (!user.leaving && running) {
+                disconnects.increment();
+            }
+            online.remove(user);
+        }
+    }
+
+    // Sends at a fixed rate from randomly picked online users, each message stamped with its scheduled send time
+    private void sendLoop(long end) {
+        long period = (long) (1_000_000_000L / rate);
+        long next = System.nanoTime();
+        while (running && next < end) {
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            List<User> snapshot = online;
+            if (snapshot.isEmpty()) {
+                continue;
+            }
+            User user = snapshot.get(ThreadLocalRandom.current().nextInt(snapshot.size()));
+            try {
+                user.client.sendMessage(buildMessage(user, next));
+                sent.increment();
+            } catch (Exception e) {
+                sendFailures.increment();
+            }
+        }
+    }
+
+    private ChatMessage buildMessage(User sender, long timestamp) {
+        if (!mode.equals("hybrid")) {
+            return new ChatMessage(sender.name, null, sender.room, textPayload, null, ChatMessage.MessageType.TEXT, timestamp);
+        }
+        // The server only routes ciphertexts, so random bytes of the right shape cost it the same as real ones
+        Map<String, byte[]> envelope = new HashMap<>();
+        envelope.put(HybridUtils.BODY_KEY, bodyPayload);
+        for (User user : online) {
+            if (user != sender && Objects.equals(user.room, sender.room)) {
+                envelope.put(user.name, wrappedKeyPayload);
+            }
+        }
+        return new ChatMessage(sender.name, null, sender.room, null, envelope, ChatMessage.MessageType.HYBRID_TEXT, timestamp);
+    }
+
+    // Replaces a random online user with a new one at the churn rate
+    private void churnLoop(long end) {
+        long period = (long) (1_000_000_000L / churn);
+        long next = System.nanoTime();
+        while (running && next < end) {
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!online.isEmpty()) {
+                User user = online.get(ThreadLocalRandom.current().nextInt(online.size()));
+                user.leaving = true;
+                try {
+                    user.client.sendMessage(new ChatMessage(user.name, null, "/disconnect", ChatMessage.MessageType.TEXT));
+                    user.client.close();
+                } catch (IOException ignored) {
+                    // Already gone
+                }
+            }
+            try {
+                join();
+            } catch (Exception e) {
+                report.println("[Load] Join failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // A numeric field of /proc/<pid>/status divided by the given unit, "-" where that is not available
+    private String processStat(String field, long divisor) {
+        if (serverPid < 0) {
+            return "-";
+        }
+        Path status = Paths.get("/proc/" + serverPid + "/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith(field)) {
+                    return Long.toString(Long.parseLong(line.replaceAll("[^0-9]", "")) / divisor);
+                }
+            }
+        } catch (IOException ignored) {
+            // Not on Linux or the process is gone
+        }
+        return "-";
+    }
+
+    // Write syscalls made by the server process so far, -1 where that is not available
+    private long serverWrites() {
+        if (serverPid < 0) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + serverPid + "/io"))) {
+                if (line.startsWith("syscw:")) {
+                    return Long.parseLong(line.substring(6).trim());
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // Not on Linux, the process is gone or belongs to another user
+        }
+        return -1;
+    }
+
+    // TCP segments sent by this host so far, -1 where that is not available
+    private static long tcpSegments() {
+        try {
+            List<String> tcp = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get("/proc/net/snmp"))) {
+                if (line.startsWith("Tcp:")) {
+                    tcp.add(line);
+                }
+            }
+            List<String> names = List.of(tcp.get(0).split("\\s+"));
+            return Long.parseLong(tcp.get(1).split("\\s+")[names.indexOf("OutSegs")]);
+        } catch (IOException | RuntimeException ignored) {
+            return -1;
+        }
+    }
+
+    private static String perMessage(long before, long after, long messages) {
+        return before < 0 || after < 0 || messages == 0 ? "-" : String.format("%.2f", (after - before) / (double) messages);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static Thread startThread(String name, Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("[Load] " + e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.HybridUtils;
+
+/*
+Server egress per chat message when the whole envelope is broadcast to every user versus when each
+user is sent only its own wrapped key plus the shared body. Envelopes have the hybrid shape: a body of
+the given size and one 256-byte RSA-2048 wrapped key per recipient. Bytes are exact binary codec frames.
+
+    java bench.RoutingBenchmark [bodyBytes] [iterations]
+ */
+public class RoutingBenchmark {
+    public static void main(String[] args) throws Exception {
+        int bodyBytes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Random random = new Random(42);
+
+        System.out.printf("%-8s %16s %16s %10s %14s %14s%n", "users", "broadcast B/msg", "routed B/msg", "ratio", "broadcast ms", "routed ms");
+        for (int users : new int[]{10, 100, 1000}) {
+            Map<String, byte[]> entries = new HashMap<>();
+            entries.put(HybridUtils.BODY_KEY, randomBytes(random, bodyBytes));
+            for (int i = 0; i < users; i++) {
+                entries.put("user-" + i, randomBytes(random, 256));
+            }
+            ChatMessage envelope = new ChatMessage("alice", null, entries, ChatMessage.MessageType.HYBRID_TEXT);
+
+            long broadcastBytes = 0, routedBytes = 0, broadcastNanos = 0, routedNanos = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    // Broadcast: the same full envelope is encoded for every connection
+                    broadcastBytes = 0;
+                    for (int i = 0; i < users; i++) {
+                        broadcastBytes += WireCodec.BINARY.encode(envelope).length;
+                    }
+                }
+                broadcastNanos = (System.nanoTime() - start) / iterations;
+
+                start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    routedBytes = 0;
+                    for (int i = 0; i < users; i++) {
+                        String recipient = "user-" + i;
+                        Map<String, byte[]> own = new HashMap<>();
+                        own.put(recipient, entries.get(recipient));
+                        own.put(HybridUtils.BODY_KEY, entries.get(HybridUtils.BODY_KEY));
+                        routedBytes += WireCodec.BINARY.encode(new ChatMessage("alice", recipient, own, envelope.getType())).length;
+                    }
+                }
+                routedNanos = (System.nanoTime() - start) / iterations;
+            }
+            System.out.printf("%-8d %16d %16d %9.0fx %14.2f %14.2f%n", users, broadcastBytes, routedBytes,
+                    (double) broadcastBytes / routedBytes, broadcastNanos / 1e6, routedNanos / 1e6);
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.CryptoSuite;
+import utils.HybridUtils;
+import utils.RSAUtils;
+import utils.SenderKeyUtils;
+
+/*
+Cost of one room message as the room grows, per-message hybrid envelopes against sender keys: encrypting it and
+the size of what the sender uploads, plus for sender keys the one-off hand-off of the chain to every member
+(what a membership change costs) and decrypting as a member. RSA keys, unsigned:
+
+    java bench.SenderKeyBenchmark [messageBytes] [iterations]
+ */
+public class SenderKeyBenchmark {
+    public static void main(String[] args) throws Exception {
+        int messageBytes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int[] memberCounts = {2, 10, 50, 200, 1000};
+        String message = "x".repeat(messageBytes);
+
+        // Members share one key pair, the cost per RSA operation does not depend on which key is used
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        System.out.printf("%8s %14s %12s %14s %12s %14s %14s%n", "members", "hybrid us", "hybrid B",
+                "sender-key us", "sender-key B", "hand-off us", "decrypt us");
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            for (int members : memberCounts) {
+                Map<String, PublicKey> recipients = new HashMap<>();
+                for (int i = 0; i < members; i++) {
+                    recipients.put("user-" + i, keyPair.getPublic());
+                }
+                // Fewer rounds of the per-recipient path for large rooms, it takes milliseconds per message there
+                int hybridIterations = Math.max(3, iterations * 10 / members);
+                long start = System.nanoTime();
+                int hybridBytes = 0;
+                for (int i = 0; i < hybridIterations; i++) {
+                    hybridBytes = frameSize(HybridUtils.encrypt(message, recipients), ChatMessage.MessageType.HYBRID_TEXT);
+                }
+                long hybridMicros = (System.nanoTime() - start) / 1000 / hybridIterations;
+
+                SenderKeyUtils.Chain chain = SenderKeyUtils.Chain.generate();
+                start = System.nanoTime();
+                Map<String, byte[]> handOff = HybridUtils.encrypt(chain.encode(), recipients);
+                long handOffMicros = (System.nanoTime() - start) / 1000;
+                SenderKeyUtils.Chain received = SenderKeyUtils.Chain.decode(HybridUtils.decrypt(handOff, "user-0", keyPair.getPrivate()));
+
+                List<Map<String, byte[]>> envelopes = new ArrayList<>();
+                start = System.nanoTime();
+                int groupBytes = 0;
+                for (int i = 0; i < iterations; i++) {
+                    envelopes.add(SenderKeyUtils.encrypt(chain, message, false, "bench", "room", null));
+                    groupBytes = frameSize(envelopes.get(i), ChatMessage.MessageType.GROUP_TEXT);
+                }
+                long groupMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (!message.equals(SenderKeyUtils.decrypt(received, envelopes.get(i), "bench", "room", CryptoSuite.RSA, null))) {
+                        throw new IllegalStateException("Sender key round trip failed");
+                    }
+                }
+                long decryptMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+                if (!warmup) {
+                    System.out.printf("%8d %14d %12d %14d %12d %14d %14d%n", members, hybridMicros, hybridBytes,
+                            groupMicros, groupBytes, handOffMicros, decryptMicros);
+                }
+            }
+        }
+    }
+
+    private static int frameSize(Map<String, byte[]> envelope, ChatMessage.MessageType type) throws Exception {
+        return WireCodec.BINARY.encode(new ChatMessage("bench", null, envelope, type)).length;
+    }
+}
@@ -0,0 +1,116 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import src.ChatClient;
+import src.ChatMessage;
+import src.ChatServer;
+import src.NioChatServer;
+import src.ServerConfig;
+
+/*
+Pushes millions of messages through one long-lived connection and checks that retained heap stays flat.
+Every frame on the wire is self-contained (see FrameUtils and WireCodec), so neither side keeps a stream
+handle table that pins what it has sent or received. A client, its server connection and the server all run
+in this JVM; after a warm-up the heap is measured after a full GC at every checkpoint, and the run fails
+if it grew by more than the allowed amount.
+
+    java bench.SoakTest [engine] [messages] [maxGrowthKB]
+    java bench.SoakTest threads 2000000 4096
+ */
+public class SoakTest {
+    private static final int WINDOW = 512; // Messages in flight, keeps the outbound queue far from its capacity
+
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "threads";
+        long messages = args.length > 1 ? Long.parseLong(args[1]) : 2_000_000;
+        long maxGrowthKb = args.length > 2 ? Long.parseLong(args[2]) : 4096;
+        long checkpoint = Math.max(1, messages / 10);
+
+        // One client sends as fast as the window allows, far above the default rate limit
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--engine=" + engine, "--max-messages-per-second=0"});
+        int port;
+        if (engine.equals("nio")) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            startDaemon(() -> new NioChatServer(serverChannel, config).start());
+        } else {
+            ServerSocket serverSocket = new ServerSocket(0);
+            port = serverSocket.getLocalPort();
+            startDaemon(() -> new ChatServer(serverSocket, config).start());
+        }
+
+        ChatClient client = new ChatClient();
+        client.start("127.0.0.1", port, "soak");
+        AtomicLong received = new AtomicLong();
+        startDaemon(() -> {
+            while (true) {
+                ChatMessage message = client.receiveMessage();
+                if (message.getType() == ChatMessage.MessageType.TEXT && "soak".equals(message.getSender())) {
+                    received.incrementAndGet();
+                }
+            }
+        });
+
+        long baselineKb = -1;
+        long peakGrowthKb = 0;
+        long start = System.nanoTime();
+        System.out.printf("%10s %12s %12s %10s%n", "messages", "heap KB", "growth KB", "msg/s");
+        for (long sent = 0; sent < messages; ) {
+            // Vary the payload so nothing could be deduplicated by reference
+            client.sendMessage(new ChatMessage("soak", null, "message " + sent + " " + "x".repeat((int) (sent % 200)), ChatMessage.MessageType.TEXT));
+            sent++;
+            while (sent - received.get() > WINDOW) {
+                Thread.onSpinWait();
+            }
+            if (sent % checkpoint == 0) {
+                while (received.get() < sent) {
+                    Thread.onSpinWait();
+                }
+                long heapKb = retainedHeapKb();
+                if (baselineKb < 0) {
+                    // The first checkpoint is the warm-up, caches and JIT have settled by then
+                    baselineKb = heapKb;
+                }
+                peakGrowthKb = Math.max(peakGrowthKb, heapKb - baselineKb);
+                System.out.printf("%10d %12d %12d %10.0f%n", sent, heapKb, heapKb - baselineKb, sent / ((System.nanoTime() - start) / 1e9));
+            }
+        }
+
+        if (peakGrowthKb > maxGrowthKb) {
+            System.out.println("FAIL: retained heap grew by " + peakGrowthKb + " KB over " + messages + " messages (limit " + maxGrowthKb + " KB)");
+            System.exit(1);
+        }
+        System.out.println("PASS: retained heap grew by at most " + peakGrowthKb + " KB over " + messages + " messages (limit " + maxGrowthKb + " KB)");
+        System.exit(0);
+    }
+
+    // Heap in use after a full collection, the best approximation of what is still reachable
+    private static long retainedHeapKb() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void startDaemon(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("[Soak] " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,309 @@
+package bench;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import src.ChatClient;
+import src.ChatMessage;
+import src.MessageStore;
+import utils.HybridUtils;
+import utils.RSAUtils;
+
+/*
+Restart and crash-recovery checks for MessageStore, using nothing but a temporary directory.
+  restart    - records and cursors survive a clean close, a half-finished replay resumes where it stopped
+  torn-write - a record cut off mid-write and trailing garbage are dropped, everything before them is kept
+  lost-sync  - cursors that were never synced are replayed again (at least once), never skipped
+  retention  - delivered segments are deleted, expired ones too, and the pending lists follow
+  server     - a ChatServer in a child JVM stores direct messages for an offline user, is killed with
+               SIGKILL and restarted, and the user receives every message in order when it reconnects
+Prints one line per check and exits non-zero if any of them fails.
+
+    java bench.StoreRecoveryTest [messages]
+ */
+public class StoreRecoveryTest {
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Path root = Files.createTempDirectory("store-recovery");
+        try {
+            restart(root.resolve("restart"), messages);
+            tornWrite(root.resolve("torn-write"), messages);
+            lostSync(root.resolve("lost-sync"), messages);
+            retention(root.resolve("retention"), messages);
+            server(root.resolve("server"), Math.min(messages, 2000));
+        } finally {
+            delete(root);
+        }
+        System.out.println(failures == 0 ? "PASS" : "FAIL: " + failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void restart(Path dir, int messages) throws Exception {
+        MessageStore store = new MessageStore(dir, 256 * 1024, 50, Long.MAX_VALUE);
+        for (int i = 0; i < messages; i++) {
+            store.append(i % 2 == 0 ? "alice" : "bob", message(i));
+        }
+        store.close();
+
+        store = new MessageStore(dir, 256 * 1024, 50, Long.MAX_VALUE);
+        check("restart: records survive a clean close", store.pending("alice") == messages / 2 && store.pending("bob") == messages / 2);
+        // The connection drops after a third of alice's messages
+        List<Long> received = new ArrayList<>();
+        try {
+            store.replay("alice", message -> {
+                if (received.size() == messages / 6) {
+                    throw new IOException("Connection closed");
+                }
+                received.add(message.getSequence());
+            });
+        } catch (IOException e) {
+            if (!e.getMessage().equals("Connection closed")) {
+                throw e;
+            }
+        }
+        store.close();
+
+        store = new MessageStore(dir, 256 * 1024, 50, Long.MAX_VALUE);
+        check("restart: an interrupted replay resumes after the last delivered record", store.pending("alice") == messages / 2 - received.size());
+        long start = System.nanoTime();
+        store.replay("alice", message -> received.add(message.getSequence()));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        check("restart: every record delivered once and in order", inOrder(received, 0, 2, messages / 2));
+        check("restart: other recipients untouched", store.pending("bob") == messages / 2);
+        System.out.printf("           replayed %d records at %.0f records/s%n", messages / 2 - messages / 6, (messages / 2 - messages / 6) / seconds);
+        store.close();
+    }
+
+    private static void tornWrite(Path dir, int messages) throws Exception {
+        // No sync thread activity and no close, as if the process died
+        MessageStore store = new MessageStore(dir, Long.MAX_VALUE, 60000, Long.MAX_VALUE);
+        for (int i = 0; i < messages; i++) {
+            store.append("alice", message(i));
+        }
+        Path segment = lastSegment(dir);
+        long validSize = Files.size(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // A record header promising more bytes than made it to disk, followed by garbage
+            file.seek(validSize);
+            file.writeInt(4096);
+            file.writeInt(0);
+            file.write(new byte[100]);
+        }
+        MessageStore recovered = new MessageStore(dir, Long.MAX_VALUE, 50, Long.MAX_VALUE);
+        check("torn-write: every complete record recovered", recovered.pending("alice") == messages);
+        check("torn-write: the torn tail is truncated", Files.size(segment) == validSize);
+        recovered.append("alice", message(messages));
+        List<Long> received = new ArrayList<>();
+        recovered.replay("alice", message -> received.add(message.getSequence()));
+        check("torn-write: appends after recovery follow the last good record", inOrder(received, 0, 1, messages + 1));
+        recovered.close();
+
+        // A flipped bit inside the last record fails its checksum, so only that record is lost
+        MessageStore corrupt = new MessageStore(dir.resolve("crc"), Long.MAX_VALUE, 60000, Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            corrupt.append("alice", message(i));
+        }
+        segment = lastSegment(dir.resolve("crc"));
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+        }
+        corrupt = new MessageStore(dir.resolve("crc"), Long.MAX_VALUE, 50, Long.MAX_VALUE);
+        check("torn-write: a record with a bad checksum is dropped", corrupt.pending("alice") == 9);
+        corrupt.close();
+    }
+
+    private static void lostSync(Path dir, int messages) throws Exception {
+        MessageStore store = new MessageStore(dir, 256 * 1024, 60000, Long.MAX_VALUE);
+        for (int i = 0; i < messages; i++) {
+            store.append("alice", message(i));
+        }
+        store.sync();
+        int[] delivered = {0};
+        try {
+            store.replay("alice", message -> {
+                if (delivered[0] == messages / 2) {
+                    throw new IOException("Connection closed");
+                }
+                delivered[0]++;
+            });
+        } catch (IOException e) {
+            if (!e.getMessage().equals("Connection closed")) {
+                throw e;
+            }
+        }
+        // Crash before the next sync: the cursor is lost, so the records are delivered again rather than skipped
+        MessageStore recovered = new MessageStore(dir, 256 * 1024, 50, Long.MAX_VALUE);
+        check("lost-sync: unsynced cursors replay again", recovered.pending("alice") == messages);
+        recovered.close();
+    }
+
+    private static void retention(Path dir, int messages) throws Exception {
+        MessageStore store = new MessageStore(dir, 64 * 1024, 50, Long.MAX_VALUE);
+        for (int i = 0; i < messages; i++) {
+            store.append("alice", message(i));
+        }
+        long segments = segmentCount(dir);
+        store.replay("alice", message -> {});
+        store.deleteSegments();
+        check("retention: delivered segments deleted (" + segments + " -> " + segmentCount(dir) + ")", segmentCount(dir) == 1);
+        store.close();
+
+        Path expiring = dir.resolve("expiring");
+        store = new MessageStore(expiring, 64 * 1024, 50, 0);
+        for (int i = 0; i < messages; i++) {
+            store.append("bob", message(i));
+        }
+        Thread.sleep(5);
+        store.deleteSegments();
+        int left = store.pending("bob");
+        List<Long> received = new ArrayList<>();
+        store.replay("bob", message -> received.add(message.getSequence()));
+        check("retention: expired segments deleted with their records", segmentCount(expiring) == 1 && left < messages
+                && received.size() == left && inOrder(received, messages - left, 1, left));
+        store.close();
+    }
+
+    private static void server(Path dir, int messages) throws Exception {
+        KeyPair aliceKeys = RSAUtils.generateRSAKeyPair(2048);
+        KeyPair bobKeys = RSAUtils.generateRSAKeyPair(2048);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Process server = startServer(dir, port);
+
+        // bob is known to the server but offline
+        ChatClient bob = new ChatClient(bobKeys);
+        bob.start("127.0.0.1", port, "bob");
+        bob.sendMessage(new ChatMessage("bob", null, "/disconnect", ChatMessage.MessageType.TEXT));
+        bob.close();
+        Thread.sleep(200);
+
+        ChatClient alice = new ChatClient(aliceKeys);
+        alice.start("127.0.0.1", port, "alice");
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    alice.receiveMessage();
+                }
+            } catch (Exception ignored) {}
+        });
+        reader.setDaemon(true);
+        reader.start();
+        for (int i = 0; i < messages; i++) {
+            Map<String, byte[]> envelope = HybridUtils.encrypt("message " + i, Map.of("bob", bobKeys.getPublic()));
+            alice.sendMessage(new ChatMessage("alice", "bob", null, envelope, ChatMessage.MessageType.HYBRID_TEXT, i));
+        }
+        // Let the server read everything and the sync thread pass once, then pull the plug
+        Thread.sleep(1000);
+        server.destroyForcibly().waitFor();
+        alice.close();
+
+        server = startServer(dir, port);
+        try {
+            bob = new ChatClient(bobKeys);
+            long start = System.nanoTime();
+            bob.start("127.0.0.1", port, "bob");
+            List<Long> received = new ArrayList<>();
+            boolean decrypted = true;
+            while (received.size() < messages) {
+                ChatMessage message = bob.receiveMessage(10000);
+                if (message.getType() == ChatMessage.MessageType.HYBRID_TEXT) {
+                    received.add(message.getSequence());
+                    decrypted &= ("message " + message.getSequence()).equals(HybridUtils.decrypt(message.getEntries(), "bob", bobKeys.getPrivate()));
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            check("server: every message survives a SIGKILL and arrives in order", inOrder(received, 0, 1, messages));
+            check("server: replayed envelopes decrypt", decrypted);
+            System.out.printf("           reconnect, replay and decryption of %d messages took %.0f ms%n", messages, seconds * 1000);
+            bob.close();
+        } catch (Exception e) {
+            check("server: replay after restart (" + e + ")", false);
+        } finally {
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    private static Process startServer(Path dir, int port) throws Exception {
+        List<String> command = List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "src.ChatServer", "--port=" + port, "--store-dir=" + dir,
+                "--max-messages-per-second=0");
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return process;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    process.destroy();
+                    throw new IOException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static ChatMessage message(long sequence) {
+        return new ChatMessage("alice", null, null, Map.of("alice", new byte[256]), ChatMessage.MessageType.HYBRID_TEXT, sequence);
+    }
+
+    // True if the sequences are first, first + step, ... with count entries
+    private static boolean inOrder(List<Long> sequences, long first, long step, int count) {
+        if (sequences.size() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (sequences.get(i) != first + i * step) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "  ok       " : "  FAILED   ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    private static Path lastSegment(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".log")).max(Comparator.naturalOrder()).orElseThrow();
+        }
+    }
+
+    private static long segmentCount(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
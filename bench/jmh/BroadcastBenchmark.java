@@ -0,0 +1,205 @@
+package bench.jmh;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import src.ChatMessage;
+import src.ChatServer;
+import src.NioChatServer;
+import src.ServerConfig;
+import utils.FrameUtils;
+import utils.RSAUtils;
+
+/*
+Fan-out of one chat message by an in-process server to every registered client over loopback.
+One operation is a client sending a TEXT message until all clients (the sender included) have received
+the broadcast frame. Clients are drained by a single selector thread that only counts frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    int clients;
+
+    @Param({"threads", "nio"})
+    String engine;
+
+    private final Object progress = new Object();
+    private long delivered; // Frames received over all clients, guarded by progress
+    private long target;
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private Selector selector;
+    private Thread drainThread;
+    private ByteBuffer frame;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // bench-0 sends as fast as the broadcasts complete, far above the default rate limit
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--engine=" + engine, "--max-messages-per-second=0"});
+        int port;
+        if (engine.equals("threads")) {
+            ServerSocket serverSocket = new ServerSocket(0, 4096);
+            port = serverSocket.getLocalPort();
+            startDaemon(() -> new ChatServer(serverSocket, config).start());
+        } else {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+            port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            NioChatServer server = new NioChatServer(serverChannel, config);
+            startDaemon(server::start);
+        }
+
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        selector = Selector.open();
+        drainThread = startDaemon(this::drain);
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            FrameUtils.readFrame(in);
+            FrameUtils.writeFrame(out, "bench-" + i);
+            FrameUtils.readFrame(in);
+            FrameUtils.writeFrame(out, new ChatMessage("bench-" + i, keyPair.getPublic()));
+            FrameUtils.readFrame(in);
+            channel.configureBlocking(false);
+            channels.add(channel);
+            channel.register(selector, SelectionKey.OP_READ, new FrameCounter());
+            selector.wakeup();
+        }
+        frame = ByteBuffer.wrap(FrameUtils.encode(new ChatMessage("bench-0", null, "Hello everyone, how is it going?", ChatMessage.MessageType.TEXT)));
+
+        // Let the join notices and key directory deltas of the setup drain before measuring
+        long last = -1;
+        while (true) {
+            Thread.sleep(500);
+            synchronized (progress) {
+                if (delivered == last) {
+                    break;
+                }
+                last = delivered;
+            }
+        }
+    }
+
+    @Benchmark
+    public long broadcast() throws Exception {
+        synchronized (progress) {
+            target = delivered + clients;
+        }
+        frame.rewind();
+        SocketChannel sender = channels.get(0);
+        while (frame.hasRemaining()) {
+            sender.write(frame);
+        }
+        synchronized (progress) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (delivered < target) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Broadcast reached only " + (clients - (target - delivered)) + " of " + clients + " clients");
+                }
+                progress.wait(wait);
+            }
+            return delivered;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        drainThread.interrupt();
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+    }
+
+    private void drain() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (!Thread.currentThread().isInterrupted()) {
+            selector.select();
+            int frames = 0;
+            for (SelectionKey key : selector.selectedKeys()) {
+                buffer.clear();
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                buffer.flip();
+                frames += ((FrameCounter) key.attachment()).count(buffer);
+            }
+            selector.selectedKeys().clear();
+            if (frames > 0) {
+                synchronized (progress) {
+                    delivered += frames;
+                    if (delivered >= target) {
+                        progress.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    // Tracks the frame boundaries of one connection's byte stream
+    private static class FrameCounter {
+        private int headerBytes; // Bytes of the current length prefix seen so far
+        private int length;
+        private int remaining; // Payload bytes of the current frame still to come
+
+        int count(ByteBuffer data) {
+            int frames = 0;
+            while (data.hasRemaining()) {
+                if (remaining > 0) {
+                    int skip = Math.min(remaining, data.remaining());
+                    data.position(data.position() + skip);
+                    remaining -= skip;
+                    if (remaining == 0) {
+                        frames++;
+                    }
+                } else {
+                    length = (length << 8) | (data.get() & 0xFF);
+                    if (++headerBytes == FrameUtils.HEADER_SIZE) {
+                        remaining = length;
+                        headerBytes = 0;
+                        length = 0;
+                        if (remaining == 0) {
+                            frames++;
+                        }
+                    }
+                }
+            }
+            return frames;
+        }
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static Thread startDaemon(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                if (!(e instanceof ClosedSelectorException)) {
+                    System.err.println("[Bench] " + e);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
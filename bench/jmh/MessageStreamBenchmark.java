@@ -0,0 +1,72 @@
+package bench.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import src.ChatMessage;
+import src.WireCodec;
+import utils.HybridUtils;
+import utils.RSAUtils;
+
+// A ChatMessage written as a frame to a stream and read back, per codec and message shape
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageStreamBenchmark {
+    @Param({"JAVA", "BINARY"})
+    WireCodec codec;
+
+    // text: a plain chat line, publicKey: the key upload, envelope: a hybrid message for 100 recipients
+    @Param({"text", "publicKey", "envelope"})
+    String shape;
+
+    private ChatMessage message;
+    private ByteArrayOutputStream buffer;
+    private DataOutputStream out;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        switch (shape) {
+            case "text":
+                message = new ChatMessage("alice", null, "Hello everyone, how is it going?", ChatMessage.MessageType.TEXT);
+                break;
+            case "publicKey":
+                message = new ChatMessage("alice", keyPair.getPublic());
+                break;
+            default:
+                Random random = new Random(42);
+                Map<String, byte[]> entries = new HashMap<>();
+                byte[] body = new byte[200];
+                random.nextBytes(body);
+                entries.put(HybridUtils.BODY_KEY, body);
+                for (int i = 0; i < 100; i++) {
+                    byte[] wrapped = new byte[256];
+                    random.nextBytes(wrapped);
+                    entries.put("user-" + i, wrapped);
+                }
+                message = new ChatMessage("alice", null, entries, ChatMessage.MessageType.HYBRID_TEXT);
+        }
+        buffer = new ByteArrayOutputStream();
+        out = new DataOutputStream(buffer);
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        buffer.reset();
+        codec.writeFrame(out, message);
+        out.flush();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        return WireCodec.readFrame(in);
+    }
+}
@@ -0,0 +1,42 @@
+package bench.jmh;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import utils.RSAUtils;
+
+// RSAUtils chunked encryption and decryption across message and key sizes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RsaBenchmark {
+    @Param({"16", "245", "1024", "4096"})
+    int messageBytes;
+
+    @Param({"1024", "2048", "4096"})
+    int keySize;
+
+    private KeyPair keyPair;
+    private String message;
+    private String encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        keyPair = RSAUtils.generateRSAKeyPair(keySize);
+        message = "x".repeat(messageBytes);
+        encrypted = RSAUtils.encrypt(message, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return RSAUtils.encrypt(message, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return RSAUtils.decrypt(encrypted, keyPair.getPrivate());
+    }
+}
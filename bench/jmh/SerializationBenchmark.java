@@ -0,0 +1,46 @@
+package bench.jmh;
+
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import utils.RSAUtils;
+import utils.SerializationUtils;
+
+// SerializationUtils over username -> Base64 public key maps, the shape the legacy key map had
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int keys;
+
+    private Map<String, String> map;
+    private String serialized;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPair keyPair = RSAUtils.generateRSAKeyPair(2048);
+        String encodedKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        map = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            map.put("user-" + i, encodedKey);
+        }
+        serialized = SerializationUtils.serialize(map);
+    }
+
+    @Benchmark
+    public String serialize() throws Exception {
+        return SerializationUtils.serialize(map);
+    }
+
+    @Benchmark
+    public Map<String, String> deserialize() throws Exception {
+        return SerializationUtils.deserialize(serialized);
+    }
+}
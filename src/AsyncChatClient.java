@@ -0,0 +1,361 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import utils.RSAUtils;
+import utils.SerializationUtils;
+
+/*
+Callback-driven wrapper around a started ChatClient, for embedding many sessions in one JVM. A reader thread per
+session only reads frames; decrypting envelopes, parsing key maps and handling file chunks run on a shared,
+bounded worker pool, and the results are delivered as Events to listeners and Flow subscribers. Work is spread
+over lanes by sender and each lane runs one task at a time, so messages from one sender are handled and delivered
+in the order they arrived while different senders proceed in parallel. Key updates are a barrier across the lanes:
+the reader waits for the workers to finish what came before and applies them itself, so a message is always
+decrypted against the keys the server had sent before it, and one from a sender whose key has not arrived is
+refused rather than read unchecked. At most MAX_PENDING received messages wait for the workers, beyond that the
+reader stops reading and TCP slows the server down. Sends return futures and run in call order on a lane of their
+own. A dropped connection is resumed or logged in again with backoff.
+ */
+public class AsyncChatClient implements Flow.Publisher<AsyncChatClient.Event>, AutoCloseable {
+    private static final int LANES = 16;
+    private static final int MAX_PENDING = 1024;
+    // How long a lane keeps its worker before going to the back of the pool's queue: cheap messages such as notices
+    // are handled together, while a lane of slow decryptions gives way after each one
+    private static final long LANE_SLICE_NANOS = 1_000_000;
+    // Reconnect attempts after the connection drops, waiting 1, 2, 4... seconds in between
+    private static final int RECONNECT_ATTEMPTS = 6;
+    private static volatile ExecutorService sharedWorkers;
+
+    // What a received message amounts to once the workers have handled it
+    public static class Event {
+        public enum Kind {
+            MESSAGE,    // A chat message for this user, text holds the plaintext
+            NOTICE,     // A notice from the server
+            KEYS,       // A key map was updated from message
+            FILE,       // A file transfer started, completed or failed, text says which
+            CONNECTION  // The connection was lost, resumed or logged in again; message is null
+        }
+
+        public final Kind kind;
+        public final ChatMessage message;
+        public final String text;
+
+        Event(Kind kind, ChatMessage message, String text) {
+            this.kind = kind;
+            this.message = message;
+            this.text = text;
+        }
+    }
+
+    private final ChatClient client;
+    private final Executor workers;
+    private final ThreadFactory readers;
+    private final Path downloads;
+    private final Lane[] lanes = new Lane[LANES];
+    private final Lane outgoing;
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    private final List<Consumer<Event>> listeners = new CopyOnWriteArrayList<>();
+    private final SubmissionPublisher<Event> publisher = new SubmissionPublisher<>();
+    private volatile boolean closed;
+
+    // Runs on a pool shared by every session created this way, one worker per core, and reads on virtual threads
+    public AsyncChatClient(ChatClient client, Path downloads) {
+        this(client, Thread.ofVirtual().factory(), downloads);
+    }
+
+    public AsyncChatClient(ChatClient client, ThreadFactory readers, Path downloads) {
+        this(client, sharedWorkers(), readers, downloads);
+    }
+
+    public AsyncChatClient(ChatClient client, Executor workers, ThreadFactory readers, Path downloads) {
+        this.client = client;
+        this.workers = workers;
+        this.readers = readers;
+        this.downloads = downloads;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(workers);
+        }
+        this.outgoing = new Lane(workers);
+    }
+
+    private static ExecutorService sharedWorkers() {
+        if (sharedWorkers == null) {
+            synchronized (AsyncChatClient.class) {
+                if (sharedWorkers == null) {
+                    sharedWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                        Thread thread = new Thread(task, "chat-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return sharedWorkers;
+    }
+
+    // Listeners run on a worker, in arrival order for each sender, and on the reader for key updates; they should hand
+    // slow work elsewhere
+    public void addListener(Consumer<Event> listener) {
+        listeners.add(listener);
+    }
+
+    // Subscribers are fed through the publisher's own executor and may request at their own pace. One that falls a
+    // whole buffer behind misses events rather than holding up the workers
+    @Override
+    public void subscribe(Flow.Subscriber<? super Event> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    // Starts the reader, call once listeners and subscribers are in place
+    public void start() {
+        readers.newThread(this::readLoop).start();
+    }
+
+    public ChatClient getClient() {
+        return client;
+    }
+
+    private void readLoop() {
+        while (!closed) {
+            try {
+                ChatMessage msg = client.receiveMessage();
+                if (isKeyUpdate(msg)) {
+                    // Every permit is back once the lanes have handled all messages read before this one
+                    pending.acquire(MAX_PENDING);
+                    try {
+                        handle(msg);
+                    } finally {
+                        pending.release(MAX_PENDING);
+                    }
+                    continue;
+                }
+                pending.acquire();
+                lanes[(msg.getSender() != null ? msg.getSender().hashCode() & 0x7fffffff : 0) % LANES].execute(() -> {
+                    try {
+                        handle(msg);
+                    } finally {
+                        pending.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                break;
+            } catch (GeneralSecurityException e) {
+                publish(new Event(Event.Kind.CONNECTION, null, "[!] " + e.getMessage()));
+                break;
+            } catch (Exception e) {
+                if (closed) {
+                    break;
+                }
+                publish(new Event(Event.Kind.CONNECTION, null, "[!] Connection lost: " + e.getMessage()));
+                if (!reconnect()) {
+                    break;
+                }
+            }
+        }
+        // Lets the lanes deliver what was read before closing the publisher under them
+        pending.acquireUninterruptibly(MAX_PENDING);
+        publisher.close();
+    }
+
+    private static boolean isKeyUpdate(ChatMessage msg) {
+        switch (msg.getType()) {
+            case PUBLIC_KEY_MAP:
+            case KEY_ADDED:
+            case KEY_REMOVED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean reconnect() {
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !closed; attempt++) {
+            try {
+                Thread.sleep(1000L << attempt);
+                if (closed) {
+                    return false;
+                }
+                publish(new Event(Event.Kind.CONNECTION, null, client.reconnect() ? "[*] Reconnected, nothing was missed."
+                        : "[*] Reconnected with a new session, messages sent while you were away may be missing."));
+                return true;
+            } catch (InterruptedException | GeneralSecurityException e) {
+                return false;
+            } catch (Exception e) {
+                publish(new Event(Event.Kind.CONNECTION, null, "[!] Reconnect failed: " + e.getMessage()));
+            }
+        }
+        return false;
+    }
+
+    // Runs on a worker, or on the reader for key updates: decrypts, applies key updates and file chunks, then tells
+    // the listeners
+    private void handle(ChatMessage msg) {
+        Event event;
+        try {
+            event = decode(msg);
+        } catch (Exception e) {
+            event = new Event(Event.Kind.NOTICE, msg, "[!] Could not handle a message from " + msg.getSender() + ": " + e.getMessage());
+        }
+        if (event != null) {
+            publish(event);
+        }
+    }
+
+    private Event decode(ChatMessage msg) throws Exception {
+        switch (msg.getType()) {
+            case HYBRID_TEXT: {
+                String text = client.decrypt(msg);
+                return text != null ? new Event(Event.Kind.MESSAGE, msg, text) : null;
+            }
+            case GROUP_TEXT:
+                return new Event(Event.Kind.MESSAGE, msg, client.decryptGroup(msg));
+            case SENDER_KEY:
+                // Handled on the sender's lane like its messages, so the chain is in place before the next one
+                client.applySenderKey(msg);
+                return null;
+            case ENCRYPTED_TEXT: {
+                Map<String, String> encryptedMap = SerializationUtils.deserialize(msg.getMessage());
+                String encrypted = encryptedMap.get(client.getUsername());
+                return encrypted != null ? new Event(Event.Kind.MESSAGE, msg, RSAUtils.decrypt(encrypted, client.getPrivateKey())) : null;
+            }
+            case TEXT:
+                return new Event("Server".equals(msg.getSender()) ? Event.Kind.NOTICE : Event.Kind.MESSAGE, msg, msg.getMessage());
+            case PUBLIC_KEY_MAP:
+            case KEY_ADDED:
+            case KEY_REMOVED:
+                return client.applyKeyUpdate(msg) ? new Event(Event.Kind.KEYS, msg, null) : null;
+            case FILE_OFFER:
+            case FILE_CHUNK:
+            case FILE_ACK:
+            case FILE_CANCEL: {
+                String notice = client.applyFileMessage(msg, downloads);
+                return notice != null ? new Event(Event.Kind.FILE, msg, notice) : null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private void publish(Event event) {
+        for (Consumer<Event> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                System.err.println("[!] Listener failed: " + e);
+            }
+        }
+        if (publisher.hasSubscribers()) {
+            // Dropped for a subscriber whose buffer is full, submit would block the worker until it caught up
+            publisher.offer(event, (subscriber, dropped) -> false);
+        }
+    }
+
+    public CompletableFuture<Void> send(ChatMessage message) {
+        return outgoing.submit(() -> client.sendMessage(message));
+    }
+
+    // Encrypts a text for the members of the current room with the client's sender key (see ChatClient.sendRoomText).
+    // The room is taken now, the members when it is encrypted
+    public CompletableFuture<Void> sendText(String text, boolean compress) {
+        String room = client.getCurrentRoom();
+        return outgoing.submit(() -> client.sendRoomText(room, text, compress));
+    }
+
+    // Encrypts a text for one user only, who must share a room with this client
+    public CompletableFuture<Void> sendDirect(String recipient, String text, boolean compress) {
+        return outgoing.submit(() -> {
+            PublicKey key = client.getPublicKey(recipient);
+            if (key == null) {
+                throw new IOException("[!] You share no room with " + recipient + ".");
+            }
+            client.sendMessage(new ChatMessage(client.getUsername(), recipient,
+                    client.encrypt(text, Map.of(recipient, key), compress), ChatMessage.MessageType.HYBRID_TEXT));
+        });
+    }
+
+    // Says goodbye to the server after everything sent before, the connection is not reconnected afterwards
+    public CompletableFuture<Void> disconnect() {
+        closed = true;
+        return send(new ChatMessage(client.getUsername(), null, "/disconnect", ChatMessage.MessageType.TEXT));
+    }
+
+    // Stops reconnecting and closes the connection, messages already read are still delivered
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        client.close();
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    // Runs its tasks one at a time, in order, on whichever worker is free
+    private static class Lane implements Runnable {
+        private final Executor executor;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(Executor executor) {
+            this.executor = executor;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        CompletableFuture<Void> submit(Task task) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            execute(() -> {
+                try {
+                    task.run();
+                    future.complete(null);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+            return future;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                    if (System.nanoTime() - start >= LANE_SLICE_NANOS) {
+                        break;
+                    }
+                }
+            } finally {
+                // Also after a task failed, or the lane would stay scheduled with nobody to run it
+                scheduled.set(false);
+                // A task added after the last poll saw the lane still scheduled, so it is picked up here
+                if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    executor.execute(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import utils.CryptoEngine;
+import utils.FrameUtils;
+
+/*
+Compact binary encoding of the objects sent on the wire, as an alternative to Java serialization.
+
+    payload   := version:u8 tag:u8 body
+    tag       := 0xFF for a bare String (the username during the handshake), otherwise the MessageType ordinal
+    String    := length:varint utf8-bytes
+    message   := fields:u8 [sender:String] [recipient:String] [message:String]
+                 [keyAlgorithm:String keyBytes:bytes] [count:varint (name:String value:bytes)*] [sequence:varlong]
+                 [room:String]
+    bytes     := length:varint raw-bytes
+
+Ciphertexts and public keys are written as raw bytes, no Base64. The version byte can never start a Java
+serialization stream (those start with 0xAC), which is how a receiver tells the two apart.
+MessageType constants must only ever be appended, their ordinal is part of this format.
+ */
+public class BinaryCodec {
+    public static final byte VERSION = 1;
+    private static final byte TAG_STRING = (byte) 0xFF;
+
+    private static final int HAS_SENDER = 1;
+    private static final int HAS_RECIPIENT = 1 << 1;
+    private static final int HAS_MESSAGE = 1 << 2;
+    private static final int HAS_PUBLIC_KEY = 1 << 3;
+    private static final int HAS_ENTRIES = 1 << 4;
+    private static final int HAS_SEQUENCE = 1 << 5;
+    private static final int HAS_ROOM = 1 << 6; // Written last, so frames without a room look exactly as before
+
+    // Encodes a String or ChatMessage into a complete frame (length prefix included)
+    public static byte[] encode(Object obj) throws IOException {
+        Output out = new Output();
+        out.write(new byte[FrameUtils.HEADER_SIZE]);
+        out.write(VERSION);
+        if (obj instanceof String) {
+            out.write(TAG_STRING);
+            out.writeString((String) obj);
+        } else if (obj instanceof ChatMessage) {
+            writeMessage(out, (ChatMessage) obj);
+        } else {
+            throw new IOException("Cannot encode " + (obj == null ? "null" : obj.getClass().getName()));
+        }
+        byte[] frame = out.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - FrameUtils.HEADER_SIZE);
+        return frame;
+    }
+
+    // Decodes the payload of a frame (without its length prefix)
+    public static Object decode(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new StreamCorruptedException("Unsupported codec version: " + version);
+            }
+            byte tag = in.get();
+            Object obj = tag == TAG_STRING ? readString(in) : readMessage(in, tag);
+            if (in.hasRemaining()) {
+                throw new StreamCorruptedException("Trailing bytes in frame");
+            }
+            return obj;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Malformed frame: " + e);
+        }
+    }
+
+    private static void writeMessage(Output out, ChatMessage msg) throws IOException {
+        out.write(msg.getType().ordinal());
+        int fields = (msg.getSender() != null ? HAS_SENDER : 0)
+                | (msg.getRecipient() != null ? HAS_RECIPIENT : 0)
+                | (msg.getMessage() != null ? HAS_MESSAGE : 0)
+                | (msg.getPublicKey() != null ? HAS_PUBLIC_KEY : 0)
+                | (msg.getEntries() != null ? HAS_ENTRIES : 0)
+                | (msg.getSequence() != 0 ? HAS_SEQUENCE : 0)
+                | (msg.getRoom() != null ? HAS_ROOM : 0);
+        out.write(fields);
+        if (msg.getSender() != null) {
+            out.writeString(msg.getSender());
+        }
+        if (msg.getRecipient() != null) {
+            out.writeString(msg.getRecipient());
+        }
+        if (msg.getMessage() != null) {
+            out.writeString(msg.getMessage());
+        }
+        if (msg.getPublicKey() != null) {
+            out.writeString(msg.getPublicKey().getAlgorithm());
+            out.writeField(msg.getPublicKey().getEncoded());
+        }
+        if (msg.getEntries() != null) {
+            out.writeVarInt(msg.getEntries().size());
+            for (Map.Entry<String, byte[]> entry : msg.getEntries().entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeField(entry.getValue());
+            }
+        }
+        if (msg.getSequence() != 0) {
+            out.writeVarLong(msg.getSequence());
+        }
+        if (msg.getRoom() != null) {
+            out.writeString(msg.getRoom());
+        }
+    }
+
+    private static ChatMessage readMessage(ByteBuffer in, byte tag) throws IOException {
+        ChatMessage.MessageType[] types = ChatMessage.MessageType.values();
+        if (tag < 0 || tag >= types.length) {
+            throw new StreamCorruptedException("Unknown message type: " + tag);
+        }
+        ChatMessage.MessageType type = types[tag];
+        int fields = in.get();
+        String sender = (fields & HAS_SENDER) != 0 ? readString(in) : null;
+        String recipient = (fields & HAS_RECIPIENT) != 0 ? readString(in) : null;
+        String message = (fields & HAS_MESSAGE) != 0 ? readString(in) : null;
+        PublicKey publicKey = null;
+        if ((fields & HAS_PUBLIC_KEY) != 0) {
+            String algorithm = readString(in);
+            byte[] encoded = readBytes(in);
+            try {
+                publicKey = CryptoEngine.decodePublicKey(algorithm, encoded);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Invalid public key in frame", e);
+            }
+        }
+        Map<String, byte[]> entries = null;
+        if ((fields & HAS_ENTRIES) != 0) {
+            int count = readVarInt(in);
+            entries = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                entries.put(readString(in), readBytes(in));
+            }
+        }
+        if (publicKey != null) {
+            return new ChatMessage(sender, publicKey, entries);
+        }
+        long sequence = (fields & HAS_SEQUENCE) != 0 ? readVarLong(in) : 0;
+        String room = (fields & HAS_ROOM) != 0 ? readString(in) : null;
+        return new ChatMessage(sender, recipient, room, message, entries, type, sequence);
+    }
+
+    // Unsigned LEB128: 7 bits per byte, high bit set on every byte but the last
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new StreamCorruptedException("Invalid field length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new StreamCorruptedException("Invalid string length: " + length);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    // Byte buffer with the primitive writers used by the codec
+    static class Output extends ByteArrayOutputStream {
+        Output() {
+            super(256);
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeField(byte[] bytes) {
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeString(String s) {
+            writeField(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -2,27 +2,145 @@ package src;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
-import utils.RSAUtils;
-import utils.SerializationUtils;
-import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.AEADBadTagException;
+import utils.CryptoEngine;
+import utils.CryptoSuite;
+import utils.EcUtils;
+import utils.HybridUtils;
+import utils.KeyStoreUtils;
+import utils.SenderKeyUtils;
 
 public class ChatClient {
+    // Frames received between two SESSION_ACKs, well below the history the server keeps for a resume
+    private static final int ACK_INTERVAL = 32;
+
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private WireCodec codec = WireCodec.JAVA;
     private String username;
-    private KeyPair keyPair;
-    private Map<String, PublicKey> publicKeys;
+    private String host;
+    private int port;
+    // Session the server lets this client resume after a dropped connection, null if it does not offer one.
+    // Frames received on the current connection are counted so a resume can say where it left off
+    private volatile String resumeToken;
+    private long framesReceived;
+    private long framesAcknowledged;
+    private int soTimeout; // Read timeout the socket is set to, changed only when a call asks for another one
+    private Set<CryptoSuite> serverSuites = EnumSet.of(CryptoSuite.RSA); // Suites the server accepts keys of
+    // Loaded or generated on a background thread while the connection and username handshake go on,
+    // start() only waits for them at the PUBLIC_KEY step. The key messages are encrypted for, then for an EC
+    // client the identity key it signs with
+    private final FutureTask<KeyPair[]> keyPairs;
+    // Key map of every room the client is in, and the epoch of the last update applied to each (guarded by keyLock)
+    private final Map<String, Map<String, PublicKey>> roomKeys = new ConcurrentHashMap<>();
+    // Ed25519 identity keys of the EC users in those rooms, their messages must be signed with them
+    private final Map<String, PublicKey> identityKeys = new ConcurrentHashMap<>();
+    private final Map<String, Long> keyEpochs = new HashMap<>();
+    // Members of each room that do not read sender key messages, they are sent HYBRID_TEXT envelopes (guarded by keyLock)
+    private final Map<String, Set<String>> pairwiseMembers = new ConcurrentHashMap<>();
+    // This client's sender key chain in each room it spoke in, with the keys of the members it was handed to
+    // (guarded by senderLock), and the chains other members handed this client, by room and sender
+    private final Map<String, OwnChain> ownChains = new HashMap<>();
+    private final Map<String, SenderKeyUtils.Chain> receivedChains = new ConcurrentHashMap<>();
+    private volatile String currentRoom = Room.LOBBY; // Room that getPublicKeys and new messages refer to
+    // Locks instead of monitors around socket writes, key updates and sender key chains, so the client can run on
+    // virtual threads without pinning. keyLock is taken before senderLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock keyLock = new ReentrantLock();
+    private final ReentrantLock senderLock = new ReentrantLock();
+    // File transfers in progress: uploads by transfer id, downloads by sender and transfer id
+    private final Map<String, FileTransfer.Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, FileTransfer.Download> downloads = new ConcurrentHashMap<>();
 
+    // Generates an RSA key pair that is thrown away on exit
     public ChatClient() {
-        publicKeys = new HashMap<>();
+        this(CryptoSuite.RSA);
+    }
+
+    public ChatClient(CryptoSuite suite) {
+        this(null, null, suite);
+    }
+
+    public ChatClient(Path keyStore, char[] password) {
+        this(keyStore, password, CryptoSuite.RSA);
+    }
+
+    /*
+    Uses the key pairs saved in keyStore, unlocked with password, or generates those of suite and saves them there
+    if the file does not exist yet. An existing key store keeps the suite it was created with. With a null keyStore
+    the generated keys are not saved. Nothing blocks here: the key store is read or the keys generated on a
+    background thread.
+     */
+    public ChatClient(Path keyStore, char[] password, CryptoSuite suite) {
+        char[] passwordCopy = password != null ? password.clone() : null;
+        keyPairs = new FutureTask<>(() -> {
+            try {
+                if (keyStore != null && Files.exists(keyStore)) {
+                    return KeyStoreUtils.load(keyStore, passwordCopy);
+                }
+                KeyPair[] generated = suite.generateKeyPairs();
+                if (keyStore != null) {
+                    KeyStoreUtils.save(keyStore, generated, passwordCopy);
+                }
+                return generated;
+            } finally {
+                if (passwordCopy != null) {
+                    Arrays.fill(passwordCopy, '\0');
+                }
+            }
+        });
+        Thread loader = new Thread(keyPairs, "key-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    // Uses an existing key pair instead of generating one, e.g. for many simulated users in a load test
+    public ChatClient(KeyPair keyPair) {
+        this(keyPair, null);
+    }
+
+    // Same for an EC client: its X25519 key pair and its Ed25519 identity key pair
+    public ChatClient(KeyPair keyPair, KeyPair identityKeyPair) {
+        KeyPair[] keys = identityKeyPair != null ? new KeyPair[]{keyPair, identityKeyPair} : new KeyPair[]{keyPair};
+        this.keyPairs = new FutureTask<>(() -> keys);
+        this.keyPairs.run();
+    }
+
+    // Waits for the background thread to load or generate the key pair
+    private KeyPair keyPair() throws GeneralSecurityException {
+        return keyPairs()[0];
+    }
+
+    // The Ed25519 key pair the client signs its messages with, null for an RSA client
+    private KeyPair identityKeyPair() throws GeneralSecurityException {
+        KeyPair[] keys = keyPairs();
+        return keys.length > 1 ? keys[1] : null;
+    }
+
+    private KeyPair[] keyPairs() throws GeneralSecurityException {
         try {
-            keyPair = RSAUtils.generateRSAKeyPair(2048);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Failed to generate RSA key pair", e);
+            return keyPairs.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while waiting for the key pair", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AEADBadTagException) {
+                throw new GeneralSecurityException("[!] Could not unlock the key store, wrong password?", e.getCause());
+            }
+            throw new GeneralSecurityException("[!] Could not load or create the key pair: " + e.getCause().getMessage(), e.getCause());
         }
     }
 
@@ -34,13 +152,7 @@ public class ChatClient {
             try {
                 System.out.print("Enter Server IP: ");
                 String ip = scanner.nextLine();
-                socket = new Socket(ip, 9001);
-                out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                in = new ObjectInputStream(socket.getInputStream());
-
-                ChatMessage msg = (ChatMessage) in.readObject();
-                System.out.println(msg.getMessage());
+                connect(ip, 9001);
 
                 while (true) {
                     System.out.print("Enter username: ");
@@ -50,35 +162,13 @@ public class ChatClient {
                         System.out.println("[!] Username cannot be empty. Try again.");
                         continue;
                     }
-                    synchronized (out) {
-                        out.writeObject(username);
-                        out.flush();
-                    }
-                    ChatMessage response = (ChatMessage) in.readObject();
-                    System.out.println(response.getMessage());
-                    if (response.getMessage().startsWith("[*] Username accepted")) break;
-                }
-
-                synchronized (out) {
-                    out.writeObject(new ChatMessage(username, keyPair.getPublic()));
-                    out.flush();
-                }
-
-                ChatMessage keyMapMsg = (ChatMessage) in.readObject();
-                if (keyMapMsg.getType() == ChatMessage.MessageType.PUBLIC_KEY_MAP) {
-                    Map<String, String> keyStrings = SerializationUtils.deserialize(keyMapMsg.getMessage());
-                    for (Map.Entry<String, String> entry : keyStrings.entrySet()) {
-                        byte[] keyBytes = Base64.getDecoder().decode(entry.getValue());
-                        X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-                        KeyFactory kf = KeyFactory.getInstance("RSA");
-                        publicKeys.put(entry.getKey(), kf.generatePublic(spec));
-                    }
-                } else {
-                    throw new IOException("Expected public key map");
+                    if (login()) break;
                 }
-
                 return;
 
+            } catch (GeneralSecurityException e) {
+                // The key store could not be opened, connecting again does not help
+                throw e;
             } catch (Exception e) {
                 System.out.println("[!] Connection failed. Try again. " + e.getMessage());
                 attempts++;
@@ -98,41 +188,14 @@ public class ChatClient {
         int attempts = 0;
         while (attempts < 3) {
             try {
-                socket = new Socket(ip, port);
-                out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                in = new ObjectInputStream(socket.getInputStream());
-
-                ChatMessage msg = (ChatMessage) in.readObject();
-                System.out.println(msg.getMessage());
-
-                synchronized (out) {
-                    out.writeObject(this.username);
-                    out.flush();
-                }
-                ChatMessage response = (ChatMessage) in.readObject();
-                System.out.println(response.getMessage());
-                if (response.getMessage().startsWith("[*] Username accepted")) {
-                    synchronized (out) {
-                        out.writeObject(new ChatMessage(this.username, keyPair.getPublic()));
-                        out.flush();
-                    }
-                    ChatMessage keyMapMsg = (ChatMessage) in.readObject();
-                    if (keyMapMsg.getType() == ChatMessage.MessageType.PUBLIC_KEY_MAP) {
-                        Map<String, String> keyStrings = SerializationUtils.deserialize(keyMapMsg.getMessage());
-                        for (Map.Entry<String, String> entry : keyStrings.entrySet()) {
-                            byte[] keyBytes = Base64.getDecoder().decode(entry.getValue());
-                            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-                            KeyFactory kf = KeyFactory.getInstance("RSA");
-                            publicKeys.put(entry.getKey(), kf.generatePublic(spec));
-                        }
-                    } else {
-                        throw new IOException("Expected public key map");
-                    }
+                connect(ip, port);
+                if (login()) {
                     return;
                 }
                 attempts++;
                 System.out.println("[!] Username rejected. Try another.");
+            } catch (GeneralSecurityException e) {
+                throw e;
             } catch (Exception e) {
                 attempts++;
                 System.out.println("[!] Connection failed: " + e.getMessage());
@@ -143,41 +206,581 @@ public class ChatClient {
         }
     }
 
+    // Opens the connection and reads the server's acknowledgement, which says which wire codec to use
+    private void connect(String ip, int port) throws IOException, ClassNotFoundException {
+        Socket connected = new Socket(ip, port);
+        writeLock.lock();
+        try {
+            if (out != null) {
+                // Frames a sender left for this thread to flush along with its own, the old connection may still take them
+                try {
+                    out.flush();
+                } catch (IOException ignored) {}
+            }
+            socket = connected;
+            out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+        } finally {
+            writeLock.unlock();
+        }
+        in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+        soTimeout = 0;
+        host = ip;
+        this.port = port;
+        framesReceived = 0;
+        framesAcknowledged = 0;
+
+        ChatMessage msg = (ChatMessage) readFrame();
+        System.out.println(msg.getMessage());
+        codec = WireCodec.negotiate(msg);
+        serverSuites = CryptoSuite.decode(msg.getEntries() != null ? msg.getEntries().get(CryptoSuite.SUITES_ENTRY) : null);
+    }
+
+    /*
+    Asks for the username and sends the public key, returns false if the server rejected the name. The key goes
+    with the suites this client reads, the flag saying it reads sender key messages and, for an EC client, its
+    identity key; a server that does not accept the client's suite answers with a notice instead of the key map,
+    which fails like a key store that cannot be opened.
+     */
+    private boolean login() throws Exception {
+        writeFrame(username);
+        ChatMessage response = (ChatMessage) readFrame();
+        System.out.println(response.getMessage());
+        if (!response.getMessage().startsWith("[*] Username accepted")) {
+            return false;
+        }
+        PublicKey publicKey = keyPair().getPublic();
+        CryptoSuite suite = CryptoSuite.of(publicKey);
+        if (!serverSuites.contains(suite)) {
+            throw new GeneralSecurityException("[!] The server does not accept " + suite.id + " keys, use a key store of another suite.");
+        }
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(CryptoSuite.SUITES_ENTRY, CryptoSuite.encode(EnumSet.allOf(CryptoSuite.class)));
+        entries.put(SenderKeyUtils.SUPPORT_ENTRY, new byte[0]);
+        KeyPair identity = identityKeyPair();
+        if (identity != null) {
+            entries.put(CryptoSuite.IDENTITY_ENTRY, EcUtils.rawKey(identity.getPublic()));
+        }
+        writeFrame(new ChatMessage(username, publicKey, entries));
+        ChatMessage keyMapMsg = (ChatMessage) readFrame();
+        if (keyMapMsg.getType() == ChatMessage.MessageType.TEXT) {
+            throw new GeneralSecurityException(keyMapMsg.getMessage());
+        }
+        if (keyMapMsg.getType() == ChatMessage.MessageType.SESSION) {
+            resumeToken = keyMapMsg.getMessage();
+            keyMapMsg = (ChatMessage) readFrame();
+        }
+        if (keyMapMsg.getType() != ChatMessage.MessageType.PUBLIC_KEY_MAP) {
+            throw new IOException("Expected public key map");
+        }
+        applyKeyUpdate(keyMapMsg);
+        return true;
+    }
+
+    /*
+    Connects to the same server again after the connection dropped, from the thread that receives messages.
+    With a session token the server is asked to resume the session: it then sends on every message this client
+    did not receive and the other users never notice the drop. Without one, or once the server has given the
+    session up, the client logs in again under its name and rejoins its rooms. Returns true if the session was
+    resumed, false if it is a new one, in which case messages sent while the client was away may be missing.
+     */
+    public boolean reconnect() throws Exception {
+        if (host == null) {
+            throw new IOException("[!] Not connected before.");
+        }
+        long received = framesReceived;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        connect(host, port);
+        String token = resumeToken;
+        if (token != null) {
+            writeFrame(new ChatMessage(username, null, null, token, null, ChatMessage.MessageType.RESUME, received));
+            ChatMessage response = (ChatMessage) readFrame();
+            if (response.getType() == ChatMessage.MessageType.SESSION) {
+                resumeToken = response.getMessage();
+                return true;
+            }
+            System.out.println(response.getMessage());
+            resumeToken = null;
+        }
+        if (!login()) {
+            throw new IOException("[!] Username " + username + " was taken while reconnecting.");
+        }
+        // Transfers lost frames with the old session and cannot go on
+        for (FileTransfer.Upload upload : uploads.values()) {
+            upload.cancel("[!] Connection lost.");
+        }
+        for (FileTransfer.Download download : downloads.values()) {
+            download.abort();
+        }
+        downloads.clear();
+        for (String room : roomKeys.keySet()) {
+            if (!room.equals(Room.LOBBY)) {
+                sendMessage(new ChatMessage(username, null, room, null, null, ChatMessage.MessageType.ROOM_JOIN, 0));
+            }
+        }
+        return false;
+    }
+
     public void sendMessage(ChatMessage message) throws IOException {
-        synchronized (out) {
-            out.writeObject(message);
-            out.flush();
+        writeFrame(message);
+    }
+
+    private void writeFrame(Object frame) throws IOException {
+        writeLock.lock();
+        try {
+            codec.writeFrame(out, frame);
+        } finally {
+            try {
+                // A sender already waiting for the lock flushes this frame along with its own, so concurrent sends
+                // share one write. It flushes even if its own frame cannot be written, and connect flushes before
+                // replacing the stream. The last one in always flushes, so nothing waits for a later message
+                if (!writeLock.hasQueuedThreads()) {
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
         }
     }
 
     public ChatMessage receiveMessage() throws Exception {
-        return (ChatMessage) in.readObject();
+        readTimeout(0);
+        return nextMessage();
     }
 
+    // Waits at most timeoutMillis for a message, then fails with a SocketTimeoutException
     public ChatMessage receiveMessage(long timeoutMillis) throws Exception {
-        socket.setSoTimeout((int) timeoutMillis);
+        readTimeout((int) Math.max(1, timeoutMillis));
+        return nextMessage();
+    }
+
+    // A system call, so skipped when a loop keeps reading with the same timeout
+    private void readTimeout(int millis) throws SocketException {
+        if (millis != soTimeout) {
+            socket.setSoTimeout(millis);
+            soTimeout = millis;
+        }
+    }
+
+    private ChatMessage nextMessage() throws Exception {
+        while (true) {
+            ChatMessage msg = (ChatMessage) readFrame();
+            if (resumeToken != null && framesReceived - framesAcknowledged >= ACK_INTERVAL) {
+                // Lets the server forget what it kept for a resume
+                framesAcknowledged = framesReceived;
+                writeFrame(new ChatMessage(username, null, null, null, null, ChatMessage.MessageType.SESSION_ACK, framesReceived));
+            }
+            if (msg.getType() != ChatMessage.MessageType.SESSION) {
+                return msg;
+            }
+            resumeToken = msg.getMessage();
+        }
+    }
+
+    // Every frame read from the server goes through here to be counted
+    private Object readFrame() throws IOException, ClassNotFoundException {
+        Object frame = WireCodec.readFrame(in);
+        framesReceived++;
+        return frame;
+    }
+
+    /*
+    Applies a PUBLIC_KEY_MAP snapshot or a KEY_ADDED/KEY_REMOVED delta to the key map of the room it is tagged with.
+    A snapshot replaces the map, a delta is applied in place only if it is the room's next epoch. Stale deltas and
+    deltas for rooms the client left are ignored, and when deltas were missed the server is asked for a fresh snapshot.
+    Sender key chains follow: those of members that left are dropped, and when a member this client handed its own
+    chain to leaves, its next message starts a new one. Returns true if the key map changed.
+     */
+    public boolean applyKeyUpdate(ChatMessage msg) throws Exception {
+        String room = Room.of(msg);
+        keyLock.lock();
+        try {
+            if (msg.getType() == ChatMessage.MessageType.PUBLIC_KEY_MAP) {
+                Map<String, PublicKey> snapshot = new HashMap<>();
+                for (Map.Entry<String, byte[]> entry : msg.getEntries().entrySet()) {
+                    if (!entry.getKey().startsWith(" ")) {
+                        snapshot.put(entry.getKey(), decodePublicKey(entry.getKey(), entry.getValue()));
+                    }
+                }
+                Map<String, PublicKey> publicKeys = roomKeys.computeIfAbsent(room, k -> new ConcurrentHashMap<>());
+                for (String user : publicKeys.keySet()) {
+                    if (!snapshot.containsKey(user)) {
+                        memberLeft(room, user);
+                    }
+                }
+                publicKeys.keySet().retainAll(snapshot.keySet());
+                publicKeys.putAll(snapshot);
+                byte[] pairwise = msg.getEntries().get(SenderKeyUtils.PAIRWISE_ENTRY);
+                Set<String> names = ConcurrentHashMap.newKeySet();
+                if (pairwise != null) {
+                    names.addAll(Arrays.asList(new String(pairwise, StandardCharsets.UTF_8).split("\n")));
+                }
+                pairwiseMembers.put(room, names);
+                keyEpochs.put(room, msg.getSequence());
+                return true;
+            }
+            Map<String, PublicKey> publicKeys = roomKeys.get(room);
+            long keyEpoch = keyEpochs.getOrDefault(room, 0L);
+            if (publicKeys == null || msg.getSequence() <= keyEpoch) {
+                return false;
+            }
+            if (msg.getSequence() != keyEpoch + 1) {
+                sendMessage(new ChatMessage(username, null, room, null, null, ChatMessage.MessageType.KEY_REQUEST, 0));
+                return false;
+            }
+            Set<String> pairwise = pairwiseMembers.computeIfAbsent(room, k -> ConcurrentHashMap.newKeySet());
+            for (Map.Entry<String, byte[]> entry : msg.getEntries().entrySet()) {
+                String user = entry.getKey();
+                if (user.startsWith(" ")) {
+                    continue;
+                }
+                if (msg.getType() == ChatMessage.MessageType.KEY_ADDED) {
+                    publicKeys.put(user, decodePublicKey(user, entry.getValue()));
+                    if (msg.getEntries().containsKey(SenderKeyUtils.PAIRWISE_ENTRY)) {
+                        pairwise.add(user);
+                    } else {
+                        pairwise.remove(user);
+                    }
+                } else {
+                    publicKeys.remove(user);
+                    pairwise.remove(user);
+                    memberLeft(room, user);
+                }
+            }
+            keyEpochs.put(room, msg.getSequence());
+            return true;
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    // Joins a room, or switches to it if the client is already in it, and makes it the current room.
+    // Its key map arrives as a PUBLIC_KEY_MAP like any other update
+    public void joinRoom(String room) throws IOException {
+        String name = Room.normalizeName(room);
+        if (name == null) {
+            throw new IOException("[!] Room names are 1-" + Room.MAX_NAME_LENGTH + " letters, digits, '.', '_' or '-'.");
+        }
+        if (!roomKeys.containsKey(name)) {
+            sendMessage(new ChatMessage(username, null, name, null, null, ChatMessage.MessageType.ROOM_JOIN, 0));
+        }
+        currentRoom = name;
+    }
+
+    // Leaves a room and forgets its keys, the lobby becomes current if it was the current room
+    public void leaveRoom(String room) throws IOException {
+        String name = Room.normalizeName(room);
+        if (name == null) {
+            throw new IOException("[!] No such room: " + room);
+        }
+        sendMessage(new ChatMessage(username, null, name, null, null, ChatMessage.MessageType.ROOM_LEAVE, 0));
+        if (!name.equals(Room.LOBBY)) {
+            keyLock.lock();
+            try {
+                roomKeys.remove(name);
+                keyEpochs.remove(name);
+                pairwiseMembers.remove(name);
+                receivedChains.keySet().removeIf(chain -> chain.startsWith(name + "/"));
+                senderLock.lock();
+                try {
+                    ownChains.remove(name);
+                } finally {
+                    senderLock.unlock();
+                }
+            } finally {
+                keyLock.unlock();
+            }
+            if (name.equals(currentRoom)) {
+                currentRoom = Room.LOBBY;
+            }
+        }
+    }
+
+    // Asks the server for the list of rooms, the answer arrives as a server notice
+    public void listRooms() throws IOException {
+        sendMessage(new ChatMessage(username, null, ChatMessage.MessageType.ROOM_LIST));
+    }
+
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
+
+    // Rooms the client has the key map of
+    public Set<String> getRooms() {
+        return roomKeys.keySet();
+    }
+
+    // Public key of a user from any room the client is in, or null if it shares none with the user
+    public PublicKey getPublicKey(String user) {
+        for (Map<String, PublicKey> publicKeys : roomKeys.values()) {
+            PublicKey key = publicKeys.get(user);
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    // Decodes a directory entry: an X.509 encoded RSA key, or the X25519 and identity keys of an EC user
+    private PublicKey decodePublicKey(String user, byte[] entry) throws GeneralSecurityException {
+        if (EcUtils.isBundle(entry)) {
+            identityKeys.put(user, EcUtils.bundleIdentityKey(entry));
+            return EcUtils.bundleAgreementKey(entry);
+        }
+        identityKeys.remove(user);
+        return CryptoEngine.decodePublicKey("RSA", entry);
+    }
+
+    // Identity key of an EC user from any room the client is in, null for RSA users and users it shares no room with
+    public PublicKey getIdentityKey(String user) {
+        return identityKeys.get(user);
+    }
+
+    // Encrypts a text for recipients, signed with the identity key if the client has one
+    public Map<String, byte[]> encrypt(String text, Map<String, PublicKey> recipients, boolean compress) throws Exception {
+        KeyPair identity = identityKeyPair();
+        return HybridUtils.encrypt(text, recipients, compress, username, identity != null ? identity.getPrivate() : null);
+    }
+
+    // Decrypts a HYBRID_TEXT, null if it was not encrypted for this client. Fails if the sender is in none of the
+    // client's rooms, or has an identity key and did not sign it
+    public String decrypt(ChatMessage msg) throws Exception {
+        return HybridUtils.decrypt(msg.getEntries(), username, getPrivateKey(), msg.getSender(), suiteOf(msg.getSender()),
+                identityKeys.get(msg.getSender()));
+    }
+
+    // Suite of a user's key from any room the client is in, null if it shares none with the user
+    private CryptoSuite suiteOf(String user) {
+        PublicKey key = getPublicKey(user);
+        return key != null ? CryptoSuite.of(key) : null;
+    }
+
+    /*
+    Sends a text to the members of a room and returns once it is written. Members that read sender key messages get
+    one GROUP_TEXT encrypted with this client's chain for the room, preceded by a SENDER_KEY envelope handing the
+    chain to the members that do not have it yet: new ones and ones whose key changed. If a member the chain was
+    handed to is gone, a new chain is started and handed to everyone. Members that do not read sender key messages
+    get a HYBRID_TEXT as before.
+     */
+    public void sendRoomText(String room, String text, boolean compress) throws Exception {
+        Map<String, PublicKey> members = new HashMap<>(getPublicKeys(room));
+        members.remove(username);
+        Map<String, PublicKey> pairwise = new HashMap<>();
+        for (String user : pairwiseMembers.getOrDefault(room, Collections.emptySet())) {
+            PublicKey key = members.remove(user);
+            if (key != null) {
+                pairwise.put(user, key);
+            }
+        }
+        String tag = room.equals(Room.LOBBY) ? null : room;
+        KeyPair identity = identityKeyPair();
+        if (!members.isEmpty()) {
+            senderLock.lock();
+            try {
+                OwnChain own = ownChains.get(room);
+                if (own == null || !members.keySet().containsAll(own.holders.keySet())) {
+                    own = new OwnChain();
+                    ownChains.put(room, own);
+                }
+                Map<String, PublicKey> missing = new HashMap<>();
+                for (Map.Entry<String, PublicKey> member : members.entrySet()) {
+                    // Keys are decoded anew on every update, so a member that logged in again has a new key object
+                    if (own.holders.get(member.getKey()) != member.getValue()) {
+                        missing.put(member.getKey(), member.getValue());
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    sendMessage(new ChatMessage(username, null, tag, null, encrypt(own.chain.encode(), missing, false),
+                            ChatMessage.MessageType.SENDER_KEY, 0));
+                    own.holders.putAll(missing);
+                }
+                sendMessage(new ChatMessage(username, null, tag, null, SenderKeyUtils.encrypt(own.chain, text, compress,
+                        username, room, identity != null ? identity.getPrivate() : null), ChatMessage.MessageType.GROUP_TEXT, 0));
+            } finally {
+                senderLock.unlock();
+            }
+        }
+        if (!pairwise.isEmpty()) {
+            sendMessage(new ChatMessage(username, null, tag, null, encrypt(text, pairwise, compress), ChatMessage.MessageType.HYBRID_TEXT, 0));
+        }
+    }
+
+    // Takes the chain in a SENDER_KEY envelope, replacing the one its sender handed this client before in that room
+    public void applySenderKey(ChatMessage msg) throws Exception {
+        String encoded = decrypt(msg);
+        if (encoded != null) {
+            receivedChains.put(Room.of(msg) + "/" + msg.getSender(), SenderKeyUtils.Chain.decode(encoded));
+        }
+    }
+
+    // Decrypts a GROUP_TEXT with the chain its sender handed this client. Fails if there is none, if the sender is
+    // in none of the client's rooms, or if it has an identity key and did not sign it
+    public String decryptGroup(ChatMessage msg) throws Exception {
+        String room = Room.of(msg);
+        SenderKeyUtils.Chain chain = receivedChains.get(room + "/" + msg.getSender());
+        if (chain == null) {
+            throw new GeneralSecurityException("No sender key of " + msg.getSender() + " in #" + room);
+        }
+        return SenderKeyUtils.decrypt(chain, msg.getEntries(), msg.getSender(), room, suiteOf(msg.getSender()),
+                identityKeys.get(msg.getSender()));
+    }
+
+    // A member left a room: its chain there is dropped, and this client's own is replaced before its next message
+    // if it had been handed to that member. Called under keyLock
+    private void memberLeft(String room, String user) {
+        receivedChains.remove(room + "/" + user);
+        senderLock.lock();
         try {
-            return (ChatMessage) in.readObject();
+            OwnChain own = ownChains.get(room);
+            if (own != null && own.holders.containsKey(user)) {
+                ownChains.remove(room);
+            }
         } finally {
-            socket.setSoTimeout(0);
+            senderLock.unlock();
         }
     }
 
+    // Key map of the current room
     public Map<String, PublicKey> getPublicKeys() {
-        return publicKeys;
+        return getPublicKeys(currentRoom);
+    }
+
+    public Map<String, PublicKey> getPublicKeys(String room) {
+        Map<String, PublicKey> publicKeys = roomKeys.get(room);
+        return publicKeys != null ? publicKeys : Collections.emptyMap();
     }
 
     public String getUsername() {
         return username;
     }
 
-    public PrivateKey getPrivateKey() {
-        return keyPair.getPrivate();
+    public PrivateKey getPrivateKey() throws GeneralSecurityException {
+        return keyPair().getPrivate();
+    }
+
+    /*
+    Sends a file to a user the client shares a room with and returns once the recipient has written all of it.
+    The file is read and encrypted one chunk at a time, and with at most FileTransfer.WINDOW chunks unacknowledged
+    memory use does not depend on its size. The recipient's FILE_ACKs are handled by applyFileMessage, so a
+    receive loop must be running on another thread.
+     */
+    public void sendFile(String recipient, Path file) throws Exception {
+        PublicKey recipientKey = getPublicKey(recipient);
+        if (recipientKey == null) {
+            throw new IOException("[!] You share no room with " + recipient + ".");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileTransfer.Upload upload = new FileTransfer.Upload(recipient);
+            uploads.put(upload.id, upload);
+            boolean done = false;
+            try {
+                long size = channel.size();
+                long chunks = Math.max(1, (size + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE);
+                sendMessage(new ChatMessage(username, recipient, null, upload.id,
+                        upload.offer(file.getFileName().toString(), size, recipientKey), ChatMessage.MessageType.FILE_OFFER, 0));
+                ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+                for (long index = 0; index < chunks; index++) {
+                    long position = index * FileTransfer.CHUNK_SIZE;
+                    buffer.clear().limit((int) Math.min(FileTransfer.CHUNK_SIZE, size - position));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("[!] " + file + " shrank while it was being sent");
+                        }
+                    }
+                    buffer.flip();
+                    upload.awaitWindow(index, chunks);
+                    sendMessage(upload.chunk(username, index, index == chunks - 1, buffer));
+                }
+                upload.awaitWindow(chunks, chunks);
+                done = true;
+            } finally {
+                uploads.remove(upload.id);
+                if (!done) {
+                    sendMessage(new ChatMessage(username, recipient, null, upload.id, null, ChatMessage.MessageType.FILE_CANCEL, 0));
+                }
+            }
+        }
+    }
+
+    /*
+    Handles a FILE_OFFER, FILE_CHUNK, FILE_ACK or FILE_CANCEL. Offered files are received into directory without
+    asking, under their own name made safe, and acknowledged chunk by chunk. Returns a notice for the user when a
+    file starts, completes or fails to arrive, otherwise null. Must be called from the receive loop.
+     */
+    public String applyFileMessage(ChatMessage msg, Path directory) throws Exception {
+        String id = msg.getMessage();
+        String downloadKey = msg.getSender() + "/" + id;
+        switch (msg.getType()) {
+            case FILE_OFFER: {
+                FileTransfer.Download download = downloads.containsKey(downloadKey) ? null
+                        : FileTransfer.Download.accept(msg, username, getPrivateKey(), directory);
+                if (download == null) {
+                    return null;
+                }
+                downloads.put(downloadKey, download);
+                return "[*] Receiving " + download.name + " (" + download.size + " bytes) from " + download.sender + ".";
+            }
+            case FILE_CHUNK: {
+                FileTransfer.Download download = downloads.get(downloadKey);
+                if (download == null) {
+                    return null;
+                }
+                try {
+                    boolean complete = download.write(msg);
+                    sendMessage(new ChatMessage(username, download.sender, null, id, null, ChatMessage.MessageType.FILE_ACK,
+                            download.chunkIndex()));
+                    if (!complete) {
+                        return null;
+                    }
+                    downloads.remove(downloadKey);
+                    return "[*] Received " + download.name + " from " + download.sender + ": " + download.target;
+                } catch (Exception e) {
+                    downloads.remove(downloadKey);
+                    download.abort();
+                    sendMessage(new ChatMessage(username, download.sender, null, id, null, ChatMessage.MessageType.FILE_CANCEL, 0));
+                    return "[!] Failed to receive " + download.name + " from " + download.sender + ": " + e.getMessage();
+                }
+            }
+            case FILE_ACK: {
+                FileTransfer.Upload upload = uploads.get(id);
+                if (upload != null && upload.recipient.equals(msg.getSender())) {
+                    upload.ack(msg.getSequence());
+                }
+                return null;
+            }
+            case FILE_CANCEL: {
+                FileTransfer.Upload upload = uploads.get(id);
+                if (upload != null && upload.recipient.equals(msg.getSender())) {
+                    upload.cancel("[!] " + upload.recipient + " did not take the file.");
+                }
+                FileTransfer.Download download = downloads.remove(downloadKey);
+                if (download == null) {
+                    return null;
+                }
+                download.abort();
+                return "[!] " + download.sender + " cancelled " + download.name + ".";
+            }
+            default:
+                return null;
+        }
     }
 
     public void close() throws IOException {
+        for (FileTransfer.Upload upload : uploads.values()) {
+            upload.cancel("[!] Connection closed.");
+        }
+        for (FileTransfer.Download download : downloads.values()) {
+            download.abort();
+        }
+        downloads.clear();
         if (socket != null) {
             socket.close();
         }
     }
-}
\ No newline at end of file
+
+    private static class OwnChain {
+        final SenderKeyUtils.Chain chain = SenderKeyUtils.Chain.generate();
+        final Map<String, PublicKey> holders = new HashMap<>();
+    }
+}
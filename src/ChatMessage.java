@@ -2,43 +2,92 @@ package src;
 
 import java.security.PublicKey;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Map;
 
 public class ChatMessage implements Serializable {
+    // Fixed, so JAVA frames stay readable between builds that add fields: a field the sender lacks is left null or 0
+    private static final long serialVersionUID = 1L;
+
     private final String sender;
     private final String recipient; // New: For directed messages
+    private final String room; // Room of chat messages and key directory updates, null means the lobby
     private final String message; // Plaintext or encrypted content
     private final MessageType type; // Type of message
     private final PublicKey publicKey; // For key exchange messages
+    @SuppressWarnings("serial") // Always one of the JDK's serializable maps
+    private final Map<String, byte[]> entries; // Raw per-user values: encoded keys, ciphertexts or wrapped keys
+    private final long sequence; // Ordering number, the key directory epoch for key map updates; passed through untouched on chat messages
+    // Frames this message has been encoded to, by WireCodec ordinal; filled in by WireCodec.frame so a message sent
+    // to many clients is encoded once per codec. The message is immutable once sent, so the cache never goes stale
+    private transient volatile byte[][] frames;
+    private transient volatile ByteBuffer[] directFrames;
 
     public enum MessageType {
-        TEXT, ENCRYPTED_TEXT, PUBLIC_KEY, KEY_REQUEST, PUBLIC_KEY_MAP
+        TEXT, ENCRYPTED_TEXT, PUBLIC_KEY, KEY_REQUEST, PUBLIC_KEY_MAP, HYBRID_TEXT, KEY_ADDED, KEY_REMOVED,
+        ROOM_JOIN, ROOM_LEAVE, ROOM_LIST, FILE_OFFER, FILE_CHUNK, FILE_ACK, FILE_CANCEL, SESSION, RESUME, SESSION_ACK,
+        SENDER_KEY, GROUP_TEXT,
+        // Only sent between the nodes of a cluster (see Cluster)
+        NODE_HELLO, NODE_CLAIM, NODE_CLAIM_RESULT, NODE_RELEASE, NODE_JOIN, NODE_LEAVE
     }
 
     // Constructor for text/encrypted messages
     public ChatMessage(String sender, String recipient, String message, MessageType type) {
+        this(sender, recipient, message, null, type);
+    }
+
+    // Constructor for key maps and encrypted envelopes carried as raw bytes
+    public ChatMessage(String sender, String recipient, Map<String, byte[]> entries, MessageType type) {
+        this(sender, recipient, null, entries, type);
+    }
+
+    public ChatMessage(String sender, String recipient, String message, Map<String, byte[]> entries, MessageType type) {
+        this(sender, recipient, message, entries, type, 0);
+    }
+
+    public ChatMessage(String sender, String recipient, String message, Map<String, byte[]> entries, MessageType type, long sequence) {
+        this(sender, recipient, null, message, entries, type, sequence);
+    }
+
+    // Constructor used by the wire codecs, any field may be null
+    public ChatMessage(String sender, String recipient, String room, String message, Map<String, byte[]> entries, MessageType type, long sequence) {
         this.sender = sender;
         this.recipient = recipient;
+        this.room = room;
         this.message = message;
         this.type = type;
         this.publicKey = null;
+        this.entries = entries;
+        this.sequence = sequence;
     }
 
     // Constructor for public key exchange
     public ChatMessage(String sender, PublicKey publicKey) {
+        this(sender, publicKey, null);
+    }
+
+    // Same, with entries such as the suites the client reads and its identity key
+    public ChatMessage(String sender, PublicKey publicKey, Map<String, byte[]> entries) {
         this.sender = sender;
         this.recipient = null;
+        this.room = null;
         this.message = null;
         this.type = MessageType.PUBLIC_KEY;
         this.publicKey = publicKey;
+        this.entries = entries;
+        this.sequence = 0;
     }
 
     // Constructor for key request
     public ChatMessage(String sender, String recipient, MessageType type) {
         this.sender = sender;
         this.recipient = recipient;
+        this.room = null;
         this.message = null;
         this.type = type;
         this.publicKey = null;
+        this.entries = null;
+        this.sequence = 0;
     }
 
     // Returns the sender of the message.
@@ -53,6 +102,12 @@ public class ChatMessage implements Serializable {
         return recipient;
     }
 
+    // Returns the room the message belongs to.
+    // @return The room name, or null for the lobby.
+    public String getRoom() {
+        return room;
+    }
+
     // Returns the content of the message.
     // @return The message as a String.
     public String getMessage() {
@@ -70,4 +125,45 @@ public class ChatMessage implements Serializable {
     public PublicKey getPublicKey() {
         return publicKey;
     }
-}
\ No newline at end of file
+
+    // Returns the raw per-user entries of a key map or encrypted envelope.
+    // @return The entries keyed by username, or null if the message carries none.
+    public Map<String, byte[]> getEntries() {
+        return entries;
+    }
+
+    // Returns the ordering number of the message.
+    // @return The key directory epoch for key map updates, 0 when unused.
+    public long getSequence() {
+        return sequence;
+    }
+
+    byte[] cachedFrame(WireCodec codec) {
+        byte[][] cache = frames;
+        return cache != null ? cache[codec.ordinal()] : null;
+    }
+
+    // Two threads may encode the same message at once, either result is fine to keep
+    void cacheFrame(WireCodec codec, byte[] frame) {
+        byte[][] cache = frames;
+        if (cache == null) {
+            cache = new byte[WireCodec.values().length][];
+            frames = cache;
+        }
+        cache[codec.ordinal()] = frame;
+    }
+
+    ByteBuffer cachedDirectFrame(WireCodec codec) {
+        ByteBuffer[] cache = directFrames;
+        return cache != null ? cache[codec.ordinal()] : null;
+    }
+
+    void cacheDirectFrame(WireCodec codec, ByteBuffer frame) {
+        ByteBuffer[] cache = directFrames;
+        if (cache == null) {
+            cache = new ByteBuffer[WireCodec.values().length];
+            directFrames = cache;
+        }
+        cache[codec.ordinal()] = frame;
+    }
+}
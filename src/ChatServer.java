@@ -2,166 +2,1275 @@ package src;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
-import utils.SerializationUtils;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.CryptoSuite;
+import utils.EcUtils;
+import utils.SenderKeyUtils;
+import utils.FrameUtils;
 
 public class ChatServer {
-    private static final int DEFAULT_PORT = 9001;
+    static final int DEFAULT_PORT = 9001;
+    private static final int ROOM_LIST_LIMIT = 50;
+    // Every connected user by name, for the handshake and direct messages; room traffic goes through the rooms
     private static final ConcurrentHashMap<String, ClientInfo> clients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final Room lobby = new Room(Room.LOBBY);
+    // Envelopes for offline users, null unless the server runs with --store-dir
+    private static volatile MessageStore store;
+    // Make "the recipient is offline, store the envelope" atomic with that user going live after its replay.
+    // Striped by username so unrelated users do not contend
+    private static final ReentrantLock[] storeLocks = new ReentrantLock[64];
+    // Users that completed the handshake but are still being sent their stored envelopes
+    private static final Set<String> replaying = ConcurrentHashMap.newKeySet();
+    private static final SecureRandom tokenRandom = new SecureRandom();
+    // Ends sessions that were dropped and not resumed within the grace period
+    private static final ScheduledExecutorService sessionTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static class ClientInfo {
-        ObjectOutputStream out;
-        PublicKey publicKey;
+    // Destination for messages addressed to one connected client, each server engine provides its own
+    interface MessageSink {
+        void send(ChatMessage message) throws IOException;
+    }
+
+    static {
+        rooms.put(lobby.name, lobby);
+        for (int i = 0; i < storeLocks.length; i++) {
+            storeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    static class ClientInfo {
+        volatile MessageSink sink; // Replaced when the session is resumed on a new connection
+        final byte[] keyEntry; // The client's entry in the key directories it joins
+        final boolean rsaOnly; // Reads RSA keys only, it gets the directories without the EC users
+        final boolean senderKeys; // Reads GROUP_TEXT, members that do not are sent pairwise envelopes
+        final Set<String> rooms = ConcurrentHashMap.newKeySet(); // Rooms the client receives the traffic of
+        // Resumable sessions only: the secret a reconnect proves itself with, and the expiry of a dropped session.
+        // Guarded by sessionLock, which is never held while taking a room lock
+        final ReentrantLock sessionLock = new ReentrantLock();
+        String resumeToken;
+        long resumeMillis;
+        ScheduledFuture<?> expiry;
 
-        ClientInfo(ObjectOutputStream out, PublicKey publicKey) {
-            this.out = out;
-            this.publicKey = publicKey;
+        ClientInfo(MessageSink sink, byte[] keyEntry, boolean rsaOnly, boolean senderKeys) {
+            this.sink = sink;
+            this.keyEntry = keyEntry;
+            this.rsaOnly = rsaOnly;
+            this.senderKeys = senderKeys;
         }
     }
 
     private final ServerSocket serverSocket;
+    private final ServerConfig config;
 
     public ChatServer(ServerSocket serverSocket) {
+        this(serverSocket, new ServerConfig());
+    }
+
+    public ChatServer(ServerSocket serverSocket, ServerConfig config) {
         this.serverSocket = serverSocket;
+        this.config = config;
     }
 
     public void start() throws IOException {
-        System.out.println("[Server] ChatServer started on port " + serverSocket.getLocalPort());
+        ServerMetrics.expose(config);
+        openStore(config);
+        Cluster.start(config);
+        System.out.println("[Server] ChatServer started on port " + serverSocket.getLocalPort()
+                + (config.engine == ServerConfig.Engine.VIRTUAL ? " with virtual threads" : ""));
         while (!serverSocket.isClosed()) {
             Socket socket = serverSocket.accept();
-            new Thread(new ClientHandler(socket)).start();
+            if (!ConnectionLimits.admit(config)) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+                continue;
+            }
+            ServerMetrics.acceptedConnections.increment();
+            config.newThread(new ClientHandler(socket, config)).start();
         }
     }
 
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(DEFAULT_PORT);
-        new ChatServer(serverSocket).start();
+        ServerConfig config = ServerConfig.fromArgs(args);
+        if (config.engine == ServerConfig.Engine.NIO) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(config.port));
+            new NioChatServer(serverChannel, config).start();
+        } else {
+            ServerSocket serverSocket = new ServerSocket(config.port);
+            new ChatServer(serverSocket, config).start();
+        }
+    }
+
+    // Helpers shared by the server engines so the handshake and broadcast behave the same on all of them
+
+    // Opens the message store the config asks for, only the first call has any effect
+    static synchronized void openStore(ServerConfig config) throws IOException {
+        if (store != null || config.storeDir == null) {
+            return;
+        }
+        MessageStore opened = new MessageStore(Paths.get(config.storeDir), config.storeSegmentBytes,
+                config.storeSyncMillis, config.storeRetentionMillis);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                opened.close();
+            } catch (IOException e) {
+                System.err.println("[Server] Failed to close message store: " + e.getMessage());
+            }
+        }));
+        store = opened;
+        System.out.println("[Server] Keeping messages for offline users in " + config.storeDir
+                + " (" + opened.pendingTotal() + " pending)");
+    }
+
+    static ChatMessage serverText(String text) {
+        return new ChatMessage("Server", null, text, ChatMessage.MessageType.TEXT);
+    }
+
+    static ChatMessage serverText(String room, String text) {
+        return new ChatMessage("Server", null, room, text, null, ChatMessage.MessageType.TEXT, 0);
+    }
+
+    // First message on every connection, it also advertises the wire codecs this server reads and the key suites it accepts
+    static ChatMessage acknowledgement(ServerConfig config) {
+        Map<String, byte[]> entries = WireCodec.advertisement();
+        entries.put(CryptoSuite.SUITES_ENTRY, CryptoSuite.encode(config.suites));
+        return new ChatMessage("Server", null, "[*] Connection acknowledged by ChatServer", entries, ChatMessage.MessageType.TEXT);
+    }
+
+    // Returns the notice refusing a PUBLIC_KEY message, or null if its key can be registered
+    static String keyRejection(ChatMessage keyMsg, ServerConfig config) {
+        PublicKey publicKey = keyMsg.getPublicKey();
+        CryptoSuite suite = publicKey != null ? CryptoSuite.of(publicKey) : null;
+        if (suite == null) {
+            return "[!] Unsupported public key, closing the connection.";
+        }
+        if (!config.suites.contains(suite)) {
+            return "[!] This server does not accept " + suite.id + " keys, closing the connection.";
+        }
+        if (suite == CryptoSuite.X25519_ED25519) {
+            try {
+                EcUtils.ed25519Key(keyMsg.getEntries() != null ? keyMsg.getEntries().get(CryptoSuite.IDENTITY_ENTRY) : null, 0);
+            } catch (GeneralSecurityException e) {
+                return "[!] An " + suite.id + " key needs an Ed25519 identity key, closing the connection.";
+            }
+        }
+        return null;
+    }
+
+    // Directory entry of a key accepted by keyRejection: the X.509 encoded RSA key, or the raw X25519 and identity keys
+    private static byte[] keyEntry(ChatMessage keyMsg) {
+        PublicKey publicKey = keyMsg.getPublicKey();
+        if (CryptoSuite.of(publicKey) != CryptoSuite.X25519_ED25519) {
+            return publicKey.getEncoded();
+        }
+        return EcUtils.encodeBundle(EcUtils.rawKey(publicKey), keyMsg.getEntries().get(CryptoSuite.IDENTITY_ENTRY));
+    }
+
+    static String normalizeUsername(String requestedUsername) {
+        return requestedUsername.replaceAll("\\s+", "-");
+    }
+
+    // Returns the rejection notice for a requested username, or null if the name can be taken
+    static String usernameRejection(String requestedUsername) {
+        if (requestedUsername == null || requestedUsername.trim().isEmpty()) {
+            return "[!] Username cannot be empty. Try again.";
+        }
+        // A dropped session holding the name is ended, its owner logging in again is the likely case
+        if (clients.containsKey(requestedUsername) && !expireParked(requestedUsername) || replaying.contains(requestedUsername)) {
+            return takenNotice(requestedUsername);
+        }
+        return null;
+    }
+
+    // Also sent when the name is free here but another cluster node holds it (see Cluster.claim)
+    static String takenNotice(String username) {
+        return "[!] Username taken. Try again or use: " + username + new Random().nextInt(100);
+    }
+
+    // Gives up the username a closed connection claimed, unless it went to a user that is registered or being
+    // replayed to. Covers handshakes that never finished and registrations that failed half way
+    static void abandon(String username, Object connection) {
+        if (!clients.containsKey(username) && !replaying.contains(username)) {
+            Cluster.release(username, connection);
+        }
+    }
+
+    // Registers a client that completed the handshake with a key keyRejection accepted: it joins the lobby, and once
+    // its stored envelopes are replayed, with a store also the rooms it left by disconnecting. With resumable sessions
+    // it is sent a token first, which a later connection can present to take over the session
+    static void register(String username, MessageSink sink, ChatMessage keyMsg, ServerConfig config) throws IOException {
+        Map<String, byte[]> keyEntries = keyMsg.getEntries();
+        boolean rsaOnly = !CryptoSuite.decode(keyEntries != null ? keyEntries.get(CryptoSuite.SUITES_ENTRY) : null)
+                .contains(CryptoSuite.X25519_ED25519);
+        boolean senderKeys = keyEntries != null && keyEntries.containsKey(SenderKeyUtils.SUPPORT_ENTRY);
+        ClientInfo info = new ClientInfo(sink, keyEntry(keyMsg), rsaOnly, senderKeys);
+        if (config.resumeSeconds > 0 && sink instanceof OutboundQueue) {
+            info.resumeToken = newToken();
+            info.resumeMillis = TimeUnit.SECONDS.toMillis(config.resumeSeconds);
+            sink.send(sessionMessage(username, info.resumeToken));
+        }
+        boolean live;
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        // Directory changes are made and broadcast under the room lock so every member sees the epochs in order.
+        // The snapshot is queued before the client becomes visible to broadcasts, so it is the first thing it receives
+        lobby.lock.lock();
+        try {
+            ChatMessage keyAdded = lobby.keys.add(username, info.keyEntry, !info.senderKeys);
+            Cluster.memberJoined(lobby, username, info);
+            sink.send(lobby.keys.snapshot(rsaOnly));
+            ServerMetrics.keyMapSnapshots.increment();
+            live = goLive(username, info);
+            if (live) {
+                subscribe(lobby, username, info);
+            }
+            fanOutKeys(lobby, keyAdded, username, failedClients);
+            ServerMetrics.keyDeltas.increment();
+        } finally {
+            lobby.lock.unlock();
+        }
+        dropFailed(failedClients);
+        if (live) {
+            joined(username, info);
+        } else {
+            startReplay(username, info, config);
+        }
+    }
+
+    // Makes a client visible to routing, unless it has stored envelopes to be replayed first
+    private static boolean goLive(String username, ClientInfo info) {
+        ReentrantLock lock = storeLock(username);
+        lock.lock();
+        try {
+            if (store != null && store.pending(username) > 0) {
+                replaying.add(username);
+                return false;
+            }
+            clients.put(username, info);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Announces a client that went live in the lobby, and with a store puts it back into the other rooms it is
+    // still a member of. Looking for those visits every room, which only happens once per connection
+    private static void joined(String username, ClientInfo info) throws IOException {
+        broadcast(lobby, serverText(lobby.name, "[*] User " + username + " has joined the chat."), null);
+        if (store != null) {
+            for (Room room : rooms.values()) {
+                if (room != lobby && room.keys.contains(username)) {
+                    join(room.name, username, info);
+                }
+            }
+        }
+    }
+
+    /*
+    Sends a returning user its stored envelopes on a thread of its own (virtual with the virtual engine), waiting for room in its queue instead of
+    applying the slow-consumer policy. The user only goes live once the store has nothing left for it; envelopes
+    arriving in the meantime are stored too and picked up by the same replay, so everything arrives in order.
+     */
+    private static void startReplay(String username, ClientInfo info, ServerConfig config) {
+        MessageSink sink = info.sink;
+        MessageStore.Delivery delivery = sink instanceof OutboundQueue ? ((OutboundQueue) sink)::sendWhenRoom : sink::send;
+        Thread replay = config.newThread(() -> {
+            try {
+                while (true) {
+                    ServerMetrics.replayedMessages.add(store.replay(username, delivery));
+                    lobby.lock.lock();
+                    try {
+                        if (goLive(username, info)) {
+                            subscribe(lobby, username, info);
+                            // Key deltas broadcast during the replay did not reach this client
+                            sink.send(lobby.keys.snapshot(info.rsaOnly));
+                            ServerMetrics.keyMapSnapshots.increment();
+                            break;
+                        }
+                    } finally {
+                        lobby.lock.unlock();
+                    }
+                }
+                joined(username, info);
+            } catch (IOException e) {
+                System.err.println("[Server] Replay to " + username + " stopped: " + e.getMessage());
+            } finally {
+                replaying.remove(username);
+                // A replay that stopped before the user went live leaves the name to nobody
+                if (!clients.containsKey(username)) {
+                    Cluster.release(username);
+                }
+            }
+        });
+        replay.setName("replay-" + username);
+        replay.start();
+    }
+
+    private static void subscribe(Room room, String username, ClientInfo info) {
+        room.members.put(username, info);
+        info.rooms.add(room.name);
+    }
+
+    // Adds a client to a room, creating the room if needed, and sends it the room's key map.
+    // Joining a room the client is already in just sends the key map again
+    private static void join(String name, String username, ClientInfo info) throws IOException {
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        Room room;
+        boolean rejoin;
+        while (true) {
+            room = rooms.computeIfAbsent(name, Room::new);
+            room.lock.lock();
+            try {
+                if (room.closed) {
+                    continue;
+                }
+                rejoin = room.members.get(username) == info;
+                ChatMessage keyAdded = rejoin ? null : room.keys.add(username, info.keyEntry, !info.senderKeys);
+                if (keyAdded != null) {
+                    Cluster.memberJoined(room, username, info);
+                }
+                info.sink.send(room.keys.snapshot(info.rsaOnly));
+                ServerMetrics.keyMapSnapshots.increment();
+                subscribe(room, username, info);
+                if (keyAdded != null) {
+                    fanOutKeys(room, keyAdded, username, failedClients);
+                    ServerMetrics.keyDeltas.increment();
+                }
+                break;
+            } finally {
+                room.lock.unlock();
+            }
+        }
+        dropFailed(failedClients);
+        if (clients.get(username) != info) {
+            // The client was removed while joining and may have missed this room
+            leave(room, username, info, store != null, null);
+        } else if (!rejoin) {
+            broadcast(room, serverText(room.name, "[*] User " + username + " has joined #" + room.name + "."), null);
+        }
+    }
+
+    // Removes a client from a room. With keepKey its key stays in the room's directory so the others can still
+    // encrypt for it while it is away, and is re-issued so they hand it their sender keys again (see
+    // KeyDirectory.reissue). A room other than the lobby is dropped once it has neither members nor keys
+    private static void leave(Room room, String username, ClientInfo info, boolean keepKey, String notice) {
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        room.lock.lock();
+        try {
+            if (!room.members.remove(username, info)) {
+                return;
+            }
+            info.rooms.remove(room.name);
+            ChatMessage delta = keepKey ? room.keys.reissue(username) : room.keys.remove(username);
+            if (!keepKey) {
+                Cluster.memberLeft(room, username);
+            }
+            if (delta != null) {
+                fanOutKeys(room, delta, null, failedClients);
+                ServerMetrics.keyDeltas.increment();
+            }
+            if (room != lobby && room.members.isEmpty() && room.keys.isEmpty()) {
+                room.closed = true;
+                rooms.remove(room.name, room);
+            }
+        } finally {
+            room.lock.unlock();
+        }
+        dropFailed(failedClients);
+        if (notice != null) {
+            broadcast(room, serverText(room.name, notice), null);
+        }
+    }
+
+    // Removes a client and tells every room it was in that it is gone
+    static void unregister(String username, MessageSink sink) {
+        ClientInfo info = clients.get(username);
+        // The entry may already be gone after a failed write, or belong to a newer connection with the same name
+        if (info != null && info.sink == sink) {
+            removeClient(username, info, false);
+        }
+    }
+
+    private static String newToken() {
+        byte[] token = new byte[32];
+        tokenRandom.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    private static ChatMessage sessionMessage(String username, String token) {
+        return new ChatMessage("Server", username, token, ChatMessage.MessageType.SESSION);
+    }
+
+    /*
+    Called when the connection of a registered client breaks without a /disconnect. A resumable session is parked
+    instead of ended: the client stays in its rooms and key directories, its queue keeps collecting what is sent to
+    it, and nobody is told anything unless it fails to come back within the grace period. Returns true if the
+    session was parked, otherwise the client has been unregistered.
+     */
+    static boolean connectionLost(String username, MessageSink sink) {
+        ClientInfo info = clients.get(username);
+        if (info != null && info.sink == sink && info.resumeToken != null) {
+            info.sessionLock.lock();
+            try {
+                if (info.sink == sink && ((OutboundQueue) sink).park()) {
+                    info.expiry = sessionTimer.schedule(() -> expire(username, info, (OutboundQueue) sink),
+                            info.resumeMillis, TimeUnit.MILLISECONDS);
+                    return true;
+                }
+            } finally {
+                info.sessionLock.unlock();
+            }
+        }
+        unregister(username, sink);
+        return false;
+    }
+
+    /*
+    Takes over the session a RESUME names, for the connection whose queue is given. The token must match, and the
+    messages the client did not receive on its old connection (it says how many it did) must all still be kept;
+    they are moved into the new queue behind a SESSION with a fresh token, and nobody else notices the reconnect.
+    The old connection need not have noticed its drop yet. Returns the username, or null if the session cannot be
+    resumed; a session that had already lost messages is ended so the client can log in again under its name.
+     */
+    static String resume(ChatMessage request, MessageSink sink) {
+        String username = request.getSender();
+        ClientInfo info = username != null ? clients.get(username) : null;
+        if (info == null || info.resumeToken == null || request.getMessage() == null || !(sink instanceof OutboundQueue)
+                || !MessageDigest.isEqual(info.resumeToken.getBytes(StandardCharsets.UTF_8),
+                request.getMessage().getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        OutboundQueue queue = (OutboundQueue) sink;
+        OutboundQueue old;
+        info.sessionLock.lock();
+        try {
+            old = (OutboundQueue) info.sink;
+            if (clients.get(username) == info && old != queue) {
+                old.park();
+                String token = newToken();
+                if (old.transferTo(queue, request.getSequence(), sessionMessage(username, token))) {
+                    info.resumeToken = token;
+                    if (info.expiry != null) {
+                        info.expiry.cancel(false);
+                        info.expiry = null;
+                    }
+                    info.sink = queue;
+                    ServerMetrics.resumedSessions.increment();
+                    return username;
+                }
+            }
+        } finally {
+            info.sessionLock.unlock();
+        }
+        expire(username, info, old);
+        return null;
+    }
+
+    // Ends a parked session right away, returns false if the name belongs to a live one
+    private static boolean expireParked(String username) {
+        ClientInfo info = clients.get(username);
+        if (info == null || !(info.sink instanceof OutboundQueue) || !((OutboundQueue) info.sink).isParked()) {
+            return info == null;
+        }
+        expire(username, info, (OutboundQueue) info.sink);
+        return true;
+    }
+
+    /*
+    Ends a dropped session that was not resumed, unless a resume took it over in the meantime, and only now tells
+    the client's rooms that it left. With a store, envelopes the client never acknowledged are kept for it, so even
+    a session that ran out of time loses nothing stored delivery would have kept.
+     */
+    private static void expire(String username, ClientInfo info, OutboundQueue queue) {
+        List<ChatMessage> unacknowledged;
+        info.sessionLock.lock();
+        try {
+            if (info.sink != queue || clients.get(username) != info) {
+                return;
+            }
+            if (info.expiry != null) {
+                info.expiry.cancel(false);
+                info.expiry = null;
+            }
+            unacknowledged = queue.expire();
+        } finally {
+            info.sessionLock.unlock();
+        }
+        if (store != null) {
+            ReentrantLock lock = storeLock(username);
+            lock.lock();
+            try {
+                for (ChatMessage message : unacknowledged) {
+                    if (isEnvelope(message) && username.equals(message.getRecipient())) {
+                        store.append(username, message);
+                        ServerMetrics.storedMessages.increment();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[Server] Failed to store messages for " + username + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (removeClient(username, info, true)) {
+            ServerMetrics.expiredSessions.increment();
+        }
+    }
+
+    private static boolean removeClient(String username, ClientInfo info, boolean unexpected) {
+        if (!clients.remove(username, info)) {
+            return false;
+        }
+        for (String name : new ArrayList<>(info.rooms)) {
+            Room room = rooms.get(name);
+            if (room != null) {
+                String notice = unexpected ? "[*] User " + username + " has disconnected unexpectedly."
+                        : "[*] User " + username + (room == lobby ? " has left." : " has left #" + room.name + ".");
+                leave(room, username, info, store != null, notice);
+            }
+        }
+        Cluster.release(username);
+        return true;
+    }
+
+    /*
+    Handles a message from a registered client. Room commands are answered directly, direct messages are routed
+    to their recipient, and everything else goes to the members of the room it names (the lobby if it names none):
+    key requests get the room's key map, envelopes are routed, group messages are passed on to the members that
+    read them and anything else is broadcast.
+     */
+    static void handleMessage(String username, MessageSink sink, ChatMessage message) throws IOException {
+        ServerMetrics.messagesIn.increment();
+        ClientInfo info = clients.get(username);
+        if (info == null || info.sink != sink) {
+            sink.send(serverText("[!] Still delivering your stored messages, try again in a moment."));
+            return;
+        }
+        switch (message.getType()) {
+            case SESSION_ACK:
+                if (sink instanceof OutboundQueue) {
+                    ((OutboundQueue) sink).acknowledge(message.getSequence());
+                }
+                return;
+            case ROOM_JOIN: {
+                String name = Room.normalizeName(message.getRoom());
+                if (name == null) {
+                    sink.send(serverText("[!] Room names are 1-" + Room.MAX_NAME_LENGTH + " letters, digits, '.', '_' or '-'."));
+                } else {
+                    join(name, username, info);
+                }
+                return;
+            }
+            case ROOM_LEAVE: {
+                Room room = rooms.get(Room.of(message));
+                if (room == lobby) {
+                    sink.send(serverText("[!] Everyone stays in #" + lobby.name + "."));
+                } else if (room == null || !info.rooms.contains(room.name)) {
+                    sink.send(serverText("[!] You are not in #" + Room.of(message) + "."));
+                } else {
+                    leave(room, username, info, false, "[*] User " + username + " has left #" + room.name + ".");
+                    sink.send(serverText(room.name, "[*] You left #" + room.name + "."));
+                }
+                return;
+            }
+            case ROOM_LIST:
+                sink.send(serverText(roomList(info)));
+                return;
+            case NODE_HELLO:
+            case NODE_CLAIM:
+            case NODE_CLAIM_RESULT:
+            case NODE_RELEASE:
+            case NODE_JOIN:
+            case NODE_LEAVE:
+                // Only cluster nodes send these, to each other
+                return;
+            default:
+                break;
+        }
+        if (isFileTransfer(message)) {
+            relayFile(username, sink, message);
+            return;
+        }
+        if (message.getType() == ChatMessage.MessageType.SENDER_KEY && !username.equals(message.getSender())) {
+            // Clients keep chains by sender, no member may hand one out in another's name
+            message = new ChatMessage(username, message.getRecipient(), message.getRoom(), null, message.getEntries(),
+                    message.getType(), message.getSequence());
+        }
+        if (isEnvelope(message) && message.getRecipient() != null) {
+            route(null, sink, message);
+            return;
+        }
+        Room room = rooms.get(Room.of(message));
+        if (room == null || !info.rooms.contains(room.name)) {
+            sink.send(serverText("[!] You are not in #" + Room.of(message) + "."));
+        } else if (message.getType() == ChatMessage.MessageType.KEY_REQUEST) {
+            room.lock.lock();
+            try {
+                sink.send(room.keys.snapshot(info.rsaOnly));
+            } finally {
+                room.lock.unlock();
+            }
+            ServerMetrics.keyMapSnapshots.increment();
+        } else if (isEnvelope(message)) {
+            route(room, sink, message);
+        } else if (message.getType() == ChatMessage.MessageType.GROUP_TEXT) {
+            broadcastGroup(room, username, message);
+        } else {
+            broadcast(room, message, null);
+        }
+    }
+
+    // The busiest rooms with their member counts, busiest first. In a cluster they count the members on every node
+    private static String roomList(ClientInfo info) {
+        List<Room> list = new ArrayList<>(rooms.values());
+        list.sort(Comparator.comparingInt((Room room) -> -memberCount(room)).thenComparing(room -> room.name));
+        StringBuilder sb = new StringBuilder("[*] Rooms:");
+        int shown = Math.min(list.size(), ROOM_LIST_LIMIT);
+        for (int i = 0; i < shown; i++) {
+            Room room = list.get(i);
+            sb.append(i == 0 ? " #" : ", #").append(room.name).append(" (").append(memberCount(room));
+            sb.append(info.rooms.contains(room.name) ? ", joined)" : ")");
+        }
+        if (list.size() > shown) {
+            sb.append(" and ").append(list.size() - shown).append(" more");
+        }
+        return sb.toString();
+    }
+
+    private static int memberCount(Room room) {
+        return room.members.size() + room.remote.size();
+    }
+
+    private static boolean isFileTransfer(ChatMessage message) {
+        switch (message.getType()) {
+            case FILE_OFFER:
+            case FILE_CHUNK:
+            case FILE_ACK:
+            case FILE_CANCEL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+    Passes one frame of a file transfer on to the other side as soon as it arrives, with the sender set to the user
+    it came from. Transfers run between two online users and are flow controlled end to end (see FileTransfer), so
+    the server holds at most a window of chunks per transfer and never spools a file; the store does not keep them.
+    If the other side is gone the sender gets a FILE_CANCEL back in its name. A user on another cluster node is
+    relayed to, and that node sends the FILE_CANCEL if it finds the user gone.
+     */
+    private static void relayFile(String username, MessageSink sink, ChatMessage message) throws IOException {
+        String target = message.getRecipient();
+        ClientInfo info = target != null ? clients.get(target) : null;
+        ChatMessage stamped = new ChatMessage(username, target, null, message.getMessage(), message.getEntries(),
+                message.getType(), message.getSequence());
+        if (info != null) {
+            Map<String, ClientInfo> failedClients = new HashMap<>();
+            boolean delivered = send(target, info, stamped, failedClients);
+            dropFailed(failedClients);
+            if (delivered) {
+                return;
+            }
+        } else if (target != null) {
+            Integer node = lobby.remote.get(target);
+            if (node != null && Cluster.send(node, stamped)) {
+                return;
+            }
+        }
+        if (target != null && message.getType() != ChatMessage.MessageType.FILE_CANCEL) {
+            sink.send(new ChatMessage(target, username, null, message.getMessage(), null, ChatMessage.MessageType.FILE_CANCEL, 0));
+        }
+        if (message.getType() == ChatMessage.MessageType.FILE_OFFER) {
+            sink.send(serverText("[!] User " + target + " is not online."));
+        }
+    }
+
+    // Encrypted messages whose ciphertexts are carried as entries (legacy String maps are still broadcast whole)
+    private static boolean isEnvelope(ChatMessage message) {
+        return message.getEntries() != null && (message.getType() == ChatMessage.MessageType.ENCRYPTED_TEXT
+                || message.getType() == ChatMessage.MessageType.HYBRID_TEXT || message.getType() == ChatMessage.MessageType.SENDER_KEY);
+    }
+
+    /*
+    Sends every recipient of an envelope a copy holding only its own entry, plus the shared body of a hybrid envelope
+    and its other fields (entries named with a leading space, which no username has), addressed to it through the recipient field. Each client downloads one ciphertext instead of all N of them.
+    The server only moves opaque ciphertexts around, so it still never sees a plaintext.
+    A room envelope only reaches the room's members. An envelope that already names a recipient is a direct
+    message (room is null) and only goes to that user.
+    With a store, the copies for members that are offline are kept until they reconnect.
+    In a cluster the entries of members on other nodes are relayed to those nodes, one envelope per node, which
+    route them again with a null senderSink: they only deliver to their own clients.
+     */
+    private static void route(Room room, MessageSink senderSink, ChatMessage envelope) throws IOException {
+        Map<String, byte[]> entries = envelope.getEntries();
+        Map<String, byte[]> fields = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (entry.getKey().startsWith(" ")) {
+                fields.put(entry.getKey(), entry.getValue());
+            }
+        }
+        String target = envelope.getRecipient();
+        boolean delivered = false;
+        boolean stored = false;
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        Map<Integer, Map<String, byte[]>> remote = new HashMap<>(); // Entries for other nodes, by node
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            String recipient = entry.getKey();
+            if (fields.containsKey(recipient) || (target != null && !target.equals(recipient))) {
+                continue;
+            }
+            ClientInfo info = room != null ? room.members.get(recipient) : clients.get(recipient);
+            Integer node = info == null && senderSink != null ? (room != null ? room : lobby).remote.get(recipient) : null;
+            if (node != null) {
+                remote.computeIfAbsent(node, id -> new HashMap<>(fields)).put(recipient, entry.getValue());
+                continue;
+            }
+            if (info == null && (store == null || !(room != null ? room : lobby).keys.contains(recipient))) {
+                continue;
+            }
+            if (info != null && !info.senderKeys && envelope.getType() == ChatMessage.MessageType.SENDER_KEY) {
+                continue;
+            }
+            Map<String, byte[]> own = new HashMap<>(fields);
+            own.put(recipient, entry.getValue());
+            ChatMessage copy = new ChatMessage(envelope.getSender(), recipient, room != null ? room.name : null, null, own,
+                    envelope.getType(), envelope.getSequence());
+            if (info == null) {
+                try {
+                    info = storeIfOffline(recipient, copy);
+                } catch (IOException e) {
+                    System.err.println("[Server] Failed to store message for " + recipient + ": " + e.getMessage());
+                    continue;
+                }
+                if (info == null) {
+                    stored = true;
+                    continue;
+                }
+            }
+            delivered |= send(recipient, info, copy, failedClients);
+        }
+        dropFailed(failedClients);
+        for (Map.Entry<Integer, Map<String, byte[]>> part : remote.entrySet()) {
+            delivered |= Cluster.send(part.getKey(), new ChatMessage(envelope.getSender(), target,
+                    room != null ? room.name : null, null, part.getValue(), envelope.getType(), envelope.getSequence()));
+        }
+        if (target != null && !delivered && senderSink != null) {
+            senderSink.send(serverText(stored ? "[*] User " + target + " is offline, the message will be delivered when they reconnect."
+                    : "[!] User " + target + " is not online."));
+        }
+    }
+
+    /*
+    Passes a GROUP_TEXT on to the room's members as it is: one message encrypted with the sender's chain (see
+    SenderKeyUtils) that every member reads with the same key, so it is encoded once whatever the room's size.
+    The sender is set to the user it came from, members that do not read sender key messages are skipped (the
+    sender sends them pairwise envelopes), and with a store it is kept for the members that are offline.
+    Other cluster nodes with members in the room are relayed the same message.
+     */
+    private static void broadcastGroup(Room room, String username, ChatMessage message) {
+        ChatMessage stamped = new ChatMessage(username, null, room.name, null, message.getEntries(),
+                ChatMessage.MessageType.GROUP_TEXT, message.getSequence());
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        fanOutGroup(room, stamped, failedClients);
+        dropFailed(failedClients);
+        Cluster.relay(room, stamped);
+        if (store != null) {
+            for (String recipient : room.keys.absent(room.members.keySet())) {
+                try {
+                    ClientInfo info = storeIfOffline(recipient, stamped);
+                    // Went live after the members were read
+                    if (info != null && info.senderKeys && room.members.get(recipient) == info) {
+                        send(recipient, info, stamped, failedClients);
+                    }
+                } catch (IOException e) {
+                    System.err.println("[Server] Failed to store message for " + recipient + ": " + e.getMessage());
+                }
+            }
+            dropFailed(failedClients);
+        }
+    }
+
+    private static void fanOutGroup(Room room, ChatMessage message, Map<String, ClientInfo> failedClients) {
+        long start = System.nanoTime();
+        for (Map.Entry<String, ClientInfo> entry : room.members.entrySet()) {
+            if (entry.getValue().senderKeys && !entry.getKey().equals(message.getSender())) {
+                send(entry.getKey(), entry.getValue(), message, failedClients);
+            }
+        }
+        ServerMetrics.broadcastMicros.record(ServerMetrics.micros(start));
+    }
+
+    // Stores a copy for a recipient that is offline, or returns its client if it went live in the meantime
+    private static ClientInfo storeIfOffline(String recipient, ChatMessage copy) throws IOException {
+        ReentrantLock lock = storeLock(recipient);
+        lock.lock();
+        try {
+            ClientInfo info = clients.get(recipient);
+            if (info == null) {
+                store.append(recipient, copy);
+                ServerMetrics.storedMessages.increment();
+            }
+            return info;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ReentrantLock storeLock(String username) {
+        return storeLocks[(username.hashCode() & 0x7fffffff) % storeLocks.length];
+    }
+
+    // Queues a message for every member of a room, sending only enqueues so no lock is needed around the fan-out.
+    // In a cluster the other nodes with members in the room are relayed it, excludeUser is a local user
+    static void broadcast(Room room, ChatMessage message, String excludeUser) {
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        fanOut(room, message, excludeUser, failedClients);
+        dropFailed(failedClients);
+        Cluster.relay(room, message);
+    }
+
+    // Clients that fail are collected rather than dropped, so this is safe to call under a room lock
+    private static void fanOut(Room room, ChatMessage message, String excludeUser, Map<String, ClientInfo> failedClients) {
+        fanOut(room, message, message, excludeUser, failedClients);
+    }
+
+    // A key directory delta, members that read RSA keys only get it without EC keys so their epochs still line up
+    private static void fanOutKeys(Room room, ChatMessage delta, String excludeUser, Map<String, ClientInfo> failedClients) {
+        fanOut(room, delta, KeyDirectory.rsaOnly(delta), excludeUser, failedClients);
+    }
+
+    private static void fanOut(Room room, ChatMessage message, ChatMessage rsaOnlyMessage, String excludeUser,
+                               Map<String, ClientInfo> failedClients) {
+        long start = System.nanoTime();
+        for (Map.Entry<String, ClientInfo> entry : room.members.entrySet()) {
+            if (excludeUser == null || !entry.getKey().equals(excludeUser)) {
+                send(entry.getKey(), entry.getValue(), entry.getValue().rsaOnly ? rsaOnlyMessage : message, failedClients);
+            }
+        }
+        ServerMetrics.broadcastMicros.record(ServerMetrics.micros(start));
+    }
+
+    private static boolean send(String username, ClientInfo info, ChatMessage message, Map<String, ClientInfo> failedClients) {
+        try {
+            info.sink.send(message);
+            ServerMetrics.messagesOut.increment();
+            return true;
+        } catch (IOException e) {
+            ServerMetrics.failedWrites.increment();
+            System.err.println("[Server] Failed to send to " + username + ": " + e.getMessage());
+            failedClients.put(username, info);
+            return false;
+        }
+    }
+
+    // Must not be called under a room lock, dropping a client takes the locks of all its rooms
+    private static void dropFailed(Map<String, ClientInfo> failedClients) {
+        for (Map.Entry<String, ClientInfo> failed : failedClients.entrySet()) {
+            removeClient(failed.getKey(), failed.getValue(), true);
+        }
+    }
+
+    // Called by Cluster with what other nodes send
+
+    // Sends another node the members this node has in every room, after the link to it (re)connected. A room's
+    // changes are sent under its lock, so the members are read between two of them
+    static void syncTo(int node) {
+        for (Room room : rooms.values()) {
+            room.lock.lock();
+            try {
+                for (Map.Entry<String, ClientInfo> member : room.members.entrySet()) {
+                    Cluster.send(node, Cluster.joinMessage(room.name, member.getKey(), member.getValue()));
+                }
+            } finally {
+                room.lock.unlock();
+            }
+        }
+    }
+
+    // A user of another node joined a room, it goes into the room's directory like a local member
+    static void remoteJoin(int node, ChatMessage join) {
+        String username = join.getSender();
+        String name = Room.normalizeName(join.getRoom());
+        byte[] entry = join.getEntries() != null && username != null ? join.getEntries().get(username) : null;
+        if (name == null || entry == null) {
+            return;
+        }
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            room.lock.lock();
+            try {
+                if (room.closed) {
+                    continue;
+                }
+                if (!room.members.containsKey(username)) {
+                    room.addRemote(username, node);
+                    fanOutKeys(room, room.keys.add(username, entry, join.getMessage() != null), null, failedClients);
+                    ServerMetrics.keyDeltas.increment();
+                }
+                break;
+            } finally {
+                room.lock.unlock();
+            }
+        }
+        dropFailed(failedClients);
+    }
+
+    // A user of another node left a room, the notice comes from that node
+    static void remoteLeave(int node, String name, String username) {
+        Room room = name != null ? rooms.get(name) : null;
+        if (room != null && username != null) {
+            Map<String, ClientInfo> failedClients = new HashMap<>();
+            dropRemote(room, username, node, failedClients);
+            dropFailed(failedClients);
+        }
+    }
+
+    // Drops the users of a node that went away, or is about to send them again, from every room
+    static void nodeDown(int node) {
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        for (Room room : rooms.values()) {
+            for (Map.Entry<String, Integer> member : room.remote.entrySet()) {
+                if (member.getValue() == node && dropRemote(room, member.getKey(), node, failedClients)) {
+                    fanOut(room, serverText(room.name, "[*] User " + member.getKey() + " has disconnected unexpectedly."),
+                            null, failedClients);
+                }
+            }
+        }
+        dropFailed(failedClients);
+    }
+
+    private static boolean dropRemote(Room room, String username, int node, Map<String, ClientInfo> failedClients) {
+        room.lock.lock();
+        try {
+            if (!room.removeRemote(username, node)) {
+                return false;
+            }
+            ChatMessage delta = room.keys.remove(username);
+            if (delta != null) {
+                fanOutKeys(room, delta, null, failedClients);
+                ServerMetrics.keyDeltas.increment();
+            }
+            if (room != lobby && room.members.isEmpty() && room.keys.isEmpty()) {
+                room.closed = true;
+                rooms.remove(room.name, room);
+            }
+            return true;
+        } finally {
+            room.lock.unlock();
+        }
+    }
+
+    /*
+    Delivers what another node relayed to this node's clients, without relaying it any further: file transfer
+    frames to their recipient (a FILE_CANCEL goes back if it is gone), envelopes through route, and anything else
+    to the room's members the way the origin node delivered it to its own.
+     */
+    static void deliverRelayed(ChatMessage message) throws IOException {
+        Map<String, ClientInfo> failedClients = new HashMap<>();
+        if (isFileTransfer(message)) {
+            String target = message.getRecipient();
+            ClientInfo info = target != null ? clients.get(target) : null;
+            if (info == null || !send(target, info, message, failedClients)) {
+                Integer node = message.getSender() != null ? lobby.remote.get(message.getSender()) : null;
+                if (node != null && message.getType() != ChatMessage.MessageType.FILE_CANCEL) {
+                    Cluster.send(node, new ChatMessage(target, message.getSender(), null, message.getMessage(), null,
+                            ChatMessage.MessageType.FILE_CANCEL, 0));
+                }
+            }
+            dropFailed(failedClients);
+            return;
+        }
+        Room room = rooms.get(Room.of(message));
+        if (isEnvelope(message) && message.getRecipient() != null) {
+            route(null, null, message);
+        } else if (room == null) {
+            return;
+        } else if (isEnvelope(message)) {
+            route(room, null, message);
+        } else if (message.getType() == ChatMessage.MessageType.GROUP_TEXT) {
+            fanOutGroup(room, message, failedClients);
+        } else {
+            fanOut(room, message, null, failedClients);
+        }
+        dropFailed(failedClients);
+    }
+
+    static int connectedUsers() {
+        return clients.size();
+    }
+
+    static int roomCount() {
+        return rooms.size();
+    }
+
+    // Envelopes waiting in the store for offline users
+    static long storedPending() {
+        MessageStore current = store;
+        return current != null ? current.pendingTotal() : 0;
+    }
+
+    // Current and peak outbound queue depth summed over all connected clients
+    static int totalQueueDepth() {
+        int depth = 0;
+        for (ClientInfo info : clients.values()) {
+            if (info.sink instanceof OutboundQueue) {
+                depth += ((OutboundQueue) info.sink).depth();
+            }
+        }
+        return depth;
+    }
+
+    static int maxQueueDepth() {
+        int depth = 0;
+        for (ClientInfo info : clients.values()) {
+            if (info.sink instanceof OutboundQueue) {
+                depth = Math.max(depth, ((OutboundQueue) info.sink).maxDepth());
+            }
+        }
+        return depth;
     }
 
     static class ClientHandler implements Runnable {
         private Socket socket;
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
+        private DataOutputStream out;
+        private DataInputStream in;
         private String username;
+        // Switched to binary once the client sends a binary frame
+        private volatile WireCodec codec = WireCodec.JAVA;
+        // Everything sent to this client goes through the queue and is written by the connection's writer thread
+        private final OutboundQueue queue;
+        private final ServerConfig config;
+        private final ConnectionLimits limits;
+        private int frameBytes; // Size of the frame read last
 
         public ClientHandler(Socket socket) {
+            this(socket, new ServerConfig());
+        }
+
+        public ClientHandler(Socket socket, ServerConfig config) {
             this.socket = socket;
+            this.config = config;
+            this.queue = config.newOutboundQueue(null, this::closeSocket);
+            this.limits = new ConnectionLimits(config);
+        }
+
+        private void send(ChatMessage message) throws IOException {
+            queue.send(message);
+        }
+
+        private void writeLoop() {
+            try {
+                // Everything queued goes out with one flush, up to the byte budget. A connection that had more
+                // than one frame last time is busy, so its writer also lingers up to coalesceMicros for more,
+                // while a lone message on a quiet connection is flushed straight away
+                boolean busy = false;
+                ChatMessage message;
+                while ((message = queue.take()) != null) {
+                    int frames = 0;
+                    int bytes = 0;
+                    do {
+                        byte[] frame = codec.frame(message);
+                        out.write(frame);
+                        frames++;
+                        bytes += frame.length;
+                        if (bytes >= config.coalesceBytes) {
+                            break;
+                        }
+                        message = queue.poll();
+                        if (message == null && busy && config.coalesceMicros > 0) {
+                            message = queue.poll(config.coalesceMicros, TimeUnit.MICROSECONDS);
+                        }
+                    } while (message != null);
+                    out.flush();
+                    ServerMetrics.bytesOut.add(bytes);
+                    ServerMetrics.socketWrites.increment();
+                    busy = frames > 1;
+                }
+            } catch (IOException | InterruptedException e) {
+                ServerMetrics.failedWrites.increment();
+                // The reader notices the closed socket and parks or unregisters the client. The queue is left
+                // alone, what it holds may still be delivered on a resumed connection
+                closeSocket();
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+
+        /*
+        Socket input that gives up once the handshake deadline has passed. The timeout is set to what is left of it
+        before every read from the socket, so a client sending its username a byte at a time runs out of time too.
+        Once the handshake is finished reads go straight through.
+         */
+        private class HandshakeDeadlineStream extends FilterInputStream {
+            HandshakeDeadlineStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                armTimeout();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                armTimeout();
+                return super.read(b, off, len);
+            }
+
+            private void armTimeout() throws IOException {
+                long left = limits.handshakeNanosLeft(System.nanoTime());
+                if (left == Long.MAX_VALUE) {
+                    return;
+                }
+                if (left <= 0) {
+                    throw new SocketTimeoutException("Handshake timed out");
+                }
+                socket.setSoTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(left))));
+            }
+        }
+
+        private Object readFrame() throws IOException, ClassNotFoundException {
+            byte[] payload = FrameUtils.readPayload(in);
+            frameBytes = FrameUtils.HEADER_SIZE + payload.length;
+            ServerMetrics.bytesIn.add(frameBytes);
+            if (WireCodec.of(payload, 0, payload.length) == WireCodec.BINARY) {
+                codec = WireCodec.BINARY;
+            }
+            return WireCodec.decode(payload, 0, payload.length);
         }
 
         public void run() {
+            long acceptedNanos = System.nanoTime();
+            Thread writer = null;
+            boolean clean = false; // The client said goodbye, so there is no session to keep
+            boolean registered = false; // Until then an accepted username is only claimed
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                // Sized to the coalescing budget so a batch reaches the socket as one write
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), config.coalesceBytes));
+                in = new DataInputStream(new BufferedInputStream(new HandshakeDeadlineStream(socket.getInputStream())));
+                writer = config.newThread(this::writeLoop);
+                writer.start();
 
-                out.writeObject(new ChatMessage("Server", null, "[*] Connection acknowledged by ChatServer", ChatMessage.MessageType.TEXT));
-                out.flush();
+                send(acknowledgement(config));
 
+                boolean resumed = false;
                 while (true) {
-                    String requestedUsername = ((String) in.readObject()).replaceAll("\\s+", "-");
-                    if (requestedUsername == null || requestedUsername.trim().isEmpty()) {
-                        out.writeObject(new ChatMessage("Server", null, "[!] Username cannot be empty. Try again.", ChatMessage.MessageType.TEXT));
-                        out.flush();
+                    Object request = readFrame();
+                    if (!limits.handshakeAttempt()) {
+                        send(serverText("[!] Too many attempts, closing the connection."));
+                        throw new IOException("Too many username attempts");
+                    }
+                    if (request instanceof ChatMessage && ((ChatMessage) request).getType() == ChatMessage.MessageType.RESUME) {
+                        username = resume((ChatMessage) request, queue);
+                        if (username != null) {
+                            resumed = true;
+                            registered = true;
+                            break;
+                        }
+                        send(serverText("[!] Session could not be resumed, log in again."));
                         continue;
                     }
-                    if (!clients.containsKey(requestedUsername)) {
+                    String requestedUsername = normalizeUsername((String) request);
+                    String rejection = usernameRejection(requestedUsername);
+                    if (rejection == null && !Cluster.claim(requestedUsername, this).join()) {
+                        rejection = takenNotice(requestedUsername);
+                    }
+                    if (rejection == null) {
                         username = requestedUsername;
-                        out.writeObject(new ChatMessage("Server", null, "[*] Username accepted: " + username, ChatMessage.MessageType.TEXT));
-                        out.flush();
+                        send(serverText("[*] Username accepted: " + username));
                         break;
-                    } else {
-                        out.writeObject(new ChatMessage("Server", null, "[!] Username taken. Try again or use: " + requestedUsername + new Random().nextInt(100), ChatMessage.MessageType.TEXT));
-                        out.flush();
                     }
+                    send(serverText(rejection));
                 }
 
-                ChatMessage keyMsg = (ChatMessage) in.readObject();
-                if (keyMsg.getType() != ChatMessage.MessageType.PUBLIC_KEY) {
-                    throw new IOException("Expected public key");
-                }
-                clients.put(username, new ClientInfo(out, keyMsg.getPublicKey()));
-
-                // Convert public keys to Base64-encoded strings
-                Map<String, String> publicKeyStrings = new HashMap<>();
-                for (Map.Entry<String, ClientInfo> entry : clients.entrySet()) {
-                    String keyEncoded = Base64.getEncoder().encodeToString(entry.getValue().publicKey.getEncoded());
-                    publicKeyStrings.put(entry.getKey(), keyEncoded);
+                if (!resumed) {
+                    ChatMessage keyMsg = (ChatMessage) readFrame();
+                    if (keyMsg.getType() != ChatMessage.MessageType.PUBLIC_KEY) {
+                        throw new IOException("Expected public key");
+                    }
+                    String rejection = keyRejection(keyMsg, config);
+                    if (rejection != null) {
+                        send(serverText(rejection));
+                        throw new IOException("Public key refused");
+                    }
+                    registered = true;
+                    register(username, queue, keyMsg, config);
                 }
-                String serializedKeys = SerializationUtils.serialize(publicKeyStrings);
-                out.writeObject(new ChatMessage("Server", null, serializedKeys, ChatMessage.MessageType.PUBLIC_KEY_MAP));
-                out.flush();
-
-                // Broadcast updated public key map to all clients
-                broadcast(new ChatMessage("Server", null, serializedKeys, ChatMessage.MessageType.PUBLIC_KEY_MAP), username);
-                broadcast(new ChatMessage("Server", null, "[*] User " + username + " has joined the chat.", ChatMessage.MessageType.TEXT), null);
+                limits.handshakeFinished();
+                socket.setSoTimeout(0);
+                ServerMetrics.handshakeMicros.record(ServerMetrics.micros(acceptedNanos));
 
                 Object inputObj;
-                while ((inputObj = in.readObject()) != null) {
+                while ((inputObj = readFrame()) != null) {
                     ChatMessage msg = (ChatMessage) inputObj;
                     if (msg.getMessage() != null && msg.getMessage().equalsIgnoreCase("/disconnect")) {
-                        out.writeObject(new ChatMessage("Server", null, "[*] Disconnected from the ChatServer successfully", ChatMessage.MessageType.TEXT));
-                        out.flush();
+                        send(serverText("[*] Disconnected from the ChatServer successfully"));
+                        clean = true;
                         break;
                     } else {
-                        broadcast(msg, null);
+                        handleMessage(username, queue, msg);
+                    }
+                    // Over its rate the client is not read from for a while, TCP then slows it down
+                    long delay = limits.readDelayNanos(frameBytes);
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
                     }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SocketTimeoutException e) {
+                // Reads only time out during the handshake
+                limits.handshakeTimedOut();
+                System.err.println("[Server] Handshake timed out: " + (username != null ? username : "unknown"));
             } catch (IOException e) {
                 System.err.println("[Server] Client error: " + (username != null ? username : "unknown") + ": " + e.getMessage());
             } catch (ClassNotFoundException e) {
                 System.err.println("[Server] Deserialization error for " + (username != null ? username : "unknown") + ": " + e.getMessage());
             } finally {
-                try {
-                    if (username != null) {
-                        clients.remove(username);
-                        // Update public key map for remaining clients
-                        Map<String, String> publicKeyStrings = new HashMap<>();
-                        for (Map.Entry<String, ClientInfo> entry : clients.entrySet()) {
-                            String keyEncoded = Base64.getEncoder().encodeToString(entry.getValue().publicKey.getEncoded());
-                            publicKeyStrings.put(entry.getKey(), keyEncoded);
-                        }
-                        String serializedKeys = SerializationUtils.serialize(publicKeyStrings);
-                        broadcast(new ChatMessage("Server", null, serializedKeys, ChatMessage.MessageType.PUBLIC_KEY_MAP), null);
-                        broadcast(new ChatMessage("Server", null, "[*] User " + username + " has left.", ChatMessage.MessageType.TEXT), null);
-                    }
-                    socket.close();
-                } catch (IOException ignored) {}
-            }
-        }
-
-        private void broadcast(ChatMessage message, String excludeUser) {
-            List<String> failedClients = new ArrayList<>();
-            synchronized (clients) {
-                for (Map.Entry<String, ClientInfo> entry : clients.entrySet()) {
-                    if (excludeUser == null || !entry.getKey().equals(excludeUser)) {
-                        try {
-                            synchronized (entry.getValue().out) {
-                                entry.getValue().out.writeObject(message);
-                                entry.getValue().out.flush();
-                            }
-                        } catch (IOException e) {
-                            System.err.println("[Server] Failed to send to " + entry.getKey() + ": " + e.getMessage());
-                            failedClients.add(entry.getKey());
-                        }
+                boolean parked = false;
+                if (username != null && registered) {
+                    if (clean) {
+                        unregister(username, queue);
+                    } else {
+                        parked = connectionLost(username, queue);
                     }
                 }
-            }
-            for (String client : failedClients) {
-                clients.remove(client);
-                try {
-                    Map<String, String> publicKeyStrings = new HashMap<>();
-                    for (Map.Entry<String, ClientInfo> entry : clients.entrySet()) {
-                        String keyEncoded = Base64.getEncoder().encodeToString(entry.getValue().publicKey.getEncoded());
-                        publicKeyStrings.put(entry.getKey(), keyEncoded);
-                    }
-                    String serializedKeys = SerializationUtils.serialize(publicKeyStrings);
-                    broadcast(new ChatMessage("Server", null, serializedKeys, ChatMessage.MessageType.PUBLIC_KEY_MAP), null);
-                    broadcast(new ChatMessage("Server", null, "[*] User " + client + " has disconnected unexpectedly.", ChatMessage.MessageType.TEXT), null);
-                } catch (IOException ignored) {}
+                if (username != null) {
+                    abandon(username, this);
+                }
+                // Let the writer finish what is already queued, such as the goodbye after /disconnect
+                if (!parked) {
+                    queue.close();
+                }
+                if (writer != null) {
+                    try {
+                        writer.join(1000);
+                    } catch (InterruptedException ignored) {}
+                }
+                closeSocket();
+                limits.release();
+                ServerMetrics.closedConnections.increment();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,504 @@
+package src;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Runs several server nodes as one chat behind a TCP load balancer, so capacity grows with the nodes and a node that
+fails only takes its own connections with it. Every node is started with the same --cluster list of inter-node
+addresses and its own --node-id, and keeps a persistent link to every other node, retrying the ones that are down.
+
+Usernames are partitioned over the live nodes by consistent hashing (VIRTUAL_NODES points per node on a ring), and
+the owner of a name keeps which node holds it. Within a node a name is held by one connection at a time. A
+handshake claims its username here and then at the owner before accepting it, so a name is unique across the
+cluster, and the node holding it releases it when the user goes. When a node comes
+or goes only the names whose owner changed move, their holders claim them again at the new owner. Dropped sessions
+are not kept for resuming, a client that comes back through another node could not find its session there and logs
+in again instead.
+
+Room key directories are replicated instead, as every node serves full key maps to its own clients: each node
+passes on which of its users join and leave which room (NODE_JOIN, NODE_LEAVE) and keeps its own epochs. Chat
+traffic is relayed as the very message the clients get, once to each node with members of the room, so it is
+encoded once for clients and nodes alike. Envelopes are split by node, each node getting the entries of its own
+members only; the nodes still only move ciphertexts around.
+
+Each pair of nodes has two connections that carry traffic one way: a node writes on the link it opened and reads
+on the one the other node opened. A link starts with NODE_HELLO followed by the sender's room members, and the
+receiver drops whatever it had from that node when it sees the hello or the link breaks, so the two are back in
+step after any reconnect. Links are neither authenticated nor encrypted, they belong on a private network.
+ */
+class Cluster {
+    private static final int VIRTUAL_NODES = 64;
+    private static final long CLAIM_TIMEOUT_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 500;
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024; // Frames waiting for a node, past that the link is reset
+    private static final int LINK_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile int self = -1; // This node's id, -1 when standalone
+    private static PeerLink[] links; // Outgoing link to every other node by id, null at self
+    private static Socket[] inbound; // Current incoming link of every other node, null while it is down. Guarded by Cluster.class
+    private static volatile TreeMap<Integer, Integer> ring = new TreeMap<>(); // Hash ring points to node ids
+    // Owner side: the node holding each name this node owns
+    private static final ConcurrentHashMap<String, Integer> registry = new ConcurrentHashMap<>();
+    // Names this node holds, for its users and the handshakes in progress, with the connection that claimed each
+    private static final ConcurrentHashMap<String, Object> held = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private static final AtomicLong claimIds = new AtomicLong();
+
+    // Joins the cluster the config names, only the first call has any effect and none without --cluster
+    static synchronized void start(ServerConfig config) throws IOException {
+        if (self >= 0 || config.clusterNodes.isEmpty()) {
+            return;
+        }
+        InetSocketAddress address = config.clusterNodes.get(config.nodeId);
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(address);
+        int count = config.clusterNodes.size();
+        links = new PeerLink[count];
+        inbound = new Socket[count];
+        self = config.nodeId;
+        ring = ring(liveNodes());
+        daemon(() -> acceptLoop(listener), "cluster-accept").start();
+        for (int node = 0; node < count; node++) {
+            if (node != self) {
+                links[node] = new PeerLink(node, config.clusterNodes.get(node));
+                daemon(links[node], "cluster-link-" + node).start();
+            }
+        }
+        System.out.println("[Server] Node " + self + " of a " + count + "-node cluster, listening for nodes on " + address);
+    }
+
+    static boolean enabled() {
+        return self >= 0;
+    }
+
+    // This node and the other nodes it currently has both links with
+    static synchronized int liveNodeCount() {
+        return self < 0 ? 1 : liveNodes().size();
+    }
+
+    /*
+    Claims a username for connection, which stands for the handshake asking (any object that is its alone), first
+    on this node and then at the node owning it. Completes with false if another connection of this node or another
+    node holds it, or if the owner does not answer in time. A standalone server, or a name this node owns, gets its
+    answer right away; otherwise it arrives on a link thread.
+     */
+    static CompletableFuture<Boolean> claim(String username, Object connection) {
+        if (held.putIfAbsent(username, connection) != null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (self < 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        int owner = owner(ring, username);
+        if (owner == self) {
+            boolean granted = take(username, self);
+            if (!granted) {
+                held.remove(username, connection);
+            }
+            return CompletableFuture.completedFuture(granted);
+        }
+        long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        pendingClaims.put(id, answer);
+        answer.completeOnTimeout(false, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((granted, e) -> pendingClaims.remove(id));
+        if (!send(owner, claimMessage(username, id))) {
+            answer.complete(false);
+        }
+        return answer.thenApply(granted -> {
+            if (!granted && held.remove(username, connection)) {
+                // In case the owner granted it after all once the wait was over; a no-op if another node holds it
+                send(owner, releaseMessage(username));
+            }
+            return granted;
+        });
+    }
+
+    // Gives up a name a connection claimed whose handshake failed, unless the name is no longer that connection's
+    static void release(String username, Object connection) {
+        if (held.remove(username, connection)) {
+            released(username);
+        }
+    }
+
+    // Gives up the name of a registered user that is gone
+    static void release(String username) {
+        if (held.remove(username) != null) {
+            released(username);
+        }
+    }
+
+    private static void released(String username) {
+        if (self < 0) {
+            return;
+        }
+        int owner = owner(ring, username);
+        if (owner == self) {
+            registry.remove(username, self);
+        } else {
+            send(owner, releaseMessage(username));
+        }
+    }
+
+    // Tells the other nodes a user of this node joined or left a room's directory. Called under the room lock,
+    // so they see the changes to a room in the order they were made
+    static void memberJoined(Room room, String username, ChatServer.ClientInfo info) {
+        if (self >= 0) {
+            sendAll(joinMessage(room.name, username, info));
+        }
+    }
+
+    static void memberLeft(Room room, String username) {
+        if (self >= 0) {
+            sendAll(new ChatMessage(username, null, room.name, null, null, ChatMessage.MessageType.NODE_LEAVE, 0));
+        }
+    }
+
+    static ChatMessage joinMessage(String room, String username, ChatServer.ClientInfo info) {
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(username, info.keyEntry);
+        // Members that do not read sender key messages are marked so the other nodes list them as pairwise
+        return new ChatMessage(username, null, room, info.senderKeys ? null : "pairwise", entries,
+                ChatMessage.MessageType.NODE_JOIN, 0);
+    }
+
+    // Passes a message on to every other node with members in the room, which deliver it to theirs
+    static void relay(Room room, ChatMessage message) {
+        if (self < 0) {
+            return;
+        }
+        for (Integer node : room.remoteNodes.keySet()) {
+            send(node, message);
+        }
+    }
+
+    // Queues a message for another node, returns false if the link to it is down
+    static boolean send(int node, ChatMessage message) {
+        PeerLink link = links[node];
+        return link != null && link.offer(message);
+    }
+
+    private static void sendAll(ChatMessage message) {
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.offer(message);
+            }
+        }
+    }
+
+    private static ChatMessage claimMessage(String username, long id) {
+        return new ChatMessage(username, null, null, null, null, ChatMessage.MessageType.NODE_CLAIM, id);
+    }
+
+    private static ChatMessage releaseMessage(String username) {
+        return new ChatMessage(username, null, null, null, null, ChatMessage.MessageType.NODE_RELEASE, 0);
+    }
+
+    // Owner side: records that node holds the name, unless another node does
+    private static boolean take(String username, int node) {
+        Integer holder = registry.putIfAbsent(username, node);
+        return holder == null || holder == node;
+    }
+
+    // Guarded by Cluster.class
+    private static List<Integer> liveNodes() {
+        List<Integer> nodes = new ArrayList<>();
+        for (int node = 0; node < links.length; node++) {
+            if (node == self || (inbound[node] != null && links[node].connected)) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /*
+    Rebuilds the ring after a node came or went. Names this node no longer owns are forgotten, and the names it
+    holds whose owner changed are claimed again at the new owner (unanswered, a conflict is only logged): their
+    holders are online, and a name cannot be taken from them.
+     */
+    private static synchronized void ringChanged() {
+        TreeMap<Integer, Integer> previous = ring;
+        TreeMap<Integer, Integer> next = ring(liveNodes());
+        if (next.equals(previous)) {
+            return;
+        }
+        ring = next;
+        registry.keySet().removeIf(username -> owner(next, username) != self);
+        for (String username : held.keySet()) {
+            int owner = owner(next, username);
+            if (owner == owner(previous, username)) {
+                continue;
+            }
+            if (owner != self) {
+                send(owner, claimMessage(username, 0));
+            } else if (!take(username, self)) {
+                System.err.println("[Cluster] " + username + " is held by nodes " + self + " and " + registry.get(username));
+            }
+        }
+    }
+
+    private static TreeMap<Integer, Integer> ring(List<Integer> nodes) {
+        TreeMap<Integer, Integer> points = new TreeMap<>();
+        for (int node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash("node-" + node + "#" + i), node);
+            }
+        }
+        return points;
+    }
+
+    private static int owner(TreeMap<Integer, Integer> points, String username) {
+        Map.Entry<Integer, Integer> point = points.ceilingEntry(hash(username));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    // String.hashCode is the same on every node, the MurmurHash3 finalizer spreads it over the ring
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void acceptLoop(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                daemon(() -> readLoop(socket), "cluster-in").start();
+            } catch (IOException e) {
+                System.err.println("[Cluster] Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Reads what another node sends on the link it opened, until the link breaks
+    private static void readLoop(Socket socket) {
+        int node = -1;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), LINK_BUFFER_SIZE));
+            Object hello = WireCodec.readFrame(in);
+            if (!(hello instanceof ChatMessage) || ((ChatMessage) hello).getType() != ChatMessage.MessageType.NODE_HELLO) {
+                throw new IOException("Expected a hello");
+            }
+            long id = ((ChatMessage) hello).getSequence();
+            if (id < 0 || id >= links.length || id == self) {
+                throw new IOException("Unknown node " + id);
+            }
+            node = (int) id;
+            nodeUp(node, socket);
+            while (true) {
+                handle(node, (ChatMessage) WireCodec.readFrame(in));
+            }
+        } catch (EOFException e) {
+            // The other node closed the link
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.err.println("[Cluster] Link from node " + (node >= 0 ? node : "unknown") + " failed: " + e.getMessage());
+        } finally {
+            if (node >= 0) {
+                nodeDown(node, socket);
+            }
+        }
+    }
+
+    // A hello means the node (re)connected and is about to send its members, so anything left from before goes
+    private static void nodeUp(int node, Socket socket) {
+        Socket previous;
+        synchronized (Cluster.class) {
+            previous = inbound[node];
+            inbound[node] = socket;
+        }
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {}
+        }
+        forget(node);
+        ringChanged();
+        System.out.println("[Cluster] Node " + node + " connected");
+    }
+
+    private static void nodeDown(int node, Socket socket) {
+        synchronized (Cluster.class) {
+            if (inbound[node] != socket) {
+                return; // Replaced by a newer link
+            }
+            inbound[node] = null;
+        }
+        forget(node);
+        ringChanged();
+        System.out.println("[Cluster] Lost node " + node);
+    }
+
+    private static void forget(int node) {
+        registry.values().removeIf(holder -> holder == node);
+        ChatServer.nodeDown(node);
+    }
+
+    private static void handle(int node, ChatMessage message) throws IOException {
+        switch (message.getType()) {
+            case NODE_CLAIM: {
+                String username = message.getSender();
+                if (message.getSequence() != 0) {
+                    // A handshake is only granted a name by its owner. While the two rings disagree it is refused,
+                    // the user tries again
+                    boolean granted = owner(ring, username) == self && take(username, node);
+                    send(node, new ChatMessage(username, null, null, granted ? "ok" : "taken", null,
+                            ChatMessage.MessageType.NODE_CLAIM_RESULT, message.getSequence()));
+                } else if (!take(username, node)) {
+                    // A name held by an online user, claimed again after the ring changed. It is recorded even if
+                    // this node's ring has not caught up yet, ringChanged forgets it if the name goes elsewhere
+                    System.err.println("[Cluster] " + username + " is held by nodes " + node + " and " + registry.get(username));
+                }
+                break;
+            }
+            case NODE_CLAIM_RESULT: {
+                CompletableFuture<Boolean> answer = pendingClaims.get(message.getSequence());
+                if (answer != null) {
+                    answer.complete("ok".equals(message.getMessage()));
+                }
+                break;
+            }
+            case NODE_RELEASE:
+                registry.remove(message.getSender(), node);
+                break;
+            case NODE_JOIN:
+                ChatServer.remoteJoin(node, message);
+                break;
+            case NODE_LEAVE:
+                ChatServer.remoteLeave(node, message.getRoom(), message.getSender());
+                break;
+            case NODE_HELLO:
+                throw new IOException("Unexpected hello");
+            default:
+                ChatServer.deliverRelayed(message);
+                break;
+        }
+    }
+
+    /*
+    The link this node opens to another node and writes everything for it on. Frames are queued by any thread and
+    written by the link's own, as many as are queued per flush. While the link is down nothing is queued: the
+    other node forgets this node's users, and is sent them all again once the link is back.
+     */
+    private static class PeerLink implements Runnable {
+        // Queued by the watcher when the other node closed the link, so a writer waiting for frames notices too
+        private static final ChatMessage CLOSED = new ChatMessage("Server", null, ChatMessage.MessageType.NODE_HELLO);
+
+        final int node;
+        final InetSocketAddress address;
+        final LinkedBlockingQueue<ChatMessage> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        volatile boolean connected;
+        volatile Socket socket;
+
+        PeerLink(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        boolean offer(ChatMessage message) {
+            if (!connected) {
+                return false;
+            }
+            if (!queue.offer(message)) {
+                // The node fell behind, it gets a fresh start rather than a gap
+                System.err.println("[Cluster] Link to node " + node + " fell behind, reconnecting");
+                reset();
+                return false;
+            }
+            ServerMetrics.relayedMessages.increment();
+            return true;
+        }
+
+        void reset() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try (Socket current = new Socket()) {
+                    current.connect(address, (int) CLAIM_TIMEOUT_MILLIS);
+                    current.setTcpNoDelay(true);
+                    socket = current;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream(), LINK_BUFFER_SIZE));
+                    // Nothing is read on this link, but reading notices at once when the other node goes away
+                    daemon(() -> watch(current), "cluster-watch-" + node).start();
+                    queue.clear();
+                    connected = true;
+                    out.write(WireCodec.BINARY.encode(new ChatMessage("Server", null, null, null, null,
+                            ChatMessage.MessageType.NODE_HELLO, self)));
+                    out.flush();
+                    ChatServer.syncTo(node);
+                    ringChanged();
+                    while (true) {
+                        ChatMessage message = queue.take();
+                        do {
+                            if (message == CLOSED) {
+                                throw new EOFException("closed by the node");
+                            }
+                            out.write(WireCodec.BINARY.frame(message));
+                        } while ((message = queue.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        System.err.println("[Cluster] Link to node " + node + " lost: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    socket = null;
+                    if (connected) {
+                        connected = false;
+                        queue.clear();
+                        ringChanged();
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void watch(Socket current) {
+            try {
+                while (current.getInputStream().read() >= 0) {
+                    // The other node never writes here
+                }
+            } catch (IOException ignored) {
+            } finally {
+                try {
+                    current.close();
+                } catch (IOException ignored) {}
+                if (socket == current) {
+                    queue.offer(CLOSED);
+                }
+            }
+        }
+    }
+}
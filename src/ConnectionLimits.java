@@ -0,0 +1,135 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Admission control and rate limits, shared by the server engines so one client cannot slow down everyone else.
+The accept loops admit a connection only while the server holds fewer than maxConnections, and fewer than
+maxPendingHandshakes of them have not finished their handshake yet, and a handshake that takes longer than
+handshakeTimeoutMillis is closed, so idle connections cannot hold those slots. Each admitted connection gets token buckets
+for its messages, its bytes and its username attempts. They are only touched by the thread reading that
+connection, so the read path charges them without any locking. A client over its message or byte rate is not
+disconnected: the server stops reading from it until it is back within the rate, and TCP pushes back on it.
+A client out of username attempts is disconnected.
+ */
+class ConnectionLimits {
+    private static final AtomicInteger openConnections = new AtomicInteger();
+    private static final AtomicInteger pendingHandshakes = new AtomicInteger();
+
+    private final TokenBucket messages; // Null when the limit is off
+    private final TokenBucket bytes;
+    private final TokenBucket handshakeAttempts;
+    private final long handshakeDeadline; // System.nanoTime() by which the handshake must be finished
+    private final boolean handshakeTimeout;
+    private boolean handshakePending = true;
+
+    ConnectionLimits(ServerConfig config) {
+        this.messages = config.maxMessagesPerSecond > 0 ? new TokenBucket(config.maxMessagesPerSecond, config.maxMessagesPerSecond) : null;
+        this.bytes = config.maxBytesPerSecond > 0 ? new TokenBucket(config.maxBytesPerSecond, config.maxBytesPerSecond) : null;
+        // A client that mistyped its name a few times gets an attempt back every second
+        this.handshakeAttempts = config.handshakeAttempts > 0 ? new TokenBucket(1, config.handshakeAttempts) : null;
+        this.handshakeTimeout = config.handshakeTimeoutMillis > 0;
+        this.handshakeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.handshakeTimeoutMillis);
+    }
+
+    // Admits a new connection unless a cap is reached, every admitted one must be released once it closes
+    static boolean admit(ServerConfig config) {
+        int open = openConnections.incrementAndGet();
+        int pending = pendingHandshakes.incrementAndGet();
+        if ((config.maxConnections > 0 && open > config.maxConnections)
+                || (config.maxPendingHandshakes > 0 && pending > config.maxPendingHandshakes)) {
+            openConnections.decrementAndGet();
+            pendingHandshakes.decrementAndGet();
+            ServerMetrics.rejectedConnections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // The client registered or resumed its session, it no longer counts as a pending handshake
+    void handshakeFinished() {
+        if (handshakePending) {
+            handshakePending = false;
+            pendingHandshakes.decrementAndGet();
+        }
+    }
+
+    void release() {
+        handshakeFinished();
+        openConnections.decrementAndGet();
+    }
+
+    // Nanoseconds left to finish the handshake, Long.MAX_VALUE once it is finished or when it has no time limit
+    long handshakeNanosLeft(long now) {
+        return handshakePending && handshakeTimeout ? handshakeDeadline - now : Long.MAX_VALUE;
+    }
+
+    // The handshake ran out of time and the connection is being closed
+    void handshakeTimedOut() {
+        ServerMetrics.rejectedHandshakes.increment();
+    }
+
+    static int pendingHandshakes() {
+        return pendingHandshakes.get();
+    }
+
+    // Charges one username attempt, returns false once the client has used up its attempts
+    boolean handshakeAttempt() {
+        if (handshakeAttempts == null || handshakeAttempts.tryTake(1, System.nanoTime())) {
+            return true;
+        }
+        ServerMetrics.rejectedHandshakes.increment();
+        return false;
+    }
+
+    // Charges a frame read from a registered client, returns how long in nanoseconds to stop reading afterwards
+    long readDelayNanos(int frameBytes) {
+        if (messages == null && bytes == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long delay = Math.max(messages != null ? messages.take(1, now) : 0, bytes != null ? bytes.take(frameBytes, now) : 0);
+        if (delay > 0) {
+            ServerMetrics.throttledReads.increment();
+        }
+        return delay;
+    }
+
+    // Tokens refill continuously at rate per second up to burst. Not thread-safe, each has a single owner
+    static class TokenBucket {
+        private final double ratePerNano;
+        private final double burst;
+        private double tokens;
+        private long refilledNanos = System.nanoTime();
+
+        TokenBucket(double ratePerSecond, double burst) {
+            this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledNanos) * ratePerNano);
+            refilledNanos = now;
+        }
+
+        // Takes the tokens only if there are enough
+        boolean tryTake(double cost, long now) {
+            refill(now);
+            if (tokens < cost) {
+                return false;
+            }
+            tokens -= cost;
+            return true;
+        }
+
+        // Takes the tokens even if that runs the bucket into debt, so a frame larger than the burst still passes,
+        // and returns how long until the debt is paid off
+        long take(double cost, long now) {
+            refill(now);
+            tokens -= cost;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerNano);
+        }
+    }
+}
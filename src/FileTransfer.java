@@ -0,0 +1,237 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKey;
+import utils.FileCryptoUtils;
+import utils.HybridUtils;
+
+/*
+State of the file transfers a ChatClient takes part in. A transfer is one FILE_OFFER, then FILE_CHUNKs of up to
+CHUNK_SIZE bytes, each acknowledged by a FILE_ACK once the recipient has written it; either side may send a
+FILE_CANCEL. All of them carry the transfer id as their message and are relayed by the server one frame at a time.
+The offer holds the file name, size and key, encrypted for the recipient like a direct message. The chunks are
+sealed with FileCryptoUtils. The sender keeps at most WINDOW chunks unacknowledged, so neither the two clients nor
+the server between them ever hold more than WINDOW chunks of a transfer, however large the file.
+ */
+class FileTransfer {
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int WINDOW = 16;
+    // How long a sender waits for the recipient to acknowledge a chunk before it gives up
+    static final long ACK_TIMEOUT_MILLIS = 30000;
+    // Entry of a FILE_CHUNK that marks the end of the file, authenticated along with the chunk
+    static final String LAST_KEY = " last";
+
+    // A file being sent, acknowledgements arrive on the receive thread while the sending thread waits for them
+    static class Upload {
+        final String id = UUID.randomUUID().toString();
+        final String recipient;
+        final SecretKey key;
+        final byte[] nonce = FileCryptoUtils.generateNonce();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition acked = lock.newCondition();
+        private long ackedIndex = -1; // Highest chunk the recipient has written, guarded by lock
+        private String cancelReason; // Set once the transfer is cancelled, guarded by lock
+
+        Upload(String recipient) throws Exception {
+            this.recipient = recipient;
+            this.key = FileCryptoUtils.generateFileKey();
+        }
+
+        // Envelope of the FILE_OFFER, only the recipient can read name, size and key from it
+        Map<String, byte[]> offer(String name, long size, PublicKey recipientKey) throws Exception {
+            Base64.Encoder base64 = Base64.getEncoder();
+            String metadata = base64.encodeToString(name.getBytes(StandardCharsets.UTF_8)) + "\n" + size + "\n"
+                    + base64.encodeToString(key.getEncoded()) + "\n" + base64.encodeToString(nonce);
+            return HybridUtils.encrypt(metadata, Map.of(recipient, recipientKey));
+        }
+
+        ChatMessage chunk(String sender, long index, boolean last, ByteBuffer data) throws Exception {
+            Map<String, byte[]> entries = new HashMap<>();
+            entries.put(HybridUtils.BODY_KEY, FileCryptoUtils.encryptChunk(key, nonce, id, index, last, data));
+            if (last) {
+                entries.put(LAST_KEY, new byte[0]);
+            }
+            return new ChatMessage(sender, recipient, null, id, entries, ChatMessage.MessageType.FILE_CHUNK, index);
+        }
+
+        // Waits until chunk index may be sent without exceeding the window, or for everything to be acknowledged
+        // when index is one past the last chunk
+        void awaitWindow(long index, long chunks) throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+                long lastAcked = ackedIndex;
+                while (cancelReason == null && (index < chunks ? index - ackedIndex > WINDOW : ackedIndex < chunks - 1)) {
+                    if (nanos <= 0) {
+                        throw new IOException("[!] " + recipient + " stopped acknowledging the file");
+                    }
+                    nanos = acked.awaitNanos(nanos);
+                    if (ackedIndex != lastAcked) {
+                        // Progress restarts the timeout
+                        lastAcked = ackedIndex;
+                        nanos = TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+                    }
+                }
+                if (cancelReason != null) {
+                    throw new IOException(cancelReason);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void ack(long index) {
+            lock.lock();
+            try {
+                ackedIndex = Math.max(ackedIndex, index);
+                acked.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void cancel(String reason) {
+            lock.lock();
+            try {
+                if (cancelReason == null) {
+                    cancelReason = reason;
+                }
+                acked.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // A file being received, written to a hidden part file and renamed once the last chunk checks out.
+    // Only touched by the receive thread
+    static class Download {
+        final String id;
+        final String sender;
+        final String name;
+        final long size;
+        private final SecretKey key;
+        private final byte[] nonce;
+        private final Path directory;
+        private final Path part;
+        private final FileChannel channel;
+        private long nextIndex;
+        private long written;
+        Path target; // Where the file ended up, set once it is complete
+
+        private Download(String id, String sender, String name, long size, SecretKey key, byte[] nonce, Path directory)
+                throws IOException {
+            this.id = id;
+            this.sender = sender;
+            this.name = name;
+            this.size = size;
+            this.key = key;
+            this.nonce = nonce;
+            this.directory = directory;
+            Files.createDirectories(directory);
+            this.part = directory.resolve("." + id + ".part");
+            this.channel = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        // Opens the download a FILE_OFFER announces, or returns null if the offer is not meant for this client
+        static Download accept(ChatMessage offer, String username, PrivateKey privateKey, Path directory) throws Exception {
+            String id = offer.getMessage();
+            if (id == null || !id.matches("[0-9a-fA-F-]{1,64}") || offer.getEntries() == null) {
+                return null;
+            }
+            String metadata = HybridUtils.decrypt(offer.getEntries(), username, privateKey);
+            if (metadata == null) {
+                return null;
+            }
+            String[] fields = metadata.split("\n");
+            Base64.Decoder base64 = Base64.getDecoder();
+            String name = safeName(new String(base64.decode(fields[0]), StandardCharsets.UTF_8));
+            long size = Long.parseLong(fields[1]);
+            byte[] nonce = base64.decode(fields[3]);
+            if (size < 0 || nonce.length != FileCryptoUtils.NONCE_SIZE) {
+                throw new IOException("Malformed file offer");
+            }
+            return new Download(id, offer.getSender(), name, size, FileCryptoUtils.fileKey(base64.decode(fields[2])), nonce, directory);
+        }
+
+        // Decrypts and writes the next chunk, returns true once the whole file is in place
+        boolean write(ChatMessage chunk) throws Exception {
+            boolean last = chunk.getEntries() != null && chunk.getEntries().containsKey(LAST_KEY);
+            byte[] body = chunk.getEntries() != null ? chunk.getEntries().get(HybridUtils.BODY_KEY) : null;
+            if (body == null || chunk.getSequence() != nextIndex) {
+                throw new IOException("Chunk " + chunk.getSequence() + " arrived while expecting chunk " + nextIndex);
+            }
+            byte[] data = FileCryptoUtils.decryptChunk(key, nonce, id, nextIndex, last, body);
+            if (written + data.length > size || (last && written + data.length != size)) {
+                throw new IOException("File does not match the offered size of " + size + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            nextIndex++;
+            if (!last) {
+                return false;
+            }
+            channel.close();
+            target = moveIntoPlace();
+            return true;
+        }
+
+        // Renames the part file to the offered name, numbered if a file of that name already exists
+        private Path moveIntoPlace() throws IOException {
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot) : "";
+            for (int n = 0; ; n++) {
+                Path candidate = directory.resolve(n == 0 ? name : base + " (" + n + ")" + extension);
+                try {
+                    // createFile claims the name first so a concurrent download cannot take it as well
+                    Files.createFile(candidate);
+                    return Files.move(part, candidate, StandardCopyOption.REPLACE_EXISTING);
+                } catch (FileAlreadyExistsException ignored) {
+                    // Try the next number
+                }
+            }
+        }
+
+        // Drops what was received so far
+        void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(part);
+            } catch (IOException ignored) {}
+        }
+
+        long chunkIndex() {
+            return nextIndex - 1;
+        }
+    }
+
+    // The offered name without any directory part or characters that could make it a path or hide it
+    static String safeName(String name) {
+        String base = name.replace('\\', '/');
+        base = base.substring(base.lastIndexOf('/') + 1).replaceAll("[\\p{Cntrl}:*?\"<>|]", "_");
+        while (base.startsWith(".")) {
+            base = base.substring(1);
+        }
+        return base.isEmpty() ? "file" : base.length() > 128 ? base.substring(base.length() - 128) : base;
+    }
+}
@@ -0,0 +1,125 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import utils.EcUtils;
+import utils.SenderKeyUtils;
+
+/*
+Versioned directory of the public keys of a room's members, including departed ones when the server stores messages for them.
+Every change bumps the epoch and yields a KEY_ADDED/KEY_REMOVED delta carrying only the affected user,
+so a membership change costs O(N) bytes on the wire instead of sending the whole map to everyone.
+A client that sees an epoch gap asks for a full PUBLIC_KEY_MAP snapshot with KEY_REQUEST.
+Every update is tagged with the room, as each room keeps its own epochs.
+Entries are X.509 encoded RSA keys or EC key bundles (see EcUtils). Clients that read RSA keys only get the
+directory without the EC entries, and deltas adding one arrive empty, so their epochs advance all the same.
+The others are also told which members do not read sender key messages (SenderKeyUtils.PAIRWISE_ENTRY), so they
+keep sending those members pairwise envelopes.
+ */
+class KeyDirectory {
+    private final String room;
+    private final Map<String, byte[]> keys = new HashMap<>();
+    private final Set<String> pairwise = new HashSet<>(); // Members that do not read sender key messages
+    private long epoch;
+
+    KeyDirectory(String room) {
+        this.room = room;
+    }
+
+    // Adds or replaces a user's key entry and returns the delta to broadcast
+    synchronized ChatMessage add(String username, byte[] entry, boolean pairwise) {
+        keys.put(username, entry);
+        epoch++;
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(username, entry);
+        if (pairwise) {
+            this.pairwise.add(username);
+            entries.put(SenderKeyUtils.PAIRWISE_ENTRY, username.getBytes(StandardCharsets.UTF_8));
+        } else {
+            this.pairwise.remove(username);
+        }
+        return new ChatMessage("Server", null, room, null, entries, ChatMessage.MessageType.KEY_ADDED, epoch);
+    }
+
+    // Removes a user's key and returns the delta to broadcast, or null if the user was not in the directory
+    synchronized ChatMessage remove(String username) {
+        if (keys.remove(username) == null) {
+            return null;
+        }
+        pairwise.remove(username);
+        epoch++;
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(username, new byte[0]);
+        return new ChatMessage("Server", null, room, null, entries, ChatMessage.MessageType.KEY_REMOVED, epoch);
+    }
+
+    /*
+    Bumps the epoch with a KEY_ADDED repeating the entry of a user who went offline but stays in the directory, or
+    returns null if the user is not in it or does not read sender key messages. Members take it for a new key and
+    hand the user their chains again before their next message, so the store keeps the chains along with the
+    messages and a client that restarted in the meantime can still read them.
+     */
+    synchronized ChatMessage reissue(String username) {
+        byte[] entry = keys.get(username);
+        if (entry == null || pairwise.contains(username)) {
+            return null;
+        }
+        epoch++;
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(username, entry);
+        return new ChatMessage("Server", null, room, null, entries, ChatMessage.MessageType.KEY_ADDED, epoch);
+    }
+
+    synchronized boolean contains(String username) {
+        return keys.containsKey(username);
+    }
+
+    // Full copy of the directory at the current epoch, without the EC entries for clients that read RSA keys only
+    synchronized ChatMessage snapshot(boolean rsaOnly) {
+        Map<String, byte[]> copy = new HashMap<>(keys);
+        if (rsaOnly) {
+            copy.values().removeIf(EcUtils::isBundle);
+        } else if (!pairwise.isEmpty()) {
+            StringJoiner names = new StringJoiner("\n");
+            pairwise.forEach(names::add);
+            copy.put(SenderKeyUtils.PAIRWISE_ENTRY, names.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return new ChatMessage("Server", null, room, null, copy, ChatMessage.MessageType.PUBLIC_KEY_MAP, epoch);
+    }
+
+    // A delta as clients that read RSA keys only get it: without EC keys and the pairwise flag, which they would take
+    // for a key. The same message if it holds neither
+    static ChatMessage rsaOnly(ChatMessage delta) {
+        if (delta.getType() != ChatMessage.MessageType.KEY_ADDED
+                || (!delta.getEntries().containsKey(SenderKeyUtils.PAIRWISE_ENTRY)
+                && delta.getEntries().values().stream().noneMatch(EcUtils::isBundle))) {
+            return delta;
+        }
+        Map<String, byte[]> entries = new HashMap<>(delta.getEntries());
+        entries.remove(SenderKeyUtils.PAIRWISE_ENTRY);
+        entries.values().removeIf(EcUtils::isBundle);
+        return new ChatMessage(delta.getSender(), null, delta.getRoom(), null, entries, delta.getType(), delta.getSequence());
+    }
+
+    // Users in the directory but not among present that read sender key messages, the offline members a store
+    // keeps those messages for
+    synchronized List<String> absent(Set<String> present) {
+        List<String> absent = new ArrayList<>();
+        for (String username : keys.keySet()) {
+            if (!present.contains(username) && !pairwise.contains(username)) {
+                absent.add(username);
+            }
+        }
+        return absent;
+    }
+
+    synchronized boolean isEmpty() {
+        return keys.isEmpty();
+    }
+}
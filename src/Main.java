@@ -1,127 +1,260 @@
 package src;
 
-import java.security.KeyFactory;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
 import java.util.Scanner;
 import java.security.PublicKey;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import utils.RSAUtils;
-import utils.SerializationUtils;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.CryptoSuite;
 
 public class Main {
     private ChatClient client;
+    private AsyncChatClient async; // Receives, decrypts and sends off the console thread
     private Scanner scanner;
+    private final ReentrantLock stdin = new ReentrantLock(); // Guards the scanner, as console guards the output
+    // Serialises console output between the input and receive threads; a lock rather than a monitor so a virtual
+    // receive thread does not pin its carrier while printing or decrypting
+    private final ReentrantLock console = new ReentrantLock();
+    private boolean virtualThreads;
+    private boolean compress = true; // Deflate message texts before encrypting them, where that makes them smaller
+    private Path downloads = Paths.get("downloads"); // Where files sent to this user are saved
+    // Key pair kept across restarts, null for a new one every run
+    private Path keyStore = Paths.get(System.getProperty("user.home"), ".e2e-chat", "identity.key");
+    // Suite of newly generated keys. RSA stays the default while clients that read RSA keys only are around:
+    // they cannot encrypt for EC users, so an EC user would not receive their messages
+    private CryptoSuite suite = CryptoSuite.RSA;
 
+    // Pass --virtual-threads=true to run the receive loop on a virtual thread, --compress=false to send texts
+    // uncompressed, --downloads=<dir> to save received files somewhere else than ./downloads and --keystore=<file>
+    // to keep the key pair somewhere else than ~/.e2e-chat/identity.key, or --keystore=none not to keep it, and
+    // --suite=x25519-ed25519 for X25519 and Ed25519 keys instead of RSA (an existing key store keeps its suite).
+    // The key store password is read from CHAT_KEYSTORE_PASSWORD, or asked for when that is not set
     public static void main(String[] args) {
-        new Main().run();
+        Main main = new Main();
+        for (String arg : args) {
+            if (arg.equals("--virtual-threads=true")) {
+                main.virtualThreads = true;
+            } else if (arg.equals("--compress=false")) {
+                main.compress = false;
+            } else if (arg.startsWith("--downloads=")) {
+                main.downloads = Paths.get(arg.substring(12));
+            } else if (arg.startsWith("--keystore=")) {
+                main.keyStore = arg.equals("--keystore=none") ? null : Paths.get(arg.substring(11));
+            } else if (arg.startsWith("--suite=")) {
+                main.suite = CryptoSuite.forId(arg.substring(8));
+                if (main.suite == null) {
+                    System.out.println("[!] Unknown suite " + arg.substring(8) + ", use rsa or x25519-ed25519.");
+                    return;
+                }
+            }
+        }
+        main.run();
+    }
+
+    // Shows the current room unless it is the lobby
+    private String prompt() {
+        String room = client.getCurrentRoom();
+        return "[" + client.getUsername() + (room.equals(Room.LOBBY) ? "" : " #" + room) + "]: ";
     }
 
     public void run() {
         scanner = new Scanner(System.in);
-        client = new ChatClient();
+        client = newClient();
 
         try {
             client.start();
-            synchronized (System.out) {
-                System.out.print("[" + client.getUsername() + "]: ");
+            console.lock();
+            try {
+                System.out.print(prompt());
                 System.out.flush();
+            } finally {
+                console.unlock();
             }
-            new Thread(this::receiveMessages).start();
+            async = new AsyncChatClient(client, virtualThreads ? Thread.ofVirtual().factory() : Thread.ofPlatform().factory(), downloads);
+            async.addListener(this::show);
+            async.start();
             handleConsoleInput();
         } catch (Exception e) {
-            synchronized (System.out) {
+            console.lock();
+            try {
                 System.out.println("\r[!] Error: " + e.getMessage());
-                System.out.print("[" + client.getUsername() + "]: ");
+                System.out.print(prompt());
                 System.out.flush();
+            } finally {
+                console.unlock();
             }
         } finally {
             try {
-                client.close();
+                if (async != null) {
+                    async.close();
+                } else {
+                    client.close();
+                }
             } catch (IOException ignored) {}
         }
     }
 
-    private void receiveMessages() {
+    // The key store is opened or the key pair generated in the background while the user connects
+    private ChatClient newClient() {
+        if (keyStore == null) {
+            return new ChatClient(suite);
+        }
+        boolean exists = Files.exists(keyStore);
+        char[] password = System.getenv("CHAT_KEYSTORE_PASSWORD") != null ? System.getenv("CHAT_KEYSTORE_PASSWORD").toCharArray() : null;
+        if (password == null && System.console() != null) {
+            password = System.console().readPassword(exists ? "Key store password: " : "Password for a new key store at " + keyStore + ": ");
+        }
+        if (password == null || (password.length == 0 && !exists)) {
+            System.out.println("[*] No key store password, using a key pair for this session only.");
+            return new ChatClient(suite);
+        }
         try {
-            while (true) {
-                ChatMessage msg = client.receiveMessage();
-                synchronized (System.out) {
-                    if (msg.getType() == ChatMessage.MessageType.ENCRYPTED_TEXT) {
-                        Map<String, String> encryptedMap = SerializationUtils.deserialize(msg.getMessage());
-                        String encryptedMessage = encryptedMap.get(client.getUsername());
-                        if (encryptedMessage != null) {
-                            String decrypted = RSAUtils.decrypt(encryptedMessage, client.getPrivateKey());
-                            System.out.println("\r[" + msg.getSender() + "]: " + decrypted);
-                        }
-                        // Skip prompt if the message is from self to avoid double prompt
-                        if (!msg.getSender().equals(client.getUsername())) {
-                            System.out.print("[" + client.getUsername() + "]: ");
-                            System.out.flush();
-                        }
-                    } else if (msg.getType() == ChatMessage.MessageType.TEXT) {
-                        System.out.println("\r" + msg.getMessage());
-                        System.out.print("[" + client.getUsername() + "]: ");
-                        System.out.flush();
-                    } else if (msg.getType() == ChatMessage.MessageType.PUBLIC_KEY_MAP) {
-                        Map<String, String> keyStrings = SerializationUtils.deserialize(msg.getMessage());
-                        for (Map.Entry<String, String> entry : keyStrings.entrySet()) {
-                            byte[] keyBytes = Base64.getDecoder().decode(entry.getValue());
-                            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-                            KeyFactory kf = KeyFactory.getInstance("RSA");
-                            client.getPublicKeys().put(entry.getKey(), kf.generatePublic(spec));
-                        }
-                        System.out.println("\r[*] Updated public key map.");
-                        System.out.print("[" + client.getUsername() + "]: ");
-                        System.out.flush();
-                    }
-                }
+            return new ChatClient(keyStore, password, suite);
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    // Prints what the workers made of a received message, only the printing itself holds the console lock
+    private void show(AsyncChatClient.Event event) {
+        String line = event.text;
+        boolean prompt = true;
+        if (event.kind == AsyncChatClient.Event.Kind.MESSAGE) {
+            ChatMessage msg = event.message;
+            String room = msg.getRoom() != null && !msg.getRoom().equals(Room.LOBBY) ? " #" + msg.getRoom() : "";
+            line = "[" + msg.getSender() + room + "]: " + event.text;
+            // Skip prompt if the message is from self to avoid double prompt
+            prompt = !msg.getSender().equals(client.getUsername());
+        } else if (event.kind == AsyncChatClient.Event.Kind.KEYS) {
+            // Join and leave notices are printed separately, deltas are applied silently
+            if (event.message.getType() != ChatMessage.MessageType.PUBLIC_KEY_MAP) {
+                return;
             }
-        } catch (Exception e) {
-            synchronized (System.out) {
-                System.out.println("\r[!] Connection lost: " + e.getMessage());
-                System.out.print("[" + client.getUsername() + "]: ");
-                System.out.flush();
+            line = "[*] Updated public key map of #" + Room.of(event.message) + ".";
+        }
+        console.lock();
+        try {
+            System.out.println("\r" + line);
+            if (prompt) {
+                System.out.print(prompt());
             }
+            System.out.flush();
+        } finally {
+            console.unlock();
+        }
+    }
+
+    // Sends complete in the background, only a failure is reported
+    private void reportFailure(Void ignored, Throwable failure) {
+        if (failure == null) {
+            return;
+        }
+        Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+        console.lock();
+        try {
+            System.out.println("\r[!] Error: " + cause.getMessage());
+            System.out.print(prompt());
+            System.out.flush();
+        } finally {
+            console.unlock();
+        }
+    }
+
+    private void sendFile(String recipient, Path file) {
+        String result;
+        try {
+            client.sendFile(recipient, file);
+            result = "[*] Sent " + file.getFileName() + " to " + recipient + ".";
+        } catch (Exception e) {
+            result = e.getMessage() != null && e.getMessage().startsWith("[!]") ? e.getMessage()
+                    : "[!] Failed to send " + file.getFileName() + ": " + e.getMessage();
+        }
+        console.lock();
+        try {
+            System.out.println("\r" + result);
+            System.out.print(prompt());
+            System.out.flush();
+        } finally {
+            console.unlock();
         }
     }
 
     private void handleConsoleInput() {
         while (true) {
             String input;
-            synchronized (scanner) {
+            stdin.lock();
+            try {
                 input = scanner.nextLine();
+            } finally {
+                stdin.unlock();
             }
             try {
                 if (input.equalsIgnoreCase("/exit")) {
-                    client.sendMessage(new ChatMessage(client.getUsername(), null, "/disconnect", ChatMessage.MessageType.TEXT));
+                    async.disconnect().join();
                     break;
                 } else if (input.trim().isEmpty()) {
                     continue;
-                } else {
-                    Map<String, String> encryptedMap = new HashMap<>();
-                    for (Map.Entry<String, PublicKey> entry : client.getPublicKeys().entrySet()) {
-                        String recipient = entry.getKey();
-                        if (!recipient.equals(client.getUsername())) {
-                            String encrypted = RSAUtils.encrypt(input, entry.getValue());
-                            encryptedMap.put(recipient, encrypted);
+                } else if (input.startsWith("/join ")) {
+                    client.joinRoom(input.substring(6).trim());
+                } else if (input.equals("/leave") || input.startsWith("/leave ")) {
+                    client.leaveRoom(input.length() > 6 ? input.substring(7).trim() : client.getCurrentRoom());
+                } else if (input.equals("/rooms")) {
+                    client.listRooms();
+                } else if (input.startsWith("/send ")) {
+                    // File transfer: /send <username> <path>, streamed in the background while the chat goes on
+                    String[] parts = input.split("\\s+", 3);
+                    if (parts.length < 3) {
+                        console.lock();
+                        try {
+                            System.out.println("\r[!] Usage: /send <online username> <file>");
+                        } finally {
+                            console.unlock();
                         }
+                    } else {
+                        Runnable send = () -> sendFile(parts[1], Paths.get(parts[2]));
+                        if (virtualThreads) {
+                            Thread.ofVirtual().start(send);
+                        } else {
+                            new Thread(send).start();
+                        }
+                    }
+                } else if (input.startsWith("/msg ")) {
+                    // Direct message: /msg <username> <text>, encrypted for and delivered to that user only
+                    String[] parts = input.split("\\s+", 3);
+                    PublicKey key = parts.length == 3 ? client.getPublicKey(parts[1]) : null;
+                    if (key == null) {
+                        console.lock();
+                        try {
+                            System.out.println("\r[!] Usage: /msg <online username> <message>");
+                        } finally {
+                            console.unlock();
+                        }
+                    } else {
+                        async.sendDirect(parts[1], parts[2], compress).whenComplete(this::reportFailure);
                     }
-                    String serialized = SerializationUtils.serialize(encryptedMap);
-                    client.sendMessage(new ChatMessage(client.getUsername(), null, serialized, ChatMessage.MessageType.ENCRYPTED_TEXT));
+                } else {
+                    // Encrypted on a worker, once for the whole current room with this client's sender key
+                    async.sendText(input, compress).whenComplete(this::reportFailure);
                 }
             } catch (Exception e) {
-                synchronized (System.out) {
+                console.lock();
+                try {
                     System.out.println("\r[!] Error: " + e.getMessage());
-                    System.out.print("[" + client.getUsername() + "]: ");
+                    System.out.print(prompt());
                     System.out.flush();
+                } finally {
+                    console.unlock();
                 }
             }
-            synchronized (System.out) {
-                System.out.print("[" + client.getUsername() + "]: ");
+            console.lock();
+            try {
+                System.out.print(prompt());
                 System.out.flush();
+            } finally {
+                console.unlock();
             }
         }
     }
@@ -0,0 +1,509 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import utils.FrameUtils;
+
+/*
+Append-only log of encrypted envelopes waiting for recipients that are offline.
+The log is a series of segment files, each named after the offset of its first record. A record is
+  [int body length][int CRC32 of the body][short name length][recipient UTF-8][binary-encoded ChatMessage]
+and is written through a FileChannel. An append only reaches the page cache, the sync thread forces the active
+segment every syncMillis so all appends in between share one fsync (syncMillis 0 forces on every append).
+Every recipient has a read cursor, the position just past its last delivered record, saved to the cursors file
+on each sync. Opening the store scans the segments, cuts off a torn or corrupt record at the end of a segment and
+rebuilds the pending records of every recipient from the cursors.
+A segment other than the active one is deleted once everything in it was delivered or its retention ran out.
+Delivery is at least once: records delivered after the last saved cursors are replayed again after a crash.
+ */
+public final class MessageStore implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSORS_FILE = "cursors";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = FrameUtils.MAX_FRAME_SIZE + 2 + 65535;
+    private static final int READ_WINDOW = 1024 * 1024;
+    private static final int REPLAY_BATCH = 1024;
+    private static final long RETENTION_CHECK_MILLIS = 1000;
+
+    // Receives replayed messages, a record counts as delivered once deliver returns
+    public interface Delivery {
+        void deliver(ChatMessage message) throws IOException;
+    }
+
+    private static class Segment {
+        final long baseOffset;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        int pending; // Records in this segment not delivered yet
+        long lastWriteMillis;
+
+        Segment(long baseOffset, Path path) throws IOException {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+            this.lastWriteMillis = Files.getLastModifiedTime(path).toMillis();
+        }
+
+        long endOffset() {
+            return baseOffset + size;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long syncMillis;
+    private final long retentionMillis;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, ArrayDeque<Long>> pending = new HashMap<>(); // Offsets of undelivered records, oldest first
+    private final Map<String, Long> cursors = new HashMap<>();
+    // Guards the segments, the index and the cursors. Appends and replays hold it only for page cache reads and writes,
+    // the fsync itself runs outside of it under syncLock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private Segment active;
+    private boolean dirty; // Appended to the active segment since its last fsync
+    private boolean cursorsDirty;
+    // Replay reads the log a window at a time, so consecutive records cost no extra read calls
+    private final ByteBuffer window = ByteBuffer.allocate(READ_WINDOW);
+    private Segment windowSegment;
+    private long windowStart;
+    private final Thread syncThread;
+    private volatile boolean closed;
+
+    public MessageStore(Path dir, long segmentBytes, long syncMillis, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.syncMillis = syncMillis;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+        readCursors();
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(baseOffsets);
+        for (long baseOffset : baseOffsets) {
+            Segment segment = new Segment(baseOffset, segmentPath(baseOffset));
+            recover(segment);
+            segments.put(baseOffset, segment);
+        }
+        if (segments.isEmpty()) {
+            // Start past every saved cursor, so an old cursor can never skip a new record
+            long start = 0;
+            for (long cursor : cursors.values()) {
+                start = Math.max(start, cursor);
+            }
+            active = new Segment(start, segmentPath(start));
+            segments.put(start, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        deleteSegments();
+        syncThread = new Thread(this::syncLoop, "store-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return dir.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    }
+
+    // Indexes the valid records of a segment and truncates whatever follows the last one
+    private void recover(Segment segment) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path), 64 * 1024))) {
+            CRC32 crc = new CRC32();
+            while (position + RECORD_HEADER_SIZE <= segment.size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 2 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > segment.size) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(body);
+                String recipient = readRecipient(buf);
+                long offset = segment.baseOffset + position;
+                if (offset >= cursors.getOrDefault(recipient, 0L)) {
+                    pending.computeIfAbsent(recipient, k -> new ArrayDeque<>()).add(offset);
+                    segment.pending++;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+        }
+        if (position < segment.size) {
+            System.err.println("[Store] Dropping " + (segment.size - position) + " bytes of torn or corrupt data at the end of " + segment.path.getFileName());
+            segment.channel.truncate(position);
+            segment.channel.force(true);
+            segment.size = position;
+        }
+    }
+
+    private static String readRecipient(ByteBuffer buf) {
+        int nameLength = buf.getShort() & 0xFFFF;
+        String recipient = new String(buf.array(), buf.arrayOffset() + buf.position(), nameLength, StandardCharsets.UTF_8);
+        buf.position(buf.position() + nameLength);
+        return recipient;
+    }
+
+    // Appends a message for one recipient and returns its offset, it is durable after the next sync
+    public long append(String recipient, ChatMessage message) throws IOException {
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = BinaryCodec.encode(message);
+        int payloadLength = frame.length - FrameUtils.HEADER_SIZE;
+        int length = 2 + name.length + payloadLength;
+        if (name.length > 65535 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Message too large to store");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        record.putShort((short) name.length).put(name).put(frame, FrameUtils.HEADER_SIZE, payloadLength);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            ensureOpen();
+            if (active.size > 0 && active.size + record.remaining() > segmentBytes) {
+                roll();
+            }
+            long offset = active.endOffset();
+            long position = active.size;
+            while (record.hasRemaining()) {
+                position += active.channel.write(record, position);
+            }
+            active.size = position;
+            active.pending++;
+            active.lastWriteMillis = System.currentTimeMillis();
+            pending.computeIfAbsent(recipient, k -> new ArrayDeque<>()).add(offset);
+            if (syncMillis == 0) {
+                active.channel.force(false);
+            } else {
+                dirty = true;
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Closes the active segment, forcing it first so only the active segment can ever hold unsynced records
+    private void roll() throws IOException {
+        active.channel.force(false);
+        dirty = false;
+        long baseOffset = active.endOffset();
+        active = new Segment(baseOffset, segmentPath(baseOffset));
+        segments.put(baseOffset, active);
+    }
+
+    // Number of records waiting for a recipient
+    public int pending(String recipient) {
+        lock.lock();
+        try {
+            ArrayDeque<Long> offsets = pending.get(recipient);
+            return offsets != null ? offsets.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of records waiting over all recipients
+    public long pendingTotal() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (Segment segment : segments.values()) {
+                total += segment.pending;
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Hands every pending record of a recipient to the delivery in append order and returns how many were delivered.
+    Records are read a batch at a time under the lock and delivered outside of it, so appends for other users
+    carry on during a long replay. If the delivery throws, the records delivered so far stay delivered.
+    Only one replay per recipient may run at a time.
+     */
+    public int replay(String recipient, Delivery delivery) throws IOException {
+        int delivered = 0;
+        List<ChatMessage> batch = new ArrayList<>(REPLAY_BATCH);
+        long[] offsets = new long[REPLAY_BATCH];
+        while (true) {
+            batch.clear();
+            lock.lock();
+            try {
+                ensureOpen();
+                ArrayDeque<Long> queue = pending.get(recipient);
+                if (queue == null || queue.isEmpty()) {
+                    pending.remove(recipient);
+                    return delivered;
+                }
+                for (long offset : queue) {
+                    offsets[batch.size()] = offset;
+                    batch.add(readRecord(offset));
+                    if (batch.size() == REPLAY_BATCH) {
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            int done = 0;
+            try {
+                for (ChatMessage message : batch) {
+                    delivery.deliver(message);
+                    done++;
+                }
+            } finally {
+                markDelivered(recipient, offsets, done);
+                delivered += done;
+            }
+        }
+    }
+
+    private void markDelivered(String recipient, long[] offsets, int count) {
+        if (count == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            ArrayDeque<Long> queue = pending.get(recipient);
+            for (int i = 0; i < count; i++) {
+                // The head is gone already if retention deleted its segment in the meantime
+                if (queue != null && !queue.isEmpty() && queue.peekFirst() == offsets[i]) {
+                    queue.pollFirst();
+                    Map.Entry<Long, Segment> entry = segments.floorEntry(offsets[i]);
+                    if (entry != null) {
+                        entry.getValue().pending--;
+                    }
+                }
+            }
+            // Any position past the record works as the cursor, nothing else for this recipient lies in between
+            cursors.put(recipient, offsets[count - 1] + 1);
+            cursorsDirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ChatMessage readRecord(long offset) throws IOException {
+        Segment segment = segments.floorEntry(offset).getValue();
+        long position = offset - segment.baseOffset;
+        ByteBuffer buf = readAt(segment, position, RECORD_HEADER_SIZE);
+        int length = buf.getInt(buf.position());
+        buf = readAt(segment, position, RECORD_HEADER_SIZE + length);
+        buf.position(buf.position() + RECORD_HEADER_SIZE);
+        ByteBuffer body = buf.slice(buf.position(), length);
+        int nameLength = body.getShort(0) & 0xFFFF;
+        int payloadStart = 2 + nameLength;
+        try {
+            return (ChatMessage) BinaryCodec.decode(body.array(), body.arrayOffset() + payloadStart, length - payloadStart);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt record at offset " + offset, e);
+        }
+    }
+
+    // Returns a buffer positioned at the given segment position with at least length bytes remaining
+    private ByteBuffer readAt(Segment segment, long position, int length) throws IOException {
+        if (length > READ_WINDOW) {
+            ByteBuffer large = ByteBuffer.allocate(length);
+            readFully(segment, large, position);
+            return large.flip();
+        }
+        if (windowSegment != segment || position < windowStart || position + length > windowStart + window.limit()) {
+            window.clear();
+            windowSegment = segment;
+            windowStart = position;
+            window.limit((int) Math.min(READ_WINDOW, segment.size - position));
+            if (window.limit() < length) {
+                throw new EOFException("Record past the end of " + segment.path.getFileName());
+            }
+            readFully(segment, window, position);
+            window.flip();
+        }
+        return window.duplicate().position((int) (position - windowStart));
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = segment.channel.read(buf, position);
+            if (n < 0) {
+                throw new EOFException("Record past the end of " + segment.path.getFileName());
+            }
+            position += n;
+        }
+    }
+
+    // Forces appended records to disk and then saves the cursors, the sync thread calls this every syncMillis
+    public void sync() throws IOException {
+        syncLock.lock();
+        try {
+            FileChannel toForce = null;
+            Map<String, Long> cursorSnapshot = null;
+            lock.lock();
+            try {
+                if (dirty) {
+                    toForce = active.channel;
+                    dirty = false;
+                }
+                if (cursorsDirty) {
+                    cursorSnapshot = new HashMap<>(cursors);
+                    cursorsDirty = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (toForce != null) {
+                toForce.force(false);
+            }
+            if (cursorSnapshot != null) {
+                writeCursors(cursorSnapshot);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a crash leaves either the old or the new cursors
+    private void writeCursors(Map<String, Long> snapshot) throws IOException {
+        Path tmp = dir.resolve(CURSORS_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve(CURSORS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readCursors() throws IOException {
+        Path file = dir.resolve(CURSORS_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                cursors.put(in.readUTF(), in.readLong());
+            }
+        }
+    }
+
+    /*
+    Deletes every segment but the active one whose records were all delivered or whose last write is older than
+    the retention. Records lost to the retention are dropped from the pending lists. Returns the segments deleted.
+     */
+    public int deleteSegments() throws IOException {
+        lock.lock();
+        try {
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            int deleted = 0;
+            boolean expired = false;
+            Iterator<Segment> it = segments.values().iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if (segment == active || (segment.pending > 0 && segment.lastWriteMillis >= cutoff)) {
+                    continue;
+                }
+                expired |= segment.pending > 0;
+                it.remove();
+                if (windowSegment == segment) {
+                    windowSegment = null;
+                }
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+                deleted++;
+            }
+            long start = segments.firstKey();
+            if (expired) {
+                for (ArrayDeque<Long> queue : pending.values()) {
+                    while (!queue.isEmpty() && queue.peekFirst() < start) {
+                        queue.pollFirst();
+                    }
+                }
+            }
+            // A cursor before the start of the log means the same as having none
+            if (cursors.values().removeIf(cursor -> cursor <= start)) {
+                cursorsDirty = true;
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncLoop() {
+        long interval = syncMillis > 0 ? syncMillis : RETENTION_CHECK_MILLIS;
+        long lastRetentionCheck = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+                sync();
+                if (System.currentTimeMillis() - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                    lastRetentionCheck = System.currentTimeMillis();
+                    deleteSegments();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("[Store] Sync failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Message store closed");
+        }
+    }
+
+    // Syncs everything and closes the segment files
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        syncThread.interrupt();
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
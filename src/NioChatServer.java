@@ -0,0 +1,557 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import utils.FrameUtils;
+
+/*
+Selector-based server engine. A small fixed pool of I/O threads each owns a Selector and serves many
+non-blocking connections, so idle clients cost a few buffers instead of a whole thread stack.
+The handshake and broadcast go through the same ChatServer helpers as the thread-per-connection engine, but run
+on the I/O thread itself, so nothing they do may block.
+ */
+public class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_FRAMES = 256; // Frames gathered into one write call, well below IOV_MAX
+
+    private final ServerSocketChannel serverChannel;
+    private final ServerConfig config;
+    private final IoLoop[] loops;
+
+    public NioChatServer(ServerSocketChannel serverChannel, int ioThreads) throws IOException {
+        this(serverChannel, withIoThreads(ioThreads));
+    }
+
+    public NioChatServer(ServerSocketChannel serverChannel, ServerConfig config) throws IOException {
+        this.serverChannel = serverChannel;
+        this.config = config;
+        this.loops = new IoLoop[config.ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(config);
+        }
+    }
+
+    private static ServerConfig withIoThreads(int ioThreads) {
+        ServerConfig config = new ServerConfig();
+        config.ioThreads = ioThreads;
+        return config;
+    }
+
+    public void start() throws IOException {
+        ServerMetrics.expose(config);
+        ChatServer.openStore(config);
+        Cluster.start(config);
+        int port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        System.out.println("[Server] NIO ChatServer started on port " + port + " with " + loops.length + " I/O threads");
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-io-" + i).start();
+        }
+        // Accepting stays blocking on the calling thread, new connections are spread round-robin over the loops
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel channel = serverChannel.accept();
+            if (!ConnectionLimits.admit(config)) {
+                channel.close();
+                continue;
+            }
+            ServerMetrics.acceptedConnections.increment();
+            channel.configureBlocking(false);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // AWAIT_CLAIM waits for the cluster node owning the requested username, reading stops until it answers
+    private enum State {
+        AWAIT_USERNAME, AWAIT_CLAIM, AWAIT_PUBLIC_KEY, ACTIVE, CLOSING
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        final long acceptedNanos = System.nanoTime();
+        SelectionKey key;
+        State state = State.AWAIT_USERNAME;
+        String username;
+        boolean registered;
+        volatile boolean closed;
+        // Holds the bytes of an incomplete frame, null while the connection has nothing buffered
+        ByteBuffer inbound;
+        // Switched to binary once the client sends a binary frame
+        volatile WireCodec codec = WireCodec.JAVA;
+        // Messages are queued by any thread and encoded and written by the owning I/O thread
+        final OutboundQueue queue;
+        // Rest of the batch being written when the socket buffer last filled up
+        ByteBuffer[] pendingFrames;
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        final ConnectionLimits limits;
+        long pausedUntil; // System.nanoTime() at which reading resumes after going over the rate limit, 0 if reading
+
+        Connection(SocketChannel channel, IoLoop loop, ServerConfig config) {
+            this.channel = channel;
+            this.loop = loop;
+            this.limits = new ConnectionLimits(config);
+            // A slow-consumer disconnect also goes through flush, which closes aborted connections
+            this.queue = config.newOutboundQueue(this::requestFlush, this::requestFlush);
+        }
+
+        void send(ChatMessage message) throws IOException {
+            queue.send(message);
+        }
+
+        void requestFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+        }
+    }
+
+    private static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ServerConfig config;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>(); // Run on the loop's thread
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+        private final List<Connection> paused = new ArrayList<>(); // Connections over their rate limit
+        // Connections in the order they were accepted, until they finish their handshake. All have the same time
+        // limit, so the first one is always the next to run out of time
+        private final Queue<Connection> handshaking = new ArrayDeque<>();
+        private volatile Thread thread;
+
+        IoLoop(ServerConfig config) throws IOException {
+            this.selector = Selector.open();
+            this.config = config;
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(Connection conn) {
+            pendingFlushes.add(conn);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            while (selector.isOpen()) {
+                try {
+                    selector.select(selectTimeout());
+                    expireHandshakes();
+                    resumePaused();
+                    Runnable task;
+                    while ((task = pendingTasks.poll()) != null) {
+                        task.run();
+                    }
+                    SocketChannel channel;
+                    while ((channel = pendingChannels.poll()) != null) {
+                        accept(channel);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(conn);
+                        }
+                    }
+                    // Frames queued while handling reads (or by other threads) are written before selecting again
+                    Connection conn;
+                    while ((conn = pendingFlushes.poll()) != null) {
+                        conn.flushScheduled.set(false);
+                        flush(conn);
+                    }
+                } catch (IOException e) {
+                    System.err.println("[Server] I/O loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        // How long the select may wait before a paused connection is due to read again or a handshake runs out of
+        // time, 0 for ever
+        private long selectTimeout() {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            for (Connection conn : paused) {
+                wait = Math.min(wait, conn.pausedUntil - now);
+            }
+            Connection first = handshaking.peek();
+            if (first != null) {
+                wait = Math.min(wait, first.limits.handshakeNanosLeft(now));
+            }
+            return wait == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+
+        // Closes the connections whose handshake ran out of time and forgets the ones that finished or closed
+        private void expireHandshakes() {
+            long now = System.nanoTime();
+            Connection conn;
+            while ((conn = handshaking.peek()) != null) {
+                long left = conn.limits.handshakeNanosLeft(now);
+                if (conn.closed || left == Long.MAX_VALUE) {
+                    handshaking.poll();
+                } else if (left <= 0) {
+                    handshaking.poll();
+                    conn.limits.handshakeTimedOut();
+                    System.err.println("[Server] Handshake timed out: " + (conn.username != null ? conn.username : "unknown"));
+                    close(conn);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        // Lets paused connections whose time is up read again, starting with what they sent while paused
+        private void resumePaused() {
+            if (paused.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            List<Connection> due = new ArrayList<>();
+            paused.removeIf(conn -> conn.closed || (conn.pausedUntil - now <= 0 && due.add(conn)));
+            for (Connection conn : due) {
+                conn.pausedUntil = 0;
+                try {
+                    conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+                    if (conn.inbound != null) {
+                        // Frames that arrived before the pause are already buffered
+                        ByteBuffer buf = conn.inbound;
+                        buf.flip();
+                        process(conn, buf);
+                    }
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    fail(conn, e);
+                }
+            }
+        }
+
+        private void pause(Connection conn, long delayNanos) {
+            conn.pausedUntil = System.nanoTime() + delayNanos;
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            paused.add(conn);
+        }
+
+        private int readInterest(Connection conn) {
+            return conn.pausedUntil == 0 && conn.state != State.AWAIT_CLAIM ? SelectionKey.OP_READ : 0;
+        }
+
+        private void accept(SocketChannel channel) {
+            Connection conn = new Connection(channel, this, config);
+            try {
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                if (conn.limits.handshakeNanosLeft(System.nanoTime()) != Long.MAX_VALUE) {
+                    handshaking.add(conn);
+                }
+                conn.send(ChatServer.acknowledgement(config));
+            } catch (IOException e) {
+                fail(conn, e);
+            }
+        }
+
+        private void read(Connection conn) {
+            try {
+                ByteBuffer buf = conn.inbound != null ? conn.inbound : readBuffer;
+                if (buf == readBuffer) {
+                    buf.clear();
+                }
+                int n = conn.channel.read(buf);
+                if (n < 0) {
+                    close(conn);
+                    return;
+                }
+                ServerMetrics.bytesIn.add(n);
+                buf.flip();
+                process(conn, buf);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                fail(conn, e);
+            }
+        }
+
+        // Handles the complete frames in buf and keeps the rest, a partial frame or the frames left when the
+        // connection went over its rate limit, for later
+        private void process(Connection conn, ByteBuffer buf) throws IOException, ClassNotFoundException {
+            decodeFrames(conn, buf);
+            if (conn.closed) {
+                return;
+            }
+            if (!buf.hasRemaining()) {
+                conn.inbound = null;
+                return;
+            }
+            // Sized so the rest of the partial frame fits without further copies
+            int needed = FrameUtils.HEADER_SIZE;
+            if (buf.remaining() >= FrameUtils.HEADER_SIZE) {
+                needed += buf.getInt(buf.position());
+            }
+            if (buf == readBuffer || buf.capacity() < needed) {
+                ByteBuffer partial = ByteBuffer.allocate(Math.max(Math.max(needed, buf.remaining()), 1024));
+                partial.put(buf);
+                conn.inbound = partial;
+            } else {
+                buf.compact();
+            }
+        }
+
+        private void decodeFrames(Connection conn, ByteBuffer buf) throws IOException, ClassNotFoundException {
+            while (buf.remaining() >= FrameUtils.HEADER_SIZE && !conn.closed && conn.pausedUntil == 0
+                    && conn.state != State.AWAIT_CLAIM) {
+                int length = FrameUtils.checkLength(buf.getInt(buf.position()));
+                if (buf.remaining() < FrameUtils.HEADER_SIZE + length) {
+                    return;
+                }
+                int start = buf.position() + FrameUtils.HEADER_SIZE;
+                if (WireCodec.of(buf.array(), buf.arrayOffset() + start, length) == WireCodec.BINARY) {
+                    conn.codec = WireCodec.BINARY;
+                }
+                Object frame = WireCodec.decode(buf.array(), buf.arrayOffset() + start, length);
+                buf.position(start + length);
+                if (conn.state != State.CLOSING) {
+                    boolean active = conn.state == State.ACTIVE;
+                    handleFrame(conn, frame);
+                    long delay = active && !conn.closed ? conn.limits.readDelayNanos(FrameUtils.HEADER_SIZE + length) : 0;
+                    if (delay > 0) {
+                        // Over its rate, the rest of what it sent waits in inbound until the pause is over
+                        pause(conn, delay);
+                    }
+                }
+            }
+        }
+
+        private void handleFrame(Connection conn, Object frame) throws IOException {
+            switch (conn.state) {
+                case AWAIT_USERNAME: {
+                    if (!conn.limits.handshakeAttempt()) {
+                        conn.send(ChatServer.serverText("[!] Too many attempts, closing the connection."));
+                        conn.state = State.CLOSING;
+                        break;
+                    }
+                    if (frame instanceof ChatMessage && ((ChatMessage) frame).getType() == ChatMessage.MessageType.RESUME) {
+                        conn.username = ChatServer.resume((ChatMessage) frame, conn.queue);
+                        if (conn.username == null) {
+                            conn.send(ChatServer.serverText("[!] Session could not be resumed, log in again."));
+                        } else {
+                            conn.state = State.ACTIVE;
+                            conn.registered = true;
+                            conn.limits.handshakeFinished();
+                            ServerMetrics.handshakeMicros.record(ServerMetrics.micros(conn.acceptedNanos));
+                        }
+                        break;
+                    }
+                    String requestedUsername = ChatServer.normalizeUsername((String) frame);
+                    String rejection = ChatServer.usernameRejection(requestedUsername);
+                    if (rejection != null) {
+                        conn.send(ChatServer.serverText(rejection));
+                        break;
+                    }
+                    CompletableFuture<Boolean> claim = Cluster.claim(requestedUsername, conn);
+                    if (claim.isDone()) {
+                        claimed(conn, requestedUsername, claim.join());
+                    } else {
+                        // The owner answers on a cluster link thread, the connection carries on on this one
+                        conn.state = State.AWAIT_CLAIM;
+                        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                        claim.thenAccept(granted -> execute(() -> finishClaim(conn, requestedUsername, granted)));
+                    }
+                    break;
+                }
+                case AWAIT_PUBLIC_KEY: {
+                    ChatMessage keyMsg = (ChatMessage) frame;
+                    if (keyMsg.getType() != ChatMessage.MessageType.PUBLIC_KEY) {
+                        throw new IOException("Expected public key");
+                    }
+                    String rejection = ChatServer.keyRejection(keyMsg, config);
+                    if (rejection != null) {
+                        conn.send(ChatServer.serverText(rejection));
+                        conn.state = State.CLOSING;
+                        break;
+                    }
+                    conn.state = State.ACTIVE;
+                    conn.registered = true;
+                    ChatServer.register(conn.username, conn.queue, keyMsg, config);
+                    conn.limits.handshakeFinished();
+                    ServerMetrics.handshakeMicros.record(ServerMetrics.micros(conn.acceptedNanos));
+                    break;
+                }
+                case ACTIVE: {
+                    ChatMessage msg = (ChatMessage) frame;
+                    if (msg.getMessage() != null && msg.getMessage().equalsIgnoreCase("/disconnect")) {
+                        conn.send(ChatServer.serverText("[*] Disconnected from the ChatServer successfully"));
+                        // The connection is closed once the goodbye has been written
+                        conn.state = State.CLOSING;
+                    } else {
+                        // Runs on this I/O thread, so handlers must not block: ServerConfig refuses the settings
+                        // that would make them (a BLOCK slow-consumer policy, an fsync per stored envelope)
+                        ChatServer.handleMessage(conn.username, conn.queue, msg);
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+
+        private void claimed(Connection conn, String requestedUsername, boolean granted) throws IOException {
+            if (granted) {
+                conn.username = requestedUsername;
+                conn.send(ChatServer.serverText("[*] Username accepted: " + conn.username));
+                conn.state = State.AWAIT_PUBLIC_KEY;
+            } else {
+                conn.send(ChatServer.serverText(ChatServer.takenNotice(requestedUsername)));
+                conn.state = State.AWAIT_USERNAME;
+            }
+        }
+
+        // Goes on with the handshake once the cluster answered, starting with what the client sent in the meantime
+        private void finishClaim(Connection conn, String requestedUsername, boolean granted) {
+            if (conn.closed) {
+                if (granted) {
+                    ChatServer.abandon(requestedUsername, conn);
+                }
+                return;
+            }
+            try {
+                claimed(conn, requestedUsername, granted);
+                conn.key.interestOps(conn.key.interestOps() | readInterest(conn));
+                if (conn.inbound != null) {
+                    ByteBuffer buf = conn.inbound;
+                    buf.flip();
+                    process(conn, buf);
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                fail(conn, e);
+            }
+        }
+
+        private void flush(Connection conn) {
+            if (conn.closed) {
+                return;
+            }
+            if (conn.queue.isAborted()) {
+                System.err.println("[Server] Dropping slow consumer: " + (conn.username != null ? conn.username : "unknown"));
+                close(conn);
+                return;
+            }
+            // Flushes already run once per select round, after every read of that round has queued its messages,
+            // so whatever is queued by now goes out as one gathering write up to the byte budget
+            try {
+                while (true) {
+                    ByteBuffer[] frames;
+                    int count;
+                    if (conn.pendingFrames != null) {
+                        frames = conn.pendingFrames;
+                        count = frames.length;
+                        conn.pendingFrames = null;
+                    } else {
+                        frames = batch;
+                        count = gather(conn);
+                        if (count == 0) {
+                            break;
+                        }
+                    }
+                    ServerMetrics.bytesOut.add(conn.channel.write(frames, 0, count));
+                    ServerMetrics.socketWrites.increment();
+                    int written = 0;
+                    while (written < count && !frames[written].hasRemaining()) {
+                        written++;
+                    }
+                    if (written < count) {
+                        // Socket buffer is full, wait until the selector reports it writable again
+                        conn.pendingFrames = Arrays.copyOfRange(frames, written, count);
+                        conn.key.interestOps(readInterest(conn) | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                conn.key.interestOps(readInterest(conn));
+                if (conn.state == State.CLOSING) {
+                    close(conn);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                ServerMetrics.failedWrites.increment();
+                fail(conn, e);
+            } finally {
+                Arrays.fill(batch, null);
+            }
+        }
+
+        // Moves queued frames into the shared batch until it holds coalesceBytes, returns how many it took
+        private int gather(Connection conn) throws IOException {
+            int count = 0;
+            long bytes = 0;
+            ChatMessage message;
+            while (count < batch.length && bytes < config.coalesceBytes && (message = conn.queue.poll()) != null) {
+                ByteBuffer frame = conn.codec.frameBuffer(message);
+                batch[count++] = frame;
+                bytes += frame.remaining();
+            }
+            return count;
+        }
+
+        private void fail(Connection conn, Exception e) {
+            String name = conn.username != null ? conn.username : "unknown";
+            if (e instanceof ClassNotFoundException) {
+                System.err.println("[Server] Deserialization error for " + name + ": " + e.getMessage());
+            } else {
+                System.err.println("[Server] Client error: " + name + ": " + e.getMessage());
+            }
+            close(conn);
+        }
+
+        private void close(Connection conn) {
+            if (conn.closed) {
+                return;
+            }
+            conn.closed = true;
+            conn.limits.release();
+            ServerMetrics.closedConnections.increment();
+            // A connection that drops without a /disconnect may leave its session parked for a resume,
+            // in which case its queue is kept
+            boolean parked = false;
+            if (conn.registered) {
+                if (conn.state == State.CLOSING) {
+                    ChatServer.unregister(conn.username, conn.queue);
+                } else {
+                    parked = ChatServer.connectionLost(conn.username, conn.queue);
+                }
+            }
+            if (conn.username != null) {
+                ChatServer.abandon(conn.username, conn);
+            }
+            if (!parked) {
+                conn.queue.abort();
+            }
+            conn.pendingFrames = null;
+            if (conn.key != null) {
+                conn.key.cancel();
+            }
+            try {
+                conn.channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package src;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Bounded queue of messages waiting to be written to one client. Broadcasting only enqueues, the
+connection's own writer drains the queue, so a stalled TCP window holds up that client alone.
+When the queue is full the slow-consumer policy decides what happens to the next message:
+  DROP_OLDEST - discard the oldest queued message
+  DISCONNECT  - discard the oldest message, and drop the client once the queue has stayed full for the timeout
+  BLOCK       - wait up to the timeout for room, then drop the client
+A BLOCK wait would also stall the NIO engine's I/O thread doing the broadcast, so that engine refuses the policy.
+
+For resumable sessions the queue outlives its connection. Every message handed to the writer is numbered in
+order (the first is 0) and kept until the client acknowledges it, up to the history capacity. When the connection
+drops the queue is parked: the writer stops, and messages are still accepted until it is full, at which point the
+session is given up instead of dropping any. A new connection takes over with transferTo, which moves everything
+the client did not receive into its own queue and forwards later sends there.
+ */
+class OutboundQueue implements ChatServer.MessageSink {
+    enum Policy {
+        DROP_OLDEST, DISCONNECT, BLOCK
+    }
+
+    // Totals over all queues
+    static final LongAdder droppedMessages = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    private final ArrayDeque<ChatMessage> messages = new ArrayDeque<>();
+    private final ArrayDeque<ChatMessage> history = new ArrayDeque<>(); // Written but not acknowledged, oldest first
+    private final int capacity;
+    private final int historyCapacity; // 0 when the connection cannot be resumed
+    private final Policy policy;
+    private final long timeoutMillis;
+    private final Runnable onMessage;
+    private final Runnable onDisconnect;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long fullSince; // When the queue last became full, 0 while it has room
+    private int maxDepth;
+    private boolean closed; // No new messages accepted, the writer finishes what is queued
+    private boolean aborted; // Queued messages discarded as well
+    private long taken; // Messages handed to the writer so far, the number of the next one
+    private boolean parked; // The connection is gone, the queue waits for the session to be resumed or expire
+    private OutboundQueue forward; // Set once a resumed connection took over, every later send goes there
+
+    // onMessage runs after every enqueue (null if the writer just waits on take), onDisconnect runs once
+    // if the policy gives up on the client and its connection must be closed
+    OutboundQueue(int capacity, Policy policy, long timeoutMillis, Runnable onMessage, Runnable onDisconnect) {
+        this(capacity, 0, policy, timeoutMillis, onMessage, onDisconnect);
+    }
+
+    OutboundQueue(int capacity, int historyCapacity, Policy policy, long timeoutMillis, Runnable onMessage, Runnable onDisconnect) {
+        this.capacity = capacity;
+        this.historyCapacity = historyCapacity;
+        this.policy = policy;
+        this.timeoutMillis = timeoutMillis;
+        this.onMessage = onMessage;
+        this.onDisconnect = onDisconnect;
+    }
+
+    public void send(ChatMessage message) throws IOException {
+        boolean disconnect = false;
+        boolean wasParked;
+        OutboundQueue target;
+        lock.lock();
+        try {
+            target = forward;
+            wasParked = parked;
+            if (target == null) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (messages.size() >= capacity) {
+                    // Nobody drains a parked queue, and dropping messages would leave a gap in the resumed session
+                    disconnect = parked ? abortLocked() : makeRoom();
+                }
+                if (!disconnect) {
+                    messages.add(message);
+                    maxDepth = Math.max(maxDepth, messages.size());
+                    notEmpty.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (target != null) {
+            // Outside this lock, the new queue may apply a BLOCK policy
+            target.send(message);
+            return;
+        }
+        if (disconnect) {
+            slowConsumerDisconnects.increment();
+            onDisconnect.run();
+            throw new IOException(wasParked ? "Outbound queue filled up before the session was resumed"
+                    : "Slow consumer, outbound queue full for " + timeoutMillis + " ms");
+        }
+        if (onMessage != null) {
+            onMessage.run();
+        }
+    }
+
+    // Waits for room as long as it takes instead of applying the policy, for replaying stored messages
+    // from a thread of its own. Must not be called on the thread that drains the queue
+    void sendWhenRoom(ChatMessage message) throws IOException {
+        OutboundQueue target;
+        lock.lock();
+        try {
+            while (messages.size() >= capacity && !closed && forward == null) {
+                notFull.await();
+            }
+            target = forward;
+            if (target == null) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                messages.add(message);
+                maxDepth = Math.max(maxDepth, messages.size());
+                notEmpty.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for outbound queue");
+        } finally {
+            lock.unlock();
+        }
+        if (target != null) {
+            target.sendWhenRoom(message);
+        } else if (onMessage != null) {
+            onMessage.run();
+        }
+    }
+
+    // Applies the policy to a full queue, returns true if the client should be dropped instead
+    private boolean makeRoom() throws IOException {
+        switch (policy) {
+            case DISCONNECT:
+                long now = System.currentTimeMillis();
+                if (fullSince == 0) {
+                    fullSince = now;
+                } else if (now - fullSince >= timeoutMillis) {
+                    abortLocked();
+                    return true;
+                }
+                messages.poll();
+                droppedMessages.increment();
+                return false;
+            case BLOCK:
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                try {
+                    while (messages.size() >= capacity && !closed) {
+                        if (nanos <= 0) {
+                            abortLocked();
+                            return true;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for outbound queue");
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                return false;
+            default:
+                messages.poll();
+                droppedMessages.increment();
+                return false;
+        }
+    }
+
+    // Waits for the next message, returns null once the queue is closed and drained, aborted or parked
+    ChatMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !parked) {
+                notEmpty.await();
+            }
+            return removeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to the given time for the next message, returns null if none came or the queue is closed and drained
+    ChatMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !parked && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the next message without waiting, or null if there is none
+    ChatMessage poll() {
+        lock.lock();
+        try {
+            return removeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ChatMessage removeLocked() {
+        if (parked) {
+            return null;
+        }
+        ChatMessage message = messages.poll();
+        if (message != null) {
+            fullSince = 0;
+            notFull.signal();
+            taken++;
+            if (historyCapacity > 0) {
+                history.add(message);
+                if (history.size() > historyCapacity) {
+                    history.poll();
+                }
+            }
+        }
+        return message;
+    }
+
+    // The client has received the first count messages, they no longer need to be kept for a resume
+    void acknowledge(long count) {
+        lock.lock();
+        try {
+            while (!history.isEmpty() && taken - history.size() < count) {
+                history.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops the writer but keeps the queue for a resume, returns false if it was already closed
+    boolean park() {
+        lock.lock();
+        try {
+            if (closed || forward != null) {
+                return false;
+            }
+            parked = true;
+            notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Hands the session over to the queue of a new connection once the client has received the first count
+    messages: first and then the ones it missed are moved into target, in order, and every later send is forwarded
+    there. Returns false, changing nothing, if the queue was given up or the missed messages are no longer all kept.
+     */
+    boolean transferTo(OutboundQueue target, long count, ChatMessage first) {
+        lock.lock();
+        try {
+            long firstKept = taken - history.size();
+            if (aborted || forward != null || count < firstKept || count > taken) {
+                return false;
+            }
+            List<ChatMessage> missed = new ArrayList<>();
+            missed.add(first);
+            long number = firstKept;
+            for (ChatMessage message : history) {
+                if (number++ >= count) {
+                    missed.add(message);
+                }
+            }
+            missed.addAll(messages);
+            // Still under this lock, so nothing sent here meanwhile can overtake the missed messages
+            target.addAll(missed);
+            history.clear();
+            messages.clear();
+            forward = target;
+            parked = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues messages carried over from a previous connection, regardless of capacity
+    private void addAll(List<ChatMessage> missed) {
+        lock.lock();
+        try {
+            messages.addAll(missed);
+            maxDepth = Math.max(maxDepth, messages.size());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (onMessage != null) {
+            onMessage.run();
+        }
+    }
+
+    // Gives up a parked queue: returns what the client has not acknowledged and discards the rest
+    List<ChatMessage> expire() {
+        lock.lock();
+        try {
+            List<ChatMessage> unacknowledged = new ArrayList<>(history);
+            unacknowledged.addAll(messages);
+            history.clear();
+            abortLocked();
+            return unacknowledged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isParked() {
+        lock.lock();
+        try {
+            return parked && forward == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops accepting messages, whatever is already queued is still written
+    void close() {
+        lock.lock();
+        try {
+            if (forward != null) {
+                return;
+            }
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops accepting messages and discards the queued ones
+    void abort() {
+        lock.lock();
+        try {
+            if (forward != null) {
+                return;
+            }
+            abortLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Always returns true, so a full parked queue can give up the client like makeRoom does
+    private boolean abortLocked() {
+        closed = true;
+        aborted = true;
+        messages.clear();
+        history.clear();
+        notEmpty.signalAll();
+        notFull.signalAll();
+        return true;
+    }
+
+    boolean isAborted() {
+        lock.lock();
+        try {
+            return aborted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Highest depth this queue has reached
+    int maxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package src;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+A conversation with its own key directory and subscriber set, so a message fans out to the room's members only
+and clients encrypt for the room instead of the whole server. Every user is in the lobby, other rooms are
+created on first join and dropped again once nobody is in them.
+Each room has its own lock, rooms only share the ConcurrentHashMaps they are registered in.
+In a cluster the members connected to other nodes are in the key directory too, and in remote by the node they are
+on, so a message for the room is relayed once to each node that has any of them.
+ */
+class Room {
+    static final String LOBBY = "lobby";
+    static final int MAX_NAME_LENGTH = 32;
+
+    final String name;
+    final KeyDirectory keys;
+    // Connected members, they receive the room's traffic
+    final ConcurrentHashMap<String, ChatServer.ClientInfo> members = new ConcurrentHashMap<>();
+    // Members on other cluster nodes by node id, and how many each of those nodes has. Changed under lock only
+    final ConcurrentHashMap<String, Integer> remote = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Integer, Integer> remoteNodes = new ConcurrentHashMap<>();
+    // Guards directory changes together with their broadcasts, like the server-wide lock it replaces. A ReentrantLock
+    // rather than a monitor, as a BLOCK-policy send may wait inside it and would pin a virtual thread's carrier
+    final ReentrantLock lock = new ReentrantLock();
+    boolean closed; // Removed from the registry, joiners must look the room up again. Guarded by lock
+
+    Room(String name) {
+        this.name = name;
+        this.keys = new KeyDirectory(name);
+    }
+
+    void addRemote(String username, int node) {
+        Integer previous = remote.put(username, node);
+        if (previous == null || previous != node) {
+            if (previous != null) {
+                remoteNodes.computeIfPresent(previous, (id, count) -> count > 1 ? count - 1 : null);
+            }
+            remoteNodes.merge(node, 1, Integer::sum);
+        }
+    }
+
+    // Returns false if the user is not a member on that node
+    boolean removeRemote(String username, int node) {
+        if (!remote.remove(username, node)) {
+            return false;
+        }
+        remoteNodes.computeIfPresent(node, (id, count) -> count > 1 ? count - 1 : null);
+        return true;
+    }
+
+    // Room name without the leading '#', or null if it is not a valid name
+    static String normalizeName(String requested) {
+        if (requested == null) {
+            return null;
+        }
+        String name = requested.startsWith("#") ? requested.substring(1) : requested;
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || !name.matches("[A-Za-z0-9_.-]+")) {
+            return null;
+        }
+        return name.toLowerCase();
+    }
+
+    // Room of a message, messages that name none belong to the lobby
+    static String of(ChatMessage message) {
+        return message.getRoom() != null ? message.getRoom() : LOBBY;
+    }
+}
@@ -0,0 +1,189 @@
+package src;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import utils.CryptoSuite;
+
+// Command line options for ChatServer, given as --name=value
+public class ServerConfig {
+    public enum Engine {
+        THREADS, VIRTUAL, NIO
+    }
+
+    int port = ChatServer.DEFAULT_PORT;
+    Engine engine = Engine.THREADS; // One platform or virtual thread per connection, or a selector-based event loop
+    int ioThreads = Runtime.getRuntime().availableProcessors(); // Event loop threads for the NIO engine
+    int queueCapacity = 1024; // Messages waiting to be written to one client
+    OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DISCONNECT;
+    long slowConsumerMillis = 10000; // How long DISCONNECT and BLOCK put up with a full queue
+    boolean jmx; // Register the ServerMetrics MXBean
+    int metricsPort; // Serve Prometheus metrics on this loopback port, 0 to disable
+    String storeDir; // Keep envelopes for offline users in a MessageStore here, null to drop them
+    long storeSegmentBytes = 64L * 1024 * 1024;
+    long storeSyncMillis = 50; // How long appends may wait for a shared fsync, 0 to fsync every append (not with NIO)
+    long storeRetentionMillis = 7L * 24 * 60 * 60 * 1000; // Undelivered envelopes are dropped after this long
+    int coalesceBytes = 64 * 1024; // Queued frames written to a client with one write call, up to this many bytes
+    long coalesceMicros; // How long a busy connection's writer may wait for more frames before flushing, thread engines only
+    // How long a dropped client's session is kept for it to resume, 0 to end it right away (always 0 in a cluster)
+    long resumeSeconds = 30;
+    int resumeHistory = 256; // Sent messages kept per client until acknowledged, so a resume can replay them
+    // Limits per connection and for the whole server, 0 turns a limit off (see ConnectionLimits)
+    int maxMessagesPerSecond = 200; // Reading from a client pauses when it sends faster, bursts of one second pass
+    long maxBytesPerSecond = 32L * 1024 * 1024;
+    int handshakeAttempts = 5; // Username attempts before the connection is closed, one more every second
+    int maxConnections = 10000;
+    int maxPendingHandshakes = 1000; // Connections that have not registered yet
+    long handshakeTimeoutMillis = 30000; // How long a connection may take to log in or resume before it is closed
+    Set<CryptoSuite> suites = EnumSet.allOf(CryptoSuite.class); // Suites clients may register keys of, e.g. --suites=rsa
+    // Inter-node addresses of every node of a cluster in node id order, e.g. --cluster=10.0.0.1:9101,10.0.0.2:9101.
+    // Empty for a standalone server (see Cluster)
+    List<InetSocketAddress> clusterNodes = new ArrayList<>();
+    int nodeId; // This node's index in clusterNodes, it listens for the other nodes on that address
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        boolean resumeGiven = false;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "engine":
+                    config.engine = Engine.valueOf(value.toUpperCase());
+                    break;
+                case "io-threads":
+                    config.ioThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "queue-capacity":
+                    config.queueCapacity = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "slow-consumer":
+                    config.slowConsumerPolicy = OutboundQueue.Policy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "slow-consumer-millis":
+                    config.slowConsumerMillis = Long.parseLong(value);
+                    break;
+                case "jmx":
+                    config.jmx = Boolean.parseBoolean(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "store-dir":
+                    config.storeDir = value;
+                    break;
+                case "store-segment-mb":
+                    config.storeSegmentBytes = Math.max(1, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "store-sync-millis":
+                    config.storeSyncMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "store-retention-hours":
+                    config.storeRetentionMillis = Long.parseLong(value) * 60 * 60 * 1000;
+                    break;
+                case "coalesce-bytes":
+                    config.coalesceBytes = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "coalesce-micros":
+                    config.coalesceMicros = Math.max(0, Long.parseLong(value));
+                    break;
+                case "resume-seconds":
+                    config.resumeSeconds = Math.max(0, Long.parseLong(value));
+                    resumeGiven = true;
+                    break;
+                case "resume-history":
+                    config.resumeHistory = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "max-messages-per-second":
+                    config.maxMessagesPerSecond = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "max-kb-per-second":
+                    config.maxBytesPerSecond = Math.max(0, Long.parseLong(value)) * 1024;
+                    break;
+                case "handshake-attempts":
+                    config.handshakeAttempts = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "max-connections":
+                    config.maxConnections = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "max-pending-handshakes":
+                    config.maxPendingHandshakes = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "handshake-timeout-millis":
+                    config.handshakeTimeoutMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "suites":
+                    config.suites = EnumSet.noneOf(CryptoSuite.class);
+                    for (String id : value.split(",")) {
+                        CryptoSuite suite = CryptoSuite.forId(id.trim());
+                        if (suite == null) {
+                            throw new IllegalArgumentException("Unknown suite: " + id);
+                        }
+                        config.suites.add(suite);
+                    }
+                    break;
+                case "cluster":
+                    config.clusterNodes = new ArrayList<>();
+                    for (String node : value.split(",")) {
+                        int colon = node.lastIndexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Expected host:port but got: " + node);
+                        }
+                        config.clusterNodes.add(new InetSocketAddress(node.substring(0, colon).trim(),
+                                Integer.parseInt(node.substring(colon + 1).trim())));
+                    }
+                    break;
+                case "node-id":
+                    config.nodeId = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        // The NIO engine handles messages on its I/O threads (see NioChatServer), so settings that make a handler
+        // wait would stall every connection on that thread
+        if (config.engine == Engine.NIO) {
+            if (config.slowConsumerPolicy == OutboundQueue.Policy.BLOCK) {
+                throw new IllegalArgumentException("--slow-consumer=block cannot be used with --engine=nio");
+            }
+            if (config.storeDir != null && config.storeSyncMillis == 0) {
+                throw new IllegalArgumentException("--store-sync-millis=0 cannot be used with --engine=nio");
+            }
+        }
+        if (!config.clusterNodes.isEmpty()) {
+            if (config.nodeId < 0 || config.nodeId >= config.clusterNodes.size()) {
+                throw new IllegalArgumentException("--node-id must be below the number of --cluster nodes");
+            }
+            // A user may come back through any node, while the store keeps its envelopes on one
+            if (config.storeDir != null) {
+                throw new IllegalArgumentException("--store-dir cannot be used with --cluster");
+            }
+            // For the same reason a parked session would only be found through its own node, and would keep the
+            // name claimed against a login through any other node until it expired
+            if (resumeGiven && config.resumeSeconds > 0) {
+                throw new IllegalArgumentException("--resume-seconds cannot be used with --cluster");
+            }
+            config.resumeSeconds = 0;
+        }
+        return config;
+    }
+
+    // Unstarted thread for a connection's reader or writer, virtual when the engine is VIRTUAL
+    Thread newThread(Runnable task) {
+        return engine == Engine.VIRTUAL ? Thread.ofVirtual().unstarted(task) : new Thread(task);
+    }
+
+    OutboundQueue newOutboundQueue(Runnable onMessage, Runnable onDisconnect) {
+        return new OutboundQueue(queueCapacity, resumeSeconds > 0 ? resumeHistory : 0, slowConsumerPolicy,
+                slowConsumerMillis, onMessage, onDisconnect);
+    }
+}
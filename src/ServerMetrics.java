@@ -0,0 +1,264 @@
+package src;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import utils.LatencyHistogram;
+
+/*
+Live server counters and latency histograms, shared by both server engines.
+Recording is always on: counters are LongAdders and histograms are fixed atomic arrays, so the hot path
+never locks or allocates. Reading them is opt-in:
+  --jmx=true           registers the chat:type=ServerMetrics MXBean
+  --metrics-port=<n>   serves the Prometheus text format on http://127.0.0.1:<n>/metrics
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    static final LongAdder acceptedConnections = new LongAdder();
+    static final LongAdder closedConnections = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder(); // Chat messages received from registered clients
+    static final LongAdder messagesOut = new LongAdder(); // Messages queued for a client
+    static final LongAdder failedWrites = new LongAdder();
+    static final LongAdder socketWrites = new LongAdder(); // Flushes or write calls, each carries one or more frames
+    static final LongAdder keyMapSnapshots = new LongAdder(); // Full PUBLIC_KEY_MAP sends
+    static final LongAdder keyDeltas = new LongAdder(); // KEY_ADDED/KEY_REMOVED broadcasts
+    static final LongAdder storedMessages = new LongAdder(); // Envelope copies kept for offline users
+    static final LongAdder replayedMessages = new LongAdder(); // Stored envelopes sent to returning users
+    static final LongAdder resumedSessions = new LongAdder(); // Reconnects that took over a session without a handshake
+    static final LongAdder expiredSessions = new LongAdder(); // Dropped sessions nobody resumed in time
+    static final LongAdder throttledReads = new LongAdder(); // Pauses in reading from a client over its rate limit
+    static final LongAdder rejectedConnections = new LongAdder(); // Connections closed on accept, a cap was reached
+    static final LongAdder rejectedHandshakes = new LongAdder(); // Connections closed after too many username attempts
+    static final LongAdder relayedMessages = new LongAdder(); // Frames queued for other cluster nodes
+    static final LatencyHistogram broadcastMicros = new LatencyHistogram(); // Time to queue one message for every client
+    static final LatencyHistogram handshakeMicros = new LatencyHistogram(); // From accept until the client is registered
+
+    private static boolean exposed;
+
+    // Turns on the JMX bean and HTTP endpoint the config asks for, only the first call has any effect
+    static synchronized void expose(ServerConfig config) throws IOException {
+        if (exposed) {
+            return;
+        }
+        exposed = true;
+        if (config.jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(), new ObjectName("chat:type=ServerMetrics"));
+            } catch (JMException e) {
+                throw new IOException("Failed to register metrics MXBean", e);
+            }
+        }
+        if (config.metricsPort > 0) {
+            // Loopback only, the endpoint has no authentication
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.metricsPort), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            System.out.println("[Server] Metrics available on http://127.0.0.1:" + config.metricsPort + "/metrics");
+        }
+    }
+
+    static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    // All metrics in the Prometheus text exposition format
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, "chat_connected_users", "Users that completed the handshake", ChatServer.connectedUsers());
+        gauge(sb, "chat_rooms", "Rooms including the lobby", ChatServer.roomCount());
+        gauge(sb, "chat_open_connections", "Open client connections", acceptedConnections.sum() - closedConnections.sum());
+        gauge(sb, "chat_pending_handshakes", "Connections that have not registered yet", ConnectionLimits.pendingHandshakes());
+        gauge(sb, "chat_queued_messages", "Messages waiting in outbound queues", ChatServer.totalQueueDepth());
+        gauge(sb, "chat_cluster_nodes", "Cluster nodes this node is linked with, itself included", Cluster.liveNodeCount());
+        gauge(sb, "chat_stored_pending_messages", "Envelopes waiting in the store for offline users", ChatServer.storedPending());
+        counter(sb, "chat_accepted_connections_total", "Connections accepted", acceptedConnections.sum());
+        counter(sb, "chat_bytes_in_total", "Bytes read from clients", bytesIn.sum());
+        counter(sb, "chat_bytes_out_total", "Bytes written to clients", bytesOut.sum());
+        counter(sb, "chat_messages_in_total", "Chat messages received", messagesIn.sum());
+        counter(sb, "chat_messages_out_total", "Messages queued for clients", messagesOut.sum());
+        counter(sb, "chat_failed_writes_total", "Sends or socket writes that failed", failedWrites.sum());
+        counter(sb, "chat_socket_writes_total", "Writes to client sockets, each carrying one or more frames", socketWrites.sum());
+        counter(sb, "chat_key_map_snapshots_total", "Full public key maps sent", keyMapSnapshots.sum());
+        counter(sb, "chat_key_deltas_total", "Key directory deltas broadcast", keyDeltas.sum());
+        counter(sb, "chat_stored_messages_total", "Envelopes stored for offline users", storedMessages.sum());
+        counter(sb, "chat_replayed_messages_total", "Stored envelopes sent to returning users", replayedMessages.sum());
+        counter(sb, "chat_resumed_sessions_total", "Reconnects that resumed a session without a handshake", resumedSessions.sum());
+        counter(sb, "chat_expired_sessions_total", "Dropped sessions that were not resumed in time", expiredSessions.sum());
+        counter(sb, "chat_throttled_reads_total", "Pauses in reading from clients over their rate limit", throttledReads.sum());
+        counter(sb, "chat_rejected_connections_total", "Connections refused because a connection cap was reached", rejectedConnections.sum());
+        counter(sb, "chat_rejected_handshakes_total", "Connections closed after too many username attempts", rejectedHandshakes.sum());
+        counter(sb, "chat_relayed_messages_total", "Frames sent to other cluster nodes", relayedMessages.sum());
+        counter(sb, "chat_dropped_messages_total", "Messages dropped from full outbound queues", OutboundQueue.droppedMessages.sum());
+        counter(sb, "chat_slow_consumer_disconnects_total", "Clients dropped by the slow-consumer policy", OutboundQueue.slowConsumerDisconnects.sum());
+        summary(sb, "chat_broadcast_duration_seconds", "Time to queue one message for every client", broadcastMicros);
+        summary(sb, "chat_handshake_duration_seconds", "Time from accept until the client is registered", handshakeMicros);
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram micros) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            double seconds = micros.percentile(Double.parseDouble(quantile) * 100) / 1e6;
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(seconds).append('\n');
+        }
+        sb.append(name).append("_sum ").append(micros.sum() / 1e6).append('\n');
+        sb.append(name).append("_count ").append(micros.count()).append('\n');
+    }
+
+    public int getConnectedUsers() {
+        return ChatServer.connectedUsers();
+    }
+
+    public int getRooms() {
+        return ChatServer.roomCount();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public long getOpenConnections() {
+        return acceptedConnections.sum() - closedConnections.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    public long getKeyMapSnapshots() {
+        return keyMapSnapshots.sum();
+    }
+
+    public long getKeyDeltas() {
+        return keyDeltas.sum();
+    }
+
+    public long getStoredMessages() {
+        return storedMessages.sum();
+    }
+
+    public long getReplayedMessages() {
+        return replayedMessages.sum();
+    }
+
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    public long getExpiredSessions() {
+        return expiredSessions.sum();
+    }
+
+    public long getRelayedMessages() {
+        return relayedMessages.sum();
+    }
+
+    public int getClusterNodes() {
+        return Cluster.liveNodeCount();
+    }
+
+    public int getPendingHandshakes() {
+        return ConnectionLimits.pendingHandshakes();
+    }
+
+    public long getThrottledReads() {
+        return throttledReads.sum();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getRejectedHandshakes() {
+        return rejectedHandshakes.sum();
+    }
+
+    public long getStoredPendingMessages() {
+        return ChatServer.storedPending();
+    }
+
+    public long getDroppedMessages() {
+        return OutboundQueue.droppedMessages.sum();
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return OutboundQueue.slowConsumerDisconnects.sum();
+    }
+
+    public int getQueuedMessages() {
+        return ChatServer.totalQueueDepth();
+    }
+
+    public long getBroadcasts() {
+        return broadcastMicros.count();
+    }
+
+    public long getBroadcastP50Micros() {
+        return broadcastMicros.percentile(50);
+    }
+
+    public long getBroadcastP99Micros() {
+        return broadcastMicros.percentile(99);
+    }
+
+    public long getHandshakes() {
+        return handshakeMicros.count();
+    }
+
+    public long getHandshakeP50Micros() {
+        return handshakeMicros.percentile(50);
+    }
+
+    public long getHandshakeP99Micros() {
+        return handshakeMicros.percentile(99);
+    }
+}
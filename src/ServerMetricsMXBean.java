@@ -0,0 +1,68 @@
+package src;
+
+// Management interface of ServerMetrics, registered as chat:type=ServerMetrics when the server runs with --jmx=true
+public interface ServerMetricsMXBean {
+    int getConnectedUsers();
+
+    int getRooms();
+
+    long getAcceptedConnections();
+
+    long getOpenConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getFailedWrites();
+
+    long getSocketWrites();
+
+    long getKeyMapSnapshots();
+
+    long getKeyDeltas();
+
+    long getStoredMessages();
+
+    long getReplayedMessages();
+
+    long getResumedSessions();
+
+    long getExpiredSessions();
+
+    long getRelayedMessages();
+
+    int getClusterNodes();
+
+    int getPendingHandshakes();
+
+    long getThrottledReads();
+
+    long getRejectedConnections();
+
+    long getRejectedHandshakes();
+
+    long getStoredPendingMessages();
+
+    long getDroppedMessages();
+
+    long getSlowConsumerDisconnects();
+
+    int getQueuedMessages();
+
+    long getBroadcasts();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getHandshakes();
+
+    long getHandshakeP50Micros();
+
+    long getHandshakeP99Micros();
+}
@@ -0,0 +1,101 @@
+package src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import utils.FrameUtils;
+
+/*
+The encodings a frame payload can use. Frames are self-describing, so a receiver always decodes both;
+negotiation only decides what a peer sends:
+  1. the server advertises the codecs it reads in the entries of its connection acknowledgement
+  2. a client that understands the advertisement sends its username (and everything after) in binary
+  3. the server switches its side of the connection to binary once it receives a binary frame
+Peers that do not read the advertisement never see a binary frame and keep using Java serialization. Both codecs
+share the length-prefixed framing of FrameUtils, so peers from before it cannot connect either way.
+ */
+public enum WireCodec {
+    JAVA, BINARY;
+
+    static final String CODECS_ENTRY = "codecs";
+    // Frames at least this large are shared as one direct buffer; smaller ones are cheaper to copy than to allocate off-heap
+    static final int DIRECT_FRAME_THRESHOLD = 8 * 1024;
+
+    // Encodes an object into a complete frame (length prefix included)
+    public byte[] encode(Object obj) throws IOException {
+        return this == BINARY ? BinaryCodec.encode(obj) : FrameUtils.encode(obj);
+    }
+
+    /*
+    Frame for a message about to be written to a client. The bytes are cached on the message, so one broadcast to
+    N clients is encoded once per codec instead of N times and every connection writes the same array.
+    The returned array is shared and must not be modified.
+     */
+    byte[] frame(ChatMessage message) throws IOException {
+        byte[] frame = message.cachedFrame(this);
+        if (frame == null) {
+            frame = encode(message);
+            message.cacheFrame(this, frame);
+        }
+        return frame;
+    }
+
+    // The same frame as a read-only buffer with its own position for a channel write. Large frames live in one direct
+    // buffer shared by all connections, so the write goes straight from it instead of through a temporary direct copy
+    ByteBuffer frameBuffer(ChatMessage message) throws IOException {
+        ByteBuffer direct = message.cachedDirectFrame(this);
+        if (direct == null) {
+            byte[] frame = frame(message);
+            if (frame.length < DIRECT_FRAME_THRESHOLD) {
+                return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+            }
+            direct = ByteBuffer.allocateDirect(frame.length).put(frame).flip().asReadOnlyBuffer();
+            message.cacheDirectFrame(this, direct);
+        }
+        return direct.duplicate();
+    }
+
+    public void writeFrame(DataOutputStream out, Object obj) throws IOException {
+        out.write(encode(obj));
+    }
+
+    // Identifies the codec of a frame payload from its first byte
+    public static WireCodec of(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == BinaryCodec.VERSION ? BINARY : JAVA;
+    }
+
+    public static Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (of(data, offset, length) == BINARY) {
+            return BinaryCodec.decode(data, offset, length);
+        }
+        return FrameUtils.decode(data, offset, length);
+    }
+
+    public static Object readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte[] payload = FrameUtils.readPayload(in);
+        return decode(payload, 0, payload.length);
+    }
+
+    // Entries the server attaches to its connection acknowledgement
+    static Map<String, byte[]> advertisement() {
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put(CODECS_ENTRY, new byte[]{BinaryCodec.VERSION});
+        return entries;
+    }
+
+    // Picks the codec a client sends with, based on the server's acknowledgement
+    public static WireCodec negotiate(ChatMessage acknowledgement) {
+        Map<String, byte[]> entries = acknowledgement.getEntries();
+        if (entries != null && entries.containsKey(CODECS_ENTRY)) {
+            for (byte version : entries.get(CODECS_ENTRY)) {
+                if (version == BinaryCodec.VERSION) {
+                    return BINARY;
+                }
+            }
+        }
+        return JAVA;
+    }
+}
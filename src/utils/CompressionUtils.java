@@ -0,0 +1,101 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class CompressionUtils {
+    // Codec ids, carried in the envelope so a receiver knows how to undo the compression. Never renumber them
+    public static final byte DEFLATE_CHAT_V1 = 1;
+    // Shorter messages are sent as they are, deflating them costs more than the few bytes it could save
+    public static final int MIN_INPUT_BYTES = 32;
+    // The flag entry itself costs about this much on the wire, so compression has to save more than that
+    public static final int MIN_SAVING_BYTES = 16;
+    // Upper bound for an inflated body so a hostile sender cannot make us allocate gigabytes
+    public static final int MAX_INFLATED_SIZE = FrameUtils.MAX_FRAME_SIZE;
+
+    /*
+    Preset dictionary shared by every client: deflate can refer back into it from the first byte, so even a short
+    chat line finds matches. It is part of the DEFLATE_CHAT_V1 format and must never change, a different one needs
+    a new codec id. Deflate prefers matches near the end, so the most common strings come last.
+     */
+    private static final byte[] CHAT_DICTIONARY = (
+            "Exception in thread \"main\" java.lang.NullPointerException\n\tat java.base/java.lang.Thread.run(Thread.java)\n"
+            + "Caused by: java.io.IOException: Connection reset\n\t... more\n"
+            + "ERROR WARN INFO DEBUG TRACE [main] 2026-01-01T00:00:00.000Z localhost:8080 http://https://www.github.com/ .com .org "
+            + "{\"id\": \"name\": \"type\": \"value\": \"message\": \"status\": true, false, null}\n"
+            + "function return public static void private final class import package new String int boolean "
+            + "SELECT * FROM WHERE ORDER BY GROUP BY INSERT INTO UPDATE SET DELETE "
+            + "Monday Tuesday Wednesday Thursday Friday Saturday Sunday tomorrow yesterday today tonight morning afternoon evening "
+            + "meeting deploy release build test review merge branch commit server client error issue problem fixed working "
+            + "please thanks thank you sorry welcome congratulations happy birthday good morning good night see you later "
+            + "what do you think about this? does anyone know how to ? can you help me with the ? I'm not sure if I can "
+            + "I don't know, I think that we should probably just wait and see. Let me know when you're ready. "
+            + "Sounds good to me. That makes sense. I'll take a look at it and get back to you. "
+            + "Are you there? Where are you? When is it? Why not? How are you doing? What's up? "
+            + "lol haha hahaha :) :( :D ;) <3 ok okay yes yeah yep no nope maybe sure cool nice great awesome "
+            + "hello hi hey everyone guys all right alright bye the and that have for not with you this but his from they "
+            + "we say her she or an will my one all would there their what so up out if about who get which go me when make "
+            + "can like time just him know take people into year your good some could them see other than then now look only "
+            + "come its over think also back after use two how our work first well way even new want because any these give day "
+            + "most us is are was were been being has had do does did done of to in it on at be as by i a the "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // Deflater and Inflater hold native buffers of a few hundred KB, so each thread keeps one of each
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /*
+    Function to compress a plaintext before it is encrypted, returns null when that does not pay off: the input
+    is shorter than MIN_INPUT_BYTES or the output saves less than MIN_SAVING_BYTES. Callers then send the
+    plaintext as it is. The output is a raw deflate stream primed with CHAT_DICTIONARY, codec DEFLATE_CHAT_V1.
+    Compressing before encrypting lets the ciphertext length depend on the content, like the plain length already does.
+     */
+    public static byte[] compress(byte[] data) {
+        if (data.length < MIN_INPUT_BYTES) {
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(CHAT_DICTIONARY);
+        deflater.setInput(data);
+        deflater.finish();
+        // Only worth keeping if it fits in this much
+        byte[] out = new byte[data.length - MIN_SAVING_BYTES];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                return null;
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+
+    // Function to undo compress for the given codec id
+    public static byte[] decompress(byte[] data, byte codec) throws DataFormatException {
+        if (codec != DEFLATE_CHAT_V1) {
+            throw new DataFormatException("Unsupported compression codec: " + codec);
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setDictionary(CHAT_DICTIONARY);
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length * 4));
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buffer);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated compressed data");
+            }
+            if (out.size() + n > MAX_INFLATED_SIZE) {
+                throw new DataFormatException("Compressed data inflates beyond " + MAX_INFLATED_SIZE + " bytes");
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,255 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.security.*;
+import java.security.interfaces.RSAKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+Shared machinery for the crypto utilities.
+Cipher, KeyFactory, KeyGenerator, KeyAgreement, Signature and Mac lookups go through the provider list on every
+getInstance call, so instances are cached per thread (they are not thread safe) and re-initialised with the key
+for each use. Per-recipient key wrapping for a large group is split over the common fork-join pool.
+ */
+public class CryptoEngine {
+    // Below this many recipients the wrapping runs on the calling thread, forking costs more than it saves
+    static final int PARALLEL_THRESHOLD = 16;
+    private static final ThreadLocal<Map<String, Cipher>> ciphers = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyFactory>> keyFactories = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyGenerator>> keyGenerators = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyPairGenerator>> keyPairGenerators = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyAgreement>> keyAgreements = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Signature>> signatures = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Mac>> macs = ThreadLocal.withInitial(HashMap::new);
+
+    // Function to get this thread's Cipher for a transformation, the caller must init it before use
+    public static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> cache = ciphers.get();
+        Cipher cipher = cache.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            cache.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    public static KeyFactory keyFactory(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyFactory> cache = keyFactories.get();
+        KeyFactory keyFactory = cache.get(algorithm);
+        if (keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(algorithm);
+            cache.put(algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
+    // Function to generate a fresh symmetric key, e.g. an AES session key
+    public static SecretKey generateSecretKey(String algorithm, int keySize) throws GeneralSecurityException {
+        String id = algorithm + "/" + keySize;
+        Map<String, KeyGenerator> cache = keyGenerators.get();
+        KeyGenerator keyGen = cache.get(id);
+        if (keyGen == null) {
+            keyGen = KeyGenerator.getInstance(algorithm);
+            keyGen.init(keySize);
+            cache.put(id, keyGen);
+        }
+        return keyGen.generateKey();
+    }
+
+    // Function to generate a key pair of a curve or algorithm with its default parameters, e.g. X25519 or Ed25519
+    public static KeyPair generateKeyPair(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyPairGenerator> cache = keyPairGenerators.get();
+        KeyPairGenerator keyPairGen = cache.get(algorithm);
+        if (keyPairGen == null) {
+            keyPairGen = KeyPairGenerator.getInstance(algorithm);
+            cache.put(algorithm, keyPairGen);
+        }
+        return keyPairGen.generateKeyPair();
+    }
+
+    public static KeyAgreement keyAgreement(String algorithm) throws GeneralSecurityException {
+        Map<String, KeyAgreement> cache = keyAgreements.get();
+        KeyAgreement keyAgreement = cache.get(algorithm);
+        if (keyAgreement == null) {
+            keyAgreement = KeyAgreement.getInstance(algorithm);
+            cache.put(algorithm, keyAgreement);
+        }
+        return keyAgreement;
+    }
+
+    public static Signature signature(String algorithm) throws GeneralSecurityException {
+        Map<String, Signature> cache = signatures.get();
+        Signature signature = cache.get(algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            cache.put(algorithm, signature);
+        }
+        return signature;
+    }
+
+    public static Mac mac(String algorithm) throws GeneralSecurityException {
+        Map<String, Mac> cache = macs.get();
+        Mac mac = cache.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            cache.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    // Function to turn X.509 encoded bytes back into a public key
+    public static PublicKey decodePublicKey(String algorithm, byte[] encoded) throws GeneralSecurityException {
+        return keyFactory(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    // Same, for an RSA, X25519 or Ed25519 key whose algorithm is not known up front
+    public static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+        return decodePublicKey(EcUtils.algorithmOf(encoded), encoded);
+    }
+
+    /*
+    Function to RSA encrypt data of any length by splitting it into blocks of at most maxChunkSize bytes.
+    Each block is encrypted straight into its slot of a single output array sized up front, so there are no
+    per-chunk copies. An empty block is appended when the length is a multiple of maxChunkSize, as RSAUtils always did.
+     */
+    public static byte[] rsaEncrypt(String transformation, byte[] data, Key key, int maxChunkSize) throws GeneralSecurityException {
+        Cipher cipher = cipher(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        int blockSize = modulusBytes(key);
+        byte[] out = new byte[(data.length / maxChunkSize + 1) * blockSize];
+        int outPos = 0;
+        for (int i = 0; i <= data.length; i += maxChunkSize) {
+            outPos += cipher.doFinal(data, i, Math.min(maxChunkSize, data.length - i), out, outPos);
+        }
+        return outPos == out.length ? out : Arrays.copyOf(out, outPos);
+    }
+
+    // Function to decrypt data produced by rsaEncrypt, one modulus-sized block at a time into a single output array
+    public static byte[] rsaDecrypt(String transformation, byte[] data, Key key) throws GeneralSecurityException {
+        Cipher cipher = cipher(transformation);
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        int blockSize = modulusBytes(key);
+        // Plaintext is always shorter than the ciphertext, which also leaves room for the provider's full-block check
+        byte[] out = new byte[data.length];
+        int outPos = 0;
+        for (int i = 0; i < data.length; i += blockSize) {
+            outPos += cipher.doFinal(data, i, Math.min(blockSize, data.length - i), out, outPos);
+        }
+        return Arrays.copyOf(out, outPos);
+    }
+
+    /*
+    Function to wrap one secret key for every recipient, returned as username -> wrapped key.
+    Each wrap is an RSA public key operation, or for an X25519 recipient a key agreement with the ephemeral key
+    (which must then be given), so for a large group the recipients are split over the common fork-join pool
+    and every worker thread uses its own cached Cipher.
+     */
+    public static Map<String, byte[]> wrapForAll(String transformation, SecretKey secretKey, Map<String, PublicKey> recipients,
+                                                 KeyPair ephemeral) throws GeneralSecurityException {
+        List<String> names = new ArrayList<>(recipients.keySet());
+        List<PublicKey> keys = new ArrayList<>(names.size());
+        for (String name : names) {
+            keys.add(recipients.get(name));
+        }
+        byte[][] wrapped = new byte[names.size()][];
+        // On a single core there is nothing to gain from forking
+        if (names.size() < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() < 2) {
+            wrapRange(transformation, secretKey, ephemeral, keys, wrapped, 0, names.size());
+        } else {
+            try {
+                ForkJoinPool.commonPool().invoke(new WrapTask(transformation, secretKey, ephemeral, keys, wrapped, 0, names.size()));
+            } catch (WrapFailure e) {
+                throw e.failure;
+            }
+        }
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0; i < wrapped.length; i++) {
+            result.put(names.get(i), wrapped[i]);
+        }
+        return result;
+    }
+
+    private static void wrapRange(String transformation, SecretKey secretKey, KeyPair ephemeral, List<PublicKey> keys,
+                                  byte[][] wrapped, int from, int to) throws GeneralSecurityException {
+        byte[] ephemeralRaw = ephemeral != null ? EcUtils.rawKey(ephemeral.getPublic()) : null;
+        for (int i = from; i < to; i++) {
+            PublicKey key = keys.get(i);
+            if (CryptoSuite.of(key) == CryptoSuite.X25519_ED25519) {
+                if (ephemeral == null) {
+                    throw new InvalidKeyException("No ephemeral key to wrap for an X25519 recipient");
+                }
+                wrapped[i] = EcUtils.wrap(secretKey, key, ephemeral.getPrivate(), ephemeralRaw);
+            } else {
+                Cipher cipher = cipher(transformation);
+                cipher.init(Cipher.WRAP_MODE, key);
+                wrapped[i] = cipher.wrap(secretKey);
+            }
+        }
+    }
+
+    private static int modulusBytes(Key key) {
+        return (((RSAKey) key).getModulus().bitLength() + 7) / 8;
+    }
+
+    // Halves the range until it is small enough to wrap on one worker
+    private static class WrapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String transformation;
+        private final SecretKey secretKey;
+        private final KeyPair ephemeral;
+        @SuppressWarnings("serial") // Fork-join tasks are serializable but this one is only ever run by the pool
+        private final List<PublicKey> keys;
+        private final byte[][] wrapped;
+        private final int from;
+        private final int to;
+
+        WrapTask(String transformation, SecretKey secretKey, KeyPair ephemeral, List<PublicKey> keys, byte[][] wrapped, int from, int to) {
+            this.transformation = transformation;
+            this.secretKey = secretKey;
+            this.ephemeral = ephemeral;
+            this.keys = keys;
+            this.wrapped = wrapped;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD / 2) {
+                try {
+                    wrapRange(transformation, secretKey, ephemeral, keys, wrapped, from, to);
+                } catch (GeneralSecurityException e) {
+                    throw new WrapFailure(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new WrapTask(transformation, secretKey, ephemeral, keys, wrapped, from, mid),
+                    new WrapTask(transformation, secretKey, ephemeral, keys, wrapped, mid, to));
+        }
+    }
+
+    // Carries a checked exception out of the fork-join pool
+    private static class WrapFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final GeneralSecurityException failure;
+
+        WrapFailure(GeneralSecurityException cause) {
+            super(cause);
+            this.failure = cause;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/*
+The kinds of keys a client can be known by. Negotiation happens around the PUBLIC_KEY exchange:
+  1. the server lists the suites it accepts in the entries of its connection acknowledgement
+  2. the client sends the key of its suite along with the list of suites it can read in the key directory
+  3. the server registers the key, or refuses it with a notice and closes the connection
+Clients that list nothing are taken to read RSA keys only and are sent the directory without EC keys.
+ */
+public enum CryptoSuite {
+    // 2048-bit RSA key, others wrap message keys for it with RSA-OAEP
+    RSA("rsa"),
+    // X25519 key others agree a message key with, plus an Ed25519 identity key the client signs its messages with
+    X25519_ED25519("x25519-ed25519");
+
+    // Entry of the acknowledgement and of PUBLIC_KEY messages listing suites
+    public static final String SUITES_ENTRY = " suites";
+    // Entry of a PUBLIC_KEY message holding the raw Ed25519 identity key
+    public static final String IDENTITY_ENTRY = " identity";
+
+    public final String id;
+
+    CryptoSuite(String id) {
+        this.id = id;
+    }
+
+    /*
+    Function to generate the key pairs of a new client: the key messages are encrypted for first, then for
+    X25519_ED25519 the identity key. An RSA key takes a noticeable fraction of a second, the EC keys well under a millisecond.
+     */
+    public KeyPair[] generateKeyPairs() throws GeneralSecurityException {
+        if (this == RSA) {
+            return new KeyPair[]{RSAUtils.generateRSAKeyPair(2048)};
+        }
+        return new KeyPair[]{EcUtils.generateX25519KeyPair(), EcUtils.generateEd25519KeyPair()};
+    }
+
+    // The suite a key messages are encrypted for (or its private half) belongs to, or null if it is of no known suite
+    public static CryptoSuite of(Key key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "XDH":
+            case "X25519":
+                return X25519_ED25519;
+            default:
+                return null;
+        }
+    }
+
+    public static CryptoSuite forId(String id) {
+        for (CryptoSuite suite : values()) {
+            if (suite.id.equals(id)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    public static byte[] encode(Set<CryptoSuite> suites) {
+        StringJoiner ids = new StringJoiner(",");
+        for (CryptoSuite suite : suites) {
+            ids.add(suite.id);
+        }
+        return ids.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Suites listed in an entry written by encode, unknown ones are skipped. Null lists only RSA
+    public static Set<CryptoSuite> decode(byte[] encoded) {
+        Set<CryptoSuite> suites = EnumSet.noneOf(CryptoSuite.class);
+        if (encoded == null) {
+            suites.add(RSA);
+            return suites;
+        }
+        for (String id : new String(encoded, StandardCharsets.US_ASCII).split(",")) {
+            CryptoSuite suite = forId(id.trim());
+            if (suite != null) {
+                suites.add(suite);
+            }
+        }
+        return suites;
+    }
+}
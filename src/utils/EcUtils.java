@@ -0,0 +1,162 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+
+/*
+Elliptic-curve half of the X25519_ED25519 suite.
+A message key is wrapped for a recipient by agreeing a secret between the sender's ephemeral X25519 key (one per
+message, shared by all recipients) and the recipient's X25519 key, stretching it with HKDF-SHA256 into an AES key
+and wrapping the message key with AES key wrap (RFC 3394): 40 bytes per recipient instead of 256 for RSA-OAEP.
+The agreement on the receive path costs about a tenth of an RSA decryption, but the JDK's X25519 and Ed25519 are
+plain Java: with the signature check a received message costs about what an RSA one does, and a sender pays an
+agreement per recipient where an RSA-OAEP encryption is cheaper. The gains are in key generation and key sizes.
+Keys go over the wire raw, 32 bytes each, rather than X.509 encoded.
+ */
+public class EcUtils {
+    public static final int KEY_SIZE = 32;
+    // First byte of an EC directory entry. X.509 encoded RSA keys start with 0x30, so the two cannot be confused
+    public static final byte BUNDLE_TAG = 1;
+    public static final int BUNDLE_SIZE = 1 + 2 * KEY_SIZE;
+    // X.509 encodings of X25519 and Ed25519 keys are this fixed header followed by the raw key
+    private static final byte[] X25519_PREFIX = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00};
+    private static final byte[] ED25519_PREFIX = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+    private static final String WRAP_TRANSFORMATION = "AESWrap";
+    private static final byte[] KDF_SALT = new byte[32];
+    private static final byte[] KDF_INFO = "e2e-chat x25519 key wrap v1".getBytes(StandardCharsets.US_ASCII);
+
+    public static KeyPair generateX25519KeyPair() throws GeneralSecurityException {
+        return CryptoEngine.generateKeyPair("X25519");
+    }
+
+    public static KeyPair generateEd25519KeyPair() throws GeneralSecurityException {
+        return CryptoEngine.generateKeyPair("Ed25519");
+    }
+
+    // Function to get the 32 raw bytes of an X25519 or Ed25519 public key
+    public static byte[] rawKey(PublicKey key) {
+        byte[] encoded = key.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - KEY_SIZE, encoded.length);
+    }
+
+    public static PublicKey x25519Key(byte[] raw, int offset) throws GeneralSecurityException {
+        return decode("XDH", X25519_PREFIX, raw, offset);
+    }
+
+    public static PublicKey ed25519Key(byte[] raw, int offset) throws GeneralSecurityException {
+        return decode("EdDSA", ED25519_PREFIX, raw, offset);
+    }
+
+    private static PublicKey decode(String algorithm, byte[] prefix, byte[] raw, int offset) throws GeneralSecurityException {
+        if (raw == null || raw.length - offset < KEY_SIZE) {
+            throw new InvalidKeyException("Truncated " + algorithm + " key");
+        }
+        byte[] encoded = Arrays.copyOf(prefix, prefix.length + KEY_SIZE);
+        System.arraycopy(raw, offset, encoded, prefix.length, KEY_SIZE);
+        return CryptoEngine.decodePublicKey(algorithm, encoded);
+    }
+
+    // Function to tell the KeyFactory algorithm of an X.509 encoded public key
+    public static String algorithmOf(byte[] encoded) {
+        if (encoded.length == X25519_PREFIX.length + KEY_SIZE) {
+            if (Arrays.equals(encoded, 0, X25519_PREFIX.length, X25519_PREFIX, 0, X25519_PREFIX.length)) {
+                return "XDH";
+            }
+            if (Arrays.equals(encoded, 0, ED25519_PREFIX.length, ED25519_PREFIX, 0, ED25519_PREFIX.length)) {
+                return "EdDSA";
+            }
+        }
+        return "RSA";
+    }
+
+    // Function to build the directory entry of an EC client: BUNDLE_TAG | raw X25519 key | raw Ed25519 identity key
+    public static byte[] encodeBundle(byte[] agreementKeyRaw, byte[] identityKeyRaw) {
+        byte[] bundle = new byte[BUNDLE_SIZE];
+        bundle[0] = BUNDLE_TAG;
+        System.arraycopy(agreementKeyRaw, 0, bundle, 1, KEY_SIZE);
+        System.arraycopy(identityKeyRaw, 0, bundle, 1 + KEY_SIZE, KEY_SIZE);
+        return bundle;
+    }
+
+    public static boolean isBundle(byte[] entry) {
+        return entry.length == BUNDLE_SIZE && entry[0] == BUNDLE_TAG;
+    }
+
+    public static PublicKey bundleAgreementKey(byte[] bundle) throws GeneralSecurityException {
+        return x25519Key(bundle, 1);
+    }
+
+    public static PublicKey bundleIdentityKey(byte[] bundle) throws GeneralSecurityException {
+        return ed25519Key(bundle, 1 + KEY_SIZE);
+    }
+
+    // Function to wrap a message key for one recipient, ephemeralRaw is the raw public half of the ephemeral key
+    public static byte[] wrap(SecretKey key, PublicKey recipient, PrivateKey ephemeral, byte[] ephemeralRaw) throws GeneralSecurityException {
+        Cipher cipher = CryptoEngine.cipher(WRAP_TRANSFORMATION);
+        cipher.init(Cipher.WRAP_MODE, kek(ephemeral, recipient, ephemeralRaw));
+        return cipher.wrap(key);
+    }
+
+    // Function to unwrap a message key wrapped for the owner of privateKey, fails if it was wrapped for someone else
+    public static SecretKey unwrap(byte[] wrapped, byte[] ephemeralRaw, PrivateKey privateKey) throws GeneralSecurityException {
+        Cipher cipher = CryptoEngine.cipher(WRAP_TRANSFORMATION);
+        cipher.init(Cipher.UNWRAP_MODE, kek(privateKey, x25519Key(ephemeralRaw, 0), ephemeralRaw));
+        return (SecretKey) cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+    }
+
+    // HKDF-SHA256 of the X25519 secret, bound to the ephemeral key. The provider rejects low-order points
+    private static SecretKey kek(PrivateKey own, PublicKey other, byte[] ephemeralRaw) throws GeneralSecurityException {
+        KeyAgreement agreement = CryptoEngine.keyAgreement("X25519");
+        agreement.init(own);
+        agreement.doPhase(other, true);
+        byte[] secret = agreement.generateSecret();
+        Mac hmac = CryptoEngine.mac("HmacSHA256");
+        hmac.init(new SecretKeySpec(KDF_SALT, "HmacSHA256"));
+        byte[] prk = hmac.doFinal(secret);
+        Arrays.fill(secret, (byte) 0);
+        // The key wrap key is 32 bytes, a single HKDF expand block
+        hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        hmac.update(KDF_INFO);
+        hmac.update(ephemeralRaw);
+        hmac.update((byte) 1);
+        byte[] okm = hmac.doFinal();
+        Arrays.fill(prk, (byte) 0);
+        SecretKey kek = new SecretKeySpec(okm, "AES");
+        Arrays.fill(okm, (byte) 0);
+        return kek;
+    }
+
+    // Function to sign the concatenation of parts with an Ed25519 identity key, null parts are skipped
+    public static byte[] sign(PrivateKey identityKey, byte[]... parts) throws GeneralSecurityException {
+        Signature signature = CryptoEngine.signature("Ed25519");
+        signature.initSign(identityKey);
+        for (byte[] part : parts) {
+            if (part != null) {
+                signature.update(part);
+            }
+        }
+        return signature.sign();
+    }
+
+    public static boolean verify(PublicKey identityKey, byte[] signed, byte[]... parts) throws GeneralSecurityException {
+        Signature signature = CryptoEngine.signature("Ed25519");
+        signature.initVerify(identityKey);
+        for (byte[] part : parts) {
+            if (part != null) {
+                signature.update(part);
+            }
+        }
+        return signature.verify(signed);
+    }
+}
@@ -0,0 +1,65 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/*
+Chunk encryption for file transfers. Every file gets its own AES-256 key, and every chunk is sealed on its own
+with AES-GCM, so a file is encrypted and decrypted one chunk at a time and never has to be held in memory whole.
+The IV of a chunk is the file's random 4-byte nonce followed by the chunk index, unique because the key is never
+used for another file. The transfer id, the index and whether it is the last chunk are authenticated as
+associated data, so chunks cannot be reordered, moved to another transfer, dropped from the end or appended.
+ */
+public class FileCryptoUtils {
+    public static final int NONCE_SIZE = 4;
+    private static final int AES_KEY_SIZE = 256;
+    private static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_SIZE = 128;
+    private static final SecureRandom random = new SecureRandom();
+
+    // Function to generate the key for one file
+    public static SecretKey generateFileKey() throws GeneralSecurityException {
+        return CryptoEngine.generateSecretKey("AES", AES_KEY_SIZE);
+    }
+
+    public static SecretKey fileKey(byte[] encoded) {
+        return new SecretKeySpec(encoded, "AES");
+    }
+
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // Function to encrypt one chunk, consumes what remains of data and returns the ciphertext with its tag
+    public static byte[] encryptChunk(SecretKey key, byte[] nonce, String transferId, long index, boolean last, ByteBuffer data)
+            throws GeneralSecurityException {
+        Cipher aes = init(Cipher.ENCRYPT_MODE, key, nonce, transferId, index, last);
+        ByteBuffer out = ByteBuffer.allocate(aes.getOutputSize(data.remaining()));
+        aes.doFinal(data, out);
+        return out.array();
+    }
+
+    // Function to decrypt one chunk, fails if it was modified or does not belong at this place in this transfer
+    public static byte[] decryptChunk(SecretKey key, byte[] nonce, String transferId, long index, boolean last, byte[] data)
+            throws GeneralSecurityException {
+        return init(Cipher.DECRYPT_MODE, key, nonce, transferId, index, last).doFinal(data);
+    }
+
+    private static Cipher init(int mode, SecretKey key, byte[] nonce, String transferId, long index, boolean last)
+            throws GeneralSecurityException {
+        byte[] iv = ByteBuffer.allocate(NONCE_SIZE + Long.BYTES).put(nonce, 0, NONCE_SIZE).putLong(index).array();
+        Cipher aes = CryptoEngine.cipher(AES_TRANSFORMATION);
+        aes.init(mode, key, new GCMParameterSpec(GCM_TAG_SIZE, iv));
+        byte[] id = transferId.getBytes(StandardCharsets.UTF_8);
+        aes.updateAAD(ByteBuffer.allocate(id.length + Long.BYTES + 1).put(id).putLong(index).put((byte) (last ? 1 : 0)).array());
+        return aes;
+    }
+}
@@ -0,0 +1,56 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public class FrameUtils {
+    // Every frame on the wire is a 4-byte big-endian length followed by one self-contained serialized object
+    public static final int HEADER_SIZE = 4;
+    // Upper bound for a single frame so a corrupt or hostile length prefix cannot make us allocate gigabytes
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Function to encode an object into a complete frame (length prefix included)
+    public static byte[] encode(Object obj) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(new byte[HEADER_SIZE]);
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(obj);
+        out.flush();
+        byte[] frame = bos.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - HEADER_SIZE);
+        return frame;
+    }
+
+    // Function to decode the payload of a frame (without its length prefix)
+    public static Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        return in.readObject();
+    }
+
+    // Function to validate a length prefix read from the wire
+    public static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    // Function to write one frame to a blocking stream, the caller is responsible for flushing
+    public static void writeFrame(DataOutputStream out, Object obj) throws IOException {
+        out.write(encode(obj));
+    }
+
+    // Function to read the payload of one frame from a blocking stream, throws EOFException when the peer closed the connection
+    public static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = checkLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // Function to read one Java-serialized frame from a blocking stream
+    public static Object readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte[] payload = readPayload(in);
+        return decode(payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,172 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Map;
+
+public class HybridUtils {
+    // Map entry holding the encrypted body. Usernames never contain whitespace, so it cannot clash with a recipient
+    public static final String BODY_KEY = " body";
+    // Present when the body was compressed before encryption, holds the CompressionUtils codec id
+    public static final String COMPRESSION_KEY = " codec";
+    // Raw public half of the ephemeral X25519 key, present when the envelope has X25519 recipients
+    public static final String EPHEMERAL_KEY = " epk";
+    // Ed25519 signature of the sender's identity key, present when the sender has one
+    public static final String SIGNATURE_KEY = " sig";
+    private static final int AES_KEY_SIZE = 256;
+    private static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_SIZE = 128;
+    // OAEP instead of PKCS#1 v1.5 for wrapping, the session key always fits in a single RSA block
+    private static final String WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final SecureRandom random = new SecureRandom();
+
+    /*
+    Function to encrypt a message for a group of recipients.
+    The body is encrypted once with a random AES-GCM key and only that 32-byte key is wrapped per recipient,
+    so the cost is one symmetric pass over the data plus one RSA or X25519 operation per recipient regardless of
+    message length.
+    The returned map holds the body under BODY_KEY and the wrapped key under each recipient name.
+     */
+    public static Map<String, byte[]> encrypt(String data, Map<String, PublicKey> recipients) throws Exception {
+        return encrypt(data, recipients, false);
+    }
+
+    /*
+    Same, but with compress set the text is first run through CompressionUtils, which leaves out short and
+    incompressible texts. A compressed body is flagged with COMPRESSION_KEY, and the codec id is authenticated
+    as GCM associated data so the flag cannot be stripped or added on the way.
+     */
+    public static Map<String, byte[]> encrypt(String data, Map<String, PublicKey> recipients, boolean compress) throws Exception {
+        return encrypt(data, recipients, compress, null, null);
+    }
+
+    /*
+    Same, and signed by sender with its Ed25519 identity key unless that is null. Recipients may mix suites: RSA
+    keys get the session key wrapped with RSA-OAEP, X25519 keys with EcUtils against one ephemeral key per message.
+     */
+    public static Map<String, byte[]> encrypt(String data, Map<String, PublicKey> recipients, boolean compress,
+                                              String sender, PrivateKey identityKey) throws Exception {
+        SecretKey sessionKey = CryptoEngine.generateSecretKey("AES", AES_KEY_SIZE);
+
+        byte[] iv = new byte[GCM_IV_SIZE];
+        random.nextBytes(iv);
+        Cipher aes = CryptoEngine.cipher(AES_TRANSFORMATION);
+        aes.init(Cipher.ENCRYPT_MODE, sessionKey, new GCMParameterSpec(GCM_TAG_SIZE, iv));
+        byte[] inBytes = data.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compress ? CompressionUtils.compress(inBytes) : null;
+        if (compressed != null) {
+            inBytes = compressed;
+            aes.updateAAD(new byte[]{CompressionUtils.DEFLATE_CHAT_V1});
+        }
+        // The IV is stored in front of the ciphertext
+        byte[] body = new byte[GCM_IV_SIZE + aes.getOutputSize(inBytes.length)];
+        System.arraycopy(iv, 0, body, 0, GCM_IV_SIZE);
+        aes.doFinal(inBytes, 0, inBytes.length, body, GCM_IV_SIZE);
+
+        KeyPair ephemeral = null;
+        for (PublicKey key : recipients.values()) {
+            if (CryptoSuite.of(key) == CryptoSuite.X25519_ED25519) {
+                ephemeral = EcUtils.generateX25519KeyPair();
+                break;
+            }
+        }
+        // For a large group the per-recipient wraps run in parallel
+        Map<String, byte[]> envelope = CryptoEngine.wrapForAll(WRAP_TRANSFORMATION, sessionKey, recipients, ephemeral);
+        envelope.put(BODY_KEY, body);
+        byte[] codec = compressed != null ? new byte[]{CompressionUtils.DEFLATE_CHAT_V1} : null;
+        if (codec != null) {
+            envelope.put(COMPRESSION_KEY, codec);
+        }
+        byte[] ephemeralRaw = ephemeral != null ? EcUtils.rawKey(ephemeral.getPublic()) : null;
+        if (ephemeralRaw != null) {
+            envelope.put(EPHEMERAL_KEY, ephemeralRaw);
+        }
+        if (identityKey != null) {
+            envelope.put(SIGNATURE_KEY, EcUtils.sign(identityKey, signedHeader(sender, body, ephemeralRaw, codec), body, ephemeralRaw, codec));
+        }
+        return envelope;
+    }
+
+    // Function to decrypt the body of an envelope, returns null if the envelope holds no key for this recipient.
+    // Whoever sent it is not checked, for envelopes that are never signed such as file offers
+    public static String decrypt(Map<String, byte[]> envelope, String recipient, PrivateKey privateKey) throws Exception {
+        byte[] wrappedKey = envelope.get(recipient);
+        byte[] body = envelope.get(BODY_KEY);
+        byte[] codec = envelope.get(COMPRESSION_KEY);
+        if (wrappedKey == null || body == null || (codec != null && codec.length != 1)) {
+            return null;
+        }
+        return open(wrappedKey, body, codec, envelope.get(EPHEMERAL_KEY), privateKey);
+    }
+
+    /*
+    Same, for a message from sender, who is known by senderSuite in the key directory (null if it is not in it).
+    Unless that is RSA, whose users do not sign, the envelope must carry a valid signature of senderIdentityKey.
+    A SignatureException is thrown otherwise, and for a sender the directory does not know.
+     */
+    public static String decrypt(Map<String, byte[]> envelope, String recipient, PrivateKey privateKey,
+                                 String sender, CryptoSuite senderSuite, PublicKey senderIdentityKey) throws Exception {
+        byte[] wrappedKey = envelope.get(recipient);
+        byte[] body = envelope.get(BODY_KEY);
+        byte[] codec = envelope.get(COMPRESSION_KEY);
+        byte[] ephemeralRaw = envelope.get(EPHEMERAL_KEY);
+        if (wrappedKey == null || body == null || (codec != null && codec.length != 1)) {
+            return null;
+        }
+        verifySender(sender, senderSuite, senderIdentityKey, envelope.get(SIGNATURE_KEY),
+                signedHeader(sender, body, ephemeralRaw, codec), body, ephemeralRaw, codec);
+        return open(wrappedKey, body, codec, ephemeralRaw, privateKey);
+    }
+
+    // Checks the signature of a message from sender as decrypt describes, for SenderKeyUtils too
+    static void verifySender(String sender, CryptoSuite senderSuite, PublicKey senderIdentityKey, byte[] signature,
+                             byte[]... signed) throws GeneralSecurityException {
+        if (senderSuite == null) {
+            throw new SignatureException("Message from " + sender + ", whose key is not known");
+        }
+        if (senderSuite == CryptoSuite.RSA) {
+            return;
+        }
+        if (senderIdentityKey == null || signature == null || !EcUtils.verify(senderIdentityKey, signature, signed)) {
+            throw new SignatureException("Message not signed by " + sender);
+        }
+    }
+
+    private static String open(byte[] wrappedKey, byte[] body, byte[] codec, byte[] ephemeralRaw, PrivateKey privateKey)
+            throws Exception {
+        SecretKey sessionKey;
+        if (CryptoSuite.of(privateKey) == CryptoSuite.X25519_ED25519) {
+            if (ephemeralRaw == null) {
+                return null;
+            }
+            sessionKey = EcUtils.unwrap(wrappedKey, ephemeralRaw, privateKey);
+        } else {
+            Cipher rsa = CryptoEngine.cipher(WRAP_TRANSFORMATION);
+            rsa.init(Cipher.UNWRAP_MODE, privateKey);
+            sessionKey = (SecretKey) rsa.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+        }
+
+        Cipher aes = CryptoEngine.cipher(AES_TRANSFORMATION);
+        aes.init(Cipher.DECRYPT_MODE, sessionKey, new GCMParameterSpec(GCM_TAG_SIZE, body, 0, GCM_IV_SIZE));
+        if (codec != null) {
+            aes.updateAAD(codec);
+        }
+        byte[] decBytes = aes.doFinal(body, GCM_IV_SIZE, body.length - GCM_IV_SIZE);
+        if (codec != null) {
+            decBytes = CompressionUtils.decompress(decBytes, codec[0]);
+        }
+        return new String(decBytes, StandardCharsets.UTF_8);
+    }
+
+    // Sender and the lengths of the signed fields, so no bytes can be moved from one field to another
+    private static byte[] signedHeader(String sender, byte[] body, byte[] ephemeralRaw, byte[] codec) {
+        byte[] name = sender != null ? sender.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return ByteBuffer.allocate(4 * Integer.BYTES + name.length).putInt(name.length).put(name).putInt(body.length)
+                .putInt(ephemeralRaw != null ? ephemeralRaw.length : -1).putInt(codec != null ? codec.length : -1).array();
+    }
+}
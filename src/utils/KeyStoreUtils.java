@@ -0,0 +1,167 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+
+/*
+Password protected file holding the user's key pairs, so a client keeps its identity across restarts and does
+not have to generate a key every time it starts. Layout:
+    magic "CHATKEY1" | int iterations | 16-byte salt | 12-byte IV | AES-GCM(int publicLength | public | private)
+for a single key pair, as an RSA client has, and for several (the X25519 and Ed25519 keys of an EC client)
+    magic "CHATKEY2" | int iterations | 16-byte salt | 12-byte IV | AES-GCM(int count | count * (int publicLength | public | int privateLength | private))
+The AES key is derived from the password with PBKDF2-HMAC-SHA256 and the header is authenticated along with the
+keys, so a wrong password or any change to the file fails the GCM tag check. Keys are X.509 and PKCS#8 encoded.
+ */
+public class KeyStoreUtils {
+    private static final byte[] MAGIC = "CHATKEY1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAGIC_MULTI = "CHATKEY2".getBytes(StandardCharsets.US_ASCII);
+    // OWASP's 2023 figure for PBKDF2-HMAC-SHA256. Stored in the file, so it can be raised without breaking old files
+    private static final int ITERATIONS = 600_000;
+    private static final int SALT_SIZE = 16;
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_SIZE = 128;
+    private static final int HEADER_SIZE = MAGIC.length + Integer.BYTES + SALT_SIZE + GCM_IV_SIZE;
+    private static final SecureRandom random = new SecureRandom();
+
+    // Function to write a key pair to file, readable by the owner only where the file system supports that
+    public static void save(Path file, KeyPair keyPair, char[] password) throws IOException, GeneralSecurityException {
+        save(file, new KeyPair[]{keyPair}, password);
+    }
+
+    public static void save(Path file, KeyPair[] keyPairs, char[] password) throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] iv = new byte[GCM_IV_SIZE];
+        random.nextBytes(salt);
+        random.nextBytes(iv);
+        // A single key pair keeps the first layout, so older clients can still read the file
+        boolean multi = keyPairs.length != 1;
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE).put(multi ? MAGIC_MULTI : MAGIC).putInt(ITERATIONS).put(salt).put(iv).array();
+        byte[][] publicKeys = new byte[keyPairs.length][];
+        byte[][] privateKeys = new byte[keyPairs.length][];
+        int size = multi ? Integer.BYTES : 0;
+        for (int i = 0; i < keyPairs.length; i++) {
+            publicKeys[i] = keyPairs[i].getPublic().getEncoded();
+            privateKeys[i] = keyPairs[i].getPrivate().getEncoded();
+            size += Integer.BYTES + publicKeys[i].length + (multi ? Integer.BYTES : 0) + privateKeys[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        if (multi) {
+            buffer.putInt(keyPairs.length);
+        }
+        for (int i = 0; i < keyPairs.length; i++) {
+            buffer.putInt(publicKeys[i].length).put(publicKeys[i]);
+            if (multi) {
+                buffer.putInt(privateKeys[i].length);
+            }
+            buffer.put(privateKeys[i]);
+            Arrays.fill(privateKeys[i], (byte) 0);
+        }
+        byte[] plain = buffer.array();
+
+        Cipher aes = cipher(Cipher.ENCRYPT_MODE, password, salt, ITERATIONS, iv);
+        aes.updateAAD(header);
+        byte[] sealed = aes.doFinal(plain);
+        Arrays.fill(plain, (byte) 0);
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+                // Not a POSIX file system, the file keeps the directory's default permissions
+            }
+            Files.write(tmp, ByteBuffer.allocate(header.length + sealed.length).put(header).put(sealed).array());
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Function to read the key pairs written by save, fails with a GeneralSecurityException on a wrong password
+    public static KeyPair[] load(Path file, char[] password) throws IOException, GeneralSecurityException {
+        byte[] data = Files.readAllBytes(file);
+        boolean multi = data.length > HEADER_SIZE && Arrays.equals(data, 0, MAGIC_MULTI.length, MAGIC_MULTI, 0, MAGIC_MULTI.length);
+        if (data.length <= HEADER_SIZE || !multi && !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Not a key store: " + file);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, MAGIC.length, HEADER_SIZE - MAGIC.length);
+        int iterations = buffer.getInt();
+        if (iterations <= 0) {
+            throw new IOException("Damaged key store: " + file);
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] iv = new byte[GCM_IV_SIZE];
+        buffer.get(salt).get(iv);
+
+        Cipher aes = cipher(Cipher.DECRYPT_MODE, password, salt, iterations, iv);
+        aes.updateAAD(data, 0, HEADER_SIZE);
+        byte[] plain = aes.doFinal(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        try {
+            ByteBuffer keys = ByteBuffer.wrap(plain);
+            int count = multi ? keys.getInt() : 1;
+            if (count < 1 || count > 16) {
+                throw new IOException("Damaged key store: " + file);
+            }
+            KeyPair[] keyPairs = new KeyPair[count];
+            for (int i = 0; i < count; i++) {
+                byte[] publicKey = new byte[keys.getInt()];
+                keys.get(publicKey);
+                byte[] privateKey = new byte[multi ? keys.getInt() : keys.remaining()];
+                keys.get(privateKey);
+                try {
+                    PublicKey pub = CryptoEngine.decodePublicKey(publicKey);
+                    PrivateKey priv = CryptoEngine.keyFactory(pub.getAlgorithm()).generatePrivate(new PKCS8EncodedKeySpec(privateKey));
+                    keyPairs[i] = new KeyPair(pub, priv);
+                } finally {
+                    Arrays.fill(privateKey, (byte) 0);
+                }
+            }
+            return keyPairs;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Damaged key store: " + file);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private static Cipher cipher(int mode, char[] password, byte[] salt, int iterations, byte[] iv) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, 256);
+        try {
+            byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            SecretKey key = new SecretKeySpec(derived, "AES");
+            Arrays.fill(derived, (byte) 0);
+            // A fresh instance rather than CryptoEngine's cached one, this runs on the key loading thread once
+            Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+            aes.init(mode, key, new GCMParameterSpec(GCM_TAG_SIZE, iv));
+            return aes;
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Sender keys for room messages. A member encrypts what it says in a room with a chain of message keys of its own and
+hands the chain to the other members once, in an envelope encrypted for them with HybridUtils. After that a message
+costs two HMACs and one AES-GCM pass however many members the room has, and its envelope holds the same few fields
+for all of them, so the server can broadcast it as it is.
+The chain only moves forward: message key n is HMAC(chain key n, 1) and chain key n+1 is HMAC(chain key n, 2), so a
+member handed the chain at position n cannot read the messages before it. When a member leaves, the others start
+new chains, so it cannot read the messages after it either.
+ */
+public class SenderKeyUtils {
+    // Entry of a PUBLIC_KEY message saying the client reads sender key messages
+    public static final String SUPPORT_ENTRY = " sender-keys";
+    // Entry of key maps listing the members that do not and are sent HYBRID_TEXT envelopes instead, one name per
+    // line (usernames never contain whitespace)
+    public static final String PAIRWISE_ENTRY = " pairwise";
+    // Entries of a GROUP_TEXT envelope: the id of the chain and the position of the message in it
+    public static final String KEY_ID_KEY = " kid";
+    public static final String ITERATION_KEY = " n";
+    // How far a receiver follows a chain past the last message it read, to get over messages it never received
+    public static final int MAX_SKIP = 2000;
+    private static final int CHAIN_KEY_SIZE = 32;
+    private static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_SIZE = 128;
+    private static final byte[] MESSAGE_KEY_SEED = {1};
+    private static final byte[] CHAIN_KEY_SEED = {2};
+    private static final SecureRandom random = new SecureRandom();
+
+    // A sender's chain in one room, at the position of the next message. Kept by the sender and by every receiver
+    public static final class Chain {
+        public final int keyId;
+        private int iteration;
+        private byte[] chainKey;
+
+        private Chain(int keyId, int iteration, byte[] chainKey) {
+            this.keyId = keyId;
+            this.iteration = iteration;
+            this.chainKey = chainKey;
+        }
+
+        public static Chain generate() {
+            byte[] chainKey = new byte[CHAIN_KEY_SIZE];
+            random.nextBytes(chainKey);
+            return new Chain(random.nextInt(), 0, chainKey);
+        }
+
+        // The chain as it is handed to other members: key id, position and chain key
+        public synchronized String encode() {
+            return Base64.getEncoder().encodeToString(ByteBuffer.allocate(2 * Integer.BYTES + CHAIN_KEY_SIZE)
+                    .putInt(keyId).putInt(iteration).put(chainKey).array());
+        }
+
+        public static Chain decode(String encoded) throws GeneralSecurityException {
+            byte[] raw;
+            try {
+                raw = Base64.getDecoder().decode(encoded);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("Malformed sender key", e);
+            }
+            if (raw.length != 2 * Integer.BYTES + CHAIN_KEY_SIZE) {
+                throw new GeneralSecurityException("Malformed sender key");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(raw);
+            int keyId = buffer.getInt();
+            int iteration = buffer.getInt();
+            if (iteration < 0) {
+                throw new GeneralSecurityException("Malformed sender key");
+            }
+            byte[] chainKey = new byte[CHAIN_KEY_SIZE];
+            buffer.get(chainKey);
+            Arrays.fill(raw, (byte) 0);
+            return new Chain(keyId, iteration, chainKey);
+        }
+
+        public synchronized int iteration() {
+            return iteration;
+        }
+    }
+
+    /*
+    Function to encrypt a message with the next key of the sender's chain, signed by sender with its Ed25519
+    identity key unless that is null. The sender and room are bound to the ciphertext, so a message cannot be
+    passed off as coming from another member or replayed into another room.
+     */
+    public static Map<String, byte[]> encrypt(Chain chain, String data, boolean compress, String sender, String room,
+                                              PrivateKey identityKey) throws GeneralSecurityException {
+        byte[] inBytes = data.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compress ? CompressionUtils.compress(inBytes) : null;
+        byte[] codec = compressed != null ? new byte[]{CompressionUtils.DEFLATE_CHAT_V1} : null;
+        if (compressed != null) {
+            inBytes = compressed;
+        }
+        byte[] body;
+        byte[] header;
+        int iteration;
+        synchronized (chain) {
+            iteration = chain.iteration;
+            header = header(sender, room, chain.keyId, iteration, codec);
+            byte[] messageKey = step(chain.chainKey, MESSAGE_KEY_SEED);
+            try {
+                body = seal(messageKey, header, inBytes);
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+            }
+            byte[] next = step(chain.chainKey, CHAIN_KEY_SEED);
+            Arrays.fill(chain.chainKey, (byte) 0);
+            chain.chainKey = next;
+            chain.iteration++;
+        }
+        Map<String, byte[]> envelope = new HashMap<>();
+        envelope.put(HybridUtils.BODY_KEY, body);
+        envelope.put(KEY_ID_KEY, ByteBuffer.allocate(Integer.BYTES).putInt(chain.keyId).array());
+        envelope.put(ITERATION_KEY, ByteBuffer.allocate(Integer.BYTES).putInt(iteration).array());
+        if (codec != null) {
+            envelope.put(HybridUtils.COMPRESSION_KEY, codec);
+        }
+        if (identityKey != null) {
+            envelope.put(HybridUtils.SIGNATURE_KEY, EcUtils.sign(identityKey, header, body));
+        }
+        return envelope;
+    }
+
+    /*
+    Function to decrypt a message with the sender's chain, which moves past it. The sender's signature is checked
+    as in HybridUtils.decrypt: unless senderSuite is RSA the envelope must carry a valid signature of
+    senderIdentityKey, and a sender of no known suite fails with a SignatureException too. A message from
+    another chain, or from before the chain's position, cannot be read and fails too. The chain only moves
+    when a message was decrypted, so a forged one does not spoil it.
+     */
+    public static String decrypt(Chain chain, Map<String, byte[]> envelope, String sender, String room,
+                                 CryptoSuite senderSuite, PublicKey senderIdentityKey) throws Exception {
+        byte[] body = envelope.get(HybridUtils.BODY_KEY);
+        byte[] keyId = envelope.get(KEY_ID_KEY);
+        byte[] position = envelope.get(ITERATION_KEY);
+        byte[] codec = envelope.get(HybridUtils.COMPRESSION_KEY);
+        if (body == null || body.length < GCM_IV_SIZE || keyId == null || keyId.length != Integer.BYTES
+                || position == null || position.length != Integer.BYTES || (codec != null && codec.length != 1)) {
+            throw new GeneralSecurityException("Malformed group message");
+        }
+        if (ByteBuffer.wrap(keyId).getInt() != chain.keyId) {
+            throw new GeneralSecurityException("No current sender key of " + sender);
+        }
+        int iteration = ByteBuffer.wrap(position).getInt();
+        byte[] header = header(sender, room, chain.keyId, iteration, codec);
+        HybridUtils.verifySender(sender, senderSuite, senderIdentityKey, envelope.get(HybridUtils.SIGNATURE_KEY), header, body);
+        byte[] plain;
+        synchronized (chain) {
+            if (iteration < chain.iteration) {
+                throw new GeneralSecurityException("Message key of " + sender + " already used");
+            }
+            if (iteration - chain.iteration > MAX_SKIP) {
+                throw new GeneralSecurityException("Message of " + sender + " too far ahead of its sender key");
+            }
+            byte[] chainKey = chain.chainKey.clone();
+            for (int i = chain.iteration; i < iteration; i++) {
+                byte[] next = step(chainKey, CHAIN_KEY_SEED);
+                Arrays.fill(chainKey, (byte) 0);
+                chainKey = next;
+            }
+            byte[] messageKey = step(chainKey, MESSAGE_KEY_SEED);
+            try {
+                plain = open(messageKey, header, body);
+            } catch (GeneralSecurityException e) {
+                Arrays.fill(chainKey, (byte) 0);
+                throw e;
+            } finally {
+                Arrays.fill(messageKey, (byte) 0);
+            }
+            byte[] next = step(chainKey, CHAIN_KEY_SEED);
+            Arrays.fill(chainKey, (byte) 0);
+            Arrays.fill(chain.chainKey, (byte) 0);
+            chain.chainKey = next;
+            chain.iteration = iteration + 1;
+        }
+        if (codec != null) {
+            plain = CompressionUtils.decompress(plain, codec[0]);
+        }
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] step(byte[] chainKey, byte[] seed) throws GeneralSecurityException {
+        Mac hmac = CryptoEngine.mac("HmacSHA256");
+        hmac.init(new SecretKeySpec(chainKey, "HmacSHA256"));
+        return hmac.doFinal(seed);
+    }
+
+    // The IV is stored in front of the ciphertext, as in HybridUtils
+    private static byte[] seal(byte[] messageKey, byte[] header, byte[] data) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_SIZE];
+        random.nextBytes(iv);
+        Cipher aes = CryptoEngine.cipher(AES_TRANSFORMATION);
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(messageKey, "AES"), new GCMParameterSpec(GCM_TAG_SIZE, iv));
+        aes.updateAAD(header);
+        byte[] body = new byte[GCM_IV_SIZE + aes.getOutputSize(data.length)];
+        System.arraycopy(iv, 0, body, 0, GCM_IV_SIZE);
+        aes.doFinal(data, 0, data.length, body, GCM_IV_SIZE);
+        return body;
+    }
+
+    private static byte[] open(byte[] messageKey, byte[] header, byte[] body) throws GeneralSecurityException {
+        Cipher aes = CryptoEngine.cipher(AES_TRANSFORMATION);
+        aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(messageKey, "AES"), new GCMParameterSpec(GCM_TAG_SIZE, body, 0, GCM_IV_SIZE));
+        aes.updateAAD(header);
+        return aes.doFinal(body, GCM_IV_SIZE, body.length - GCM_IV_SIZE);
+    }
+
+    // Authenticated with the body: who sent it to which room, where in which chain, and how it was compressed
+    private static byte[] header(String sender, String room, int keyId, int iteration, byte[] codec) {
+        byte[] name = sender != null ? sender.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] roomName = room.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 * Integer.BYTES + name.length + roomName.length).putInt(name.length).put(name)
+                .putInt(roomName.length).put(roomName).putInt(keyId).putInt(iteration).putInt(codec != null ? codec[0] : -1).array();
+    }
+}